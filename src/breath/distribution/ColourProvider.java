@@ -19,6 +19,22 @@ public class ColourProvider {
 		
 		colourAtBase[root.getNr()] = root.getNr();
 		calcColourAtBase(root, colourAtBase, blockCount);
+		return normalise(leafCount, colourAtBase);
+	}
+
+	/** as getColour, but with block counts in a primitive array indexed by node number **/
+	static public boolean getColour(
+		     Node root,
+		     int [] blockCount,
+		     int leafCount,
+		     int [] colourAtBase
+			) {
+		colourAtBase[root.getNr()] = root.getNr();
+		calcColourAtBase(root, colourAtBase, blockCount);
+		return normalise(leafCount, colourAtBase);
+	}
+
+	static private boolean normalise(int leafCount, int [] colourAtBase) {
 		// normalise colours so leaf i has colour i
 		// but unsampled nodes remain at their colour number
 		int n = colourAtBase.length;
@@ -48,6 +64,20 @@ public class ColourProvider {
 		return true;
 	}
 
+	static private void calcColourAtBase(Node node, int [] colourAtBase, int [] blockCount) {
+		if (!node.isRoot()) {
+			int k = node.getNr();
+			if (blockCount[k] < 0) {
+				colourAtBase[k] = colourAtBase[node.getParent().getNr()];
+			} else {
+				colourAtBase[k] = k;
+			}
+		}
+		for (Node child : node.getChildren()) {
+			calcColourAtBase(child, colourAtBase, blockCount);
+		}
+	}
+
 	static private void calcColourAtBase(Node node, int [] colourAtBase, IntegerParameter blockCount) {
 		if (!node.isRoot()) {
 			int k = node.getNr();
@@ -93,6 +93,15 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     //private double a, b;
 
     protected boolean updateColours = true;
+    // changes whenever inputs change, and is reset when they are restored, so equal versions mean an equal state
+    private long version = 0, storedVersion = 0;
+
+    /** reasons for calculateLogP to return negative infinity, counted for profiling **/
+    public enum RejectionCause {originBelowRoot, invalidColouring, validatorFailure}
+    /** parts of the calculation that are timed for profiling **/
+    public enum Component {colouring, validation, segments, coalescent, transmission}
+    protected long [] rejectionCount = new long[RejectionCause.values().length];
+    protected long [] componentTime = new long[Component.values().length];
     protected boolean allowTransmissionsAfterSampling;
     protected boolean initialCalculation = true;
     protected boolean conditionOnInfectionTime = true;
@@ -217,22 +226,83 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
         }
         initialCalculation = false;
 
-        logP = 0;
-        if (origin.getArrayValue() < tree.getRoot().getHeight()) {
-            logP = Double.NEGATIVE_INFINITY;
+        logP = calcValidityPenalty();
+        if (logP == Double.NEGATIVE_INFINITY || colourOnlyInput.get()) {
             return logP;
         }
 
-        if (!calcColourAtBase()) {
+        long start = System.nanoTime();
+        segments = collectSegments();
+        long end = System.nanoTime();
+        componentTime[Component.segments.ordinal()] += end - start;
+
+        if (includeCoalescentInput.get()) {
+            logP += calculateCoalescent();
+            start = end;
+            end = System.nanoTime();
+            componentTime[Component.coalescent.ordinal()] += end - start;
+        }
+
+        logP += calcTransmissionLikelihood();
+        componentTime[Component.transmission.ordinal()] += System.nanoTime() - end;
+        if (Double.isInfinite(logP)) {
             logP = Double.NEGATIVE_INFINITY;
+        }
+        return logP;
+    }
+
+    /**
+     * Cheap part of calculateLogP: validity of the colouring, branch length
+     * thresholds and transmission likelihood, but not the coalescent.
+     * Leaves the cached logP untouched, so can be called during a proposal.
+     */
+    public double calculateLogPWithoutCoalescent() {
+        double logP = calcValidityPenalty();
+        if (logP == Double.NEGATIVE_INFINITY || colourOnlyInput.get()) {
+            updateColours = true;
             return logP;
         }
 
-        if (!validator.isValid(colourAtBase)) {
+        long start = System.nanoTime();
+        segments = collectSegments();
+        long end = System.nanoTime();
+        componentTime[Component.segments.ordinal()] += end - start;
+        logP += calcTransmissionLikelihood();
+        componentTime[Component.transmission.ordinal()] += System.nanoTime() - end;
+        if (Double.isInfinite(logP)) {
             logP = Double.NEGATIVE_INFINITY;
-            return logP;
+        }
+        updateColours = true;
+        return logP;
+    }
+
+    /**
+     * @return negative infinity if origin is below root or the colouring is not valid,
+     * otherwise the penalty for branches shorter than the branch length thresholds
+     */
+    private double calcValidityPenalty() {
+        if (origin.getArrayValue() < tree.getRoot().getHeight()) {
+            rejectionCount[RejectionCause.originBelowRoot.ordinal()]++;
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        long start = System.nanoTime();
+        boolean isValid = calcColourAtBase();
+        long end = System.nanoTime();
+        componentTime[Component.colouring.ordinal()] += end - start;
+        if (!isValid) {
+            rejectionCount[RejectionCause.invalidColouring.ordinal()]++;
+            return Double.NEGATIVE_INFINITY;
         }
 
+        isValid = validator.isValid(colourAtBase);
+        componentTime[Component.validation.ordinal()] += System.nanoTime() - end;
+        if (!isValid) {
+            rejectionCount[RejectionCause.validatorFailure.ordinal()]++;
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double logP = 0;
         if (origin.getArrayValue() - tree.getRoot().getHeight() < originBranchLengthThreshold) {
             logP += -10000;
         }
@@ -243,21 +313,6 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
                 }
             }
         }
-
-        if (colourOnlyInput.get()) {
-            return logP;
-        }
-
-        segments = collectSegments();
-
-        if (includeCoalescentInput.get()) {
-            logP += calculateCoalescent();
-        }
-
-        logP += calcTransmissionLikelihood();
-        if (Double.isInfinite(logP)) {
-            logP = Double.NEGATIVE_INFINITY;
-        }
         return logP;
     }
 
@@ -964,6 +1019,16 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 
 
 
+    /** number of times the likelihood was negative infinity due to cause **/
+    public long getRejectionCount(RejectionCause cause) {
+        return rejectionCount[cause.ordinal()];
+    }
+
+    /** total time spent calculating component in nano seconds **/
+    public long getComponentTime(Component component) {
+        return componentTime[component.ordinal()];
+    }
+
     public int getColour(int i) {
         if (updateColours) {
             calcColourAtBase();
@@ -1007,15 +1072,28 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 
 
 
+    /** @return version of the inputs, which differs from an earlier version if the state was changed in between **/
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void store() {
+        storedVersion = version;
+        super.store();
+    }
+
     @Override
     public void restore() {
         updateColours = true;
+        version = storedVersion;
         super.restore();
     }
 
     @Override
     protected boolean requiresRecalculation() {
         updateColours = true;
+        version++;
         return true;
     }
 
@@ -1105,6 +1183,18 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
         return Z;
     }
 
+    /**
+     * log likelihood contribution of the block on the branch above node nodeNr
+     * if it contained count infections, keeping the block boundaries as they are
+     */
+    public double getLogBlockLikelihood(int nodeNr, int count) {
+        Node node = tree.getNode(nodeNr);
+        double branchlength = node.getLength();
+        double start = node.getHeight() + branchlength * blockStartFraction.getValue(nodeNr);
+        double end   = node.getHeight() + branchlength * blockEndFraction.getValue(nodeNr);
+        return getLogBlockLike(end - start, count, end - endTime.getArrayValue());
+    }
+
     protected double getLogBlockLike(double tblock, int n, double Yr) {
         // double blockLike = FastMath.pow(1-rho,n) * dgamma(tblock, n*atr, 1/btr) / getBlockCondition(p0,rho, atr, 1/btr, Yr);
         //double blockLike = FastMath.pow(1-rho,n-1.0) * dgamma(tblock, n*atr, btr) / pgamma(Yr, n*atr, btr);
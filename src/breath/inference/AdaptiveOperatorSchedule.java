@@ -0,0 +1,198 @@
+package breath.inference;
+
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.util.Randomizer;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.util.InfectorOfLogger;
+
+@Description("Operator schedule that adapts operator weights to the mixing obtained per CPU second. "
+		+ "For each operator it measures the time of a full MCMC step (proposal plus likelihood evaluation) "
+		+ "and the squared jumps it makes in the infection count, the origin and the infector assignments, "
+		+ "on a thinned subset of steps since this requires colouring the tree. "
+		+ "Weights are periodically set to a mix of the original weights and the jump distance per second, "
+		+ "and frozen after the adaptation period.")
+public class AdaptiveOperatorSchedule extends OperatorSchedule {
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
+	final public Input<Function> originInput = new Input<>("origin", "origin to be monitored, taken from the likelihood if not specified");
+	final public Input<Integer> updateEveryInput = new Input<>("updateEvery", "number of steps between updates of operator weights", 10000);
+	final public Input<Long> adaptationLengthInput = new Input<>("adaptationLength", "number of steps after which operator weights are not adapted any more", 1000000L);
+	final public Input<Integer> monitorEveryInput = new Input<>("monitorEvery", "only every monitorEvery-th step is monitored. "
+			+ "Monitored steps are offset by one from multiples of monitorEvery, so their times do not include logging "
+			+ "when log intervals are multiples of monitorEvery", 10);
+	final public Input<Double> mixInput = new Input<>("mix", "fraction of total weight distributed according to throughput. "
+			+ "The remainder is distributed according to the original weights, so no operator gets starved", 0.5);
+
+	private static final int INFECTION_COUNT = 0, ORIGIN = 1, INFECTORS = 2, STATS = 3;
+
+	private TransmissionTreeLikelihood likelihood;
+	private TreeInterface tree;
+	private Function origin;
+	private double mix;
+
+	private List<Operator> operatorList;
+	// base weights, normalised
+	private double [] baseWeights;
+	// current weights, or null when the original schedule is used
+	private double [] weights;
+	// per operator: time spent in steps and squared jumps per statistic
+	private long [] nanos;
+	private double [][] jumps;
+
+	private long step = 0;
+	private int monitorEvery;
+	// operator of the step being monitored, -1 if the current step is not monitored
+	private int lastOperator = -1;
+	private long lastTime;
+	private double [] lastStats = new double[STATS - 1];
+	private int [] lastInfectors;
+	private int [] infectors;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		likelihood = likelihoodInput.get();
+		tree = likelihood.treeInput.get();
+		origin = originInput.get() != null ? originInput.get() : likelihood.originInput.get();
+		mix = mixInput.get();
+		if (mix < 0 || mix > 1) {
+			throw new IllegalArgumentException("mix should be between 0 and 1");
+		}
+		monitorEvery = monitorEveryInput.get();
+		if (monitorEvery < 1) {
+			throw new IllegalArgumentException("monitorEvery should be at least 1");
+		}
+		lastInfectors = new int[tree.getLeafNodeCount()];
+		infectors = new int[tree.getLeafNodeCount()];
+	}
+
+	@Override
+	public Operator selectOperator() {
+		if (step >= adaptationLengthInput.get()) {
+			return pick();
+		}
+		if (operatorList == null) {
+			initialiseAdaptation();
+		}
+
+		// attribute time and jumps of the monitored previous step to the operator selected then
+		long now = System.nanoTime();
+		if (lastOperator >= 0) {
+			nanos[lastOperator] += now - lastTime;
+			double [] stats = new double[STATS - 1];
+			calcStats(stats, infectors);
+			for (int i = 0; i < STATS - 1; i++) {
+				double d = stats[i] - lastStats[i];
+				jumps[lastOperator][i] += d * d;
+			}
+			int changes = 0;
+			for (int i = 0; i < infectors.length; i++) {
+				if (infectors[i] != lastInfectors[i]) {
+					changes++;
+				}
+			}
+			jumps[lastOperator][INFECTORS] += changes;
+			lastOperator = -1;
+		}
+
+		if (step > 0 && step % updateEveryInput.get() == 0) {
+			updateWeights();
+		}
+		if (step == adaptationLengthInput.get() - 1) {
+			reportWeights();
+		}
+
+		Operator operator = pick();
+		if (step % monitorEvery == 1 % monitorEvery) {
+			calcStats(lastStats, lastInfectors);
+			lastOperator = operatorList.indexOf(operator);
+			// exclude the time spent on monitoring
+			lastTime = System.nanoTime();
+		}
+		step++;
+		return operator;
+	}
+
+	/** infection count and origin of the current state, and infectors of all hosts **/
+	private void calcStats(double [] stats, int [] infectors) {
+		stats[INFECTION_COUNT] = InfectorOfLogger.calcInfectors(tree, likelihood.getColouring(), likelihood.blockCountInput.get(), false, infectors);
+		stats[ORIGIN] = origin != null ? origin.getArrayValue() : 0;
+	}
+
+	private Operator pick() {
+		if (weights == null) {
+			return super.selectOperator();
+		}
+		return operatorList.get(Randomizer.randomChoicePDF(weights));
+	}
+
+	private void initialiseAdaptation() {
+		operatorList = getOperators();
+		int n = operatorList.size();
+		baseWeights = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			baseWeights[i] = operatorList.get(i).getWeight();
+			sum += baseWeights[i];
+		}
+		for (int i = 0; i < n; i++) {
+			baseWeights[i] /= sum;
+		}
+		nanos = new long[n];
+		jumps = new double[n][STATS];
+	}
+
+	/** weight = (1-mix) * original weight + mix * normalised jump distance per second **/
+	private void updateWeights() {
+		int n = operatorList.size();
+		double [] totalJumps = new double[STATS];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < STATS; j++) {
+				totalJumps[j] += jumps[i][j];
+			}
+		}
+
+		double [] score = new double[n];
+		double totalScore = 0;
+		for (int i = 0; i < n; i++) {
+			if (nanos[i] > 0) {
+				for (int j = 0; j < STATS; j++) {
+					if (totalJumps[j] > 0) {
+						score[i] += jumps[i][j] / totalJumps[j];
+					}
+				}
+				score[i] /= nanos[i] / 1e9;
+			}
+			totalScore += score[i];
+		}
+		if (totalScore == 0) {
+			return;
+		}
+
+		weights = new double[n];
+		for (int i = 0; i < n; i++) {
+			weights[i] = (1 - mix) * baseWeights[i] + mix * score[i] / totalScore;
+		}
+	}
+
+	private void reportWeights() {
+		if (weights == null) {
+			return;
+		}
+		StringBuilder b = new StringBuilder();
+		b.append("Operator weights after adaptation (fraction of original, adapted):\n");
+		for (int i = 0; i < operatorList.size(); i++) {
+			Operator operator = operatorList.get(i);
+			b.append(String.format("%-40s %8.4f %8.4f\n", operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName(), baseWeights[i], weights[i]));
+		}
+		Log.info(b.toString());
+	}
+}
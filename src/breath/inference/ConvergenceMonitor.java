@@ -0,0 +1,298 @@
+package breath.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.TreeInterface;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.util.InfectorOfLogger;
+
+@Description("Monitors convergence of the transmission structure while running, by tracking effective sample size (ESS) "
+		+ "and split-Rhat of the infection count, origin, and indicators of who infected who, using batch means so that "
+		+ "memory does not grow with the length of the run. Every time the logger it is part of logs, a sample is added, "
+		+ "and the smallest ESS and largest split-Rhat are logged. If the run is a CoupledTransmissionMCMC, it is "
+		+ "stopped once all statistics meet the thresholds.")
+public class ConvergenceMonitor extends BEASTObject implements Loggable {
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
+	final public Input<Function> originInput = new Input<>("origin", "origin to monitor. If not specified, the origin of the likelihood is used if it has one");
+	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only, if false block counts are ignored", true);
+	final public Input<Long> burninInput = new Input<>("burnin", "samples logged before this state number are ignored", 0L);
+	final public Input<Double> minESSInput = new Input<>("minESS", "minimum ESS of every monitored statistic", 200.0);
+	final public Input<Double> maxRhatInput = new Input<>("maxRhat", "maximum split-Rhat of every monitored statistic", 1.01);
+	final public Input<Double> minProbabilityInput = new Input<>("minProbability", "who infected who indicators are only monitored "
+			+ "if their posterior probability is at least this value", 0.1);
+	final public Input<Integer> checkEveryInput = new Input<>("checkEvery", "number of samples between convergence checks", 100);
+	final public Input<Boolean> autoStopInput = new Input<>("autoStop", "stop the run when converged", true);
+
+	// number of batches is kept between BATCHES and 2 * BATCHES, once enough samples are collected
+	final static int BATCHES = 50;
+
+	/**
+	 * Batch means of a sampled statistic. Batches are merged pairwise when there are too many,
+	 * so memory is constant, and batch size grows with the number of samples.
+	 */
+	public static class BatchStatistics {
+		private final double [] sum = new double[2 * BATCHES];
+		private final double [] sumSq = new double[2 * BATCHES];
+		private int batchCount = 0;
+		private long batchSize = 1;
+		private double currentSum = 0, currentSumSq = 0;
+		private long currentCount = 0;
+
+		public BatchStatistics() {
+		}
+
+		/** statistic that was zero for all samples of other, which has the same number of samples **/
+		BatchStatistics(BatchStatistics other) {
+			batchCount = other.batchCount;
+			batchSize = other.batchSize;
+			currentCount = other.currentCount;
+		}
+
+		public void add(double x) {
+			currentSum += x;
+			currentSumSq += x * x;
+			currentCount++;
+			if (currentCount == batchSize) {
+				sum[batchCount] = currentSum;
+				sumSq[batchCount] = currentSumSq;
+				batchCount++;
+				currentSum = 0;
+				currentSumSq = 0;
+				currentCount = 0;
+				if (batchCount == sum.length) {
+					for (int i = 0; i < BATCHES; i++) {
+						sum[i] = sum[2 * i] + sum[2 * i + 1];
+						sumSq[i] = sumSq[2 * i] + sumSq[2 * i + 1];
+					}
+					batchCount = BATCHES;
+					batchSize *= 2;
+				}
+			}
+		}
+
+		/** mean over all samples **/
+		public double getMean() {
+			double total = currentSum;
+			for (int i = 0; i < batchCount; i++) {
+				total += sum[i];
+			}
+			return total / (batchCount * batchSize + currentCount);
+		}
+
+		/** @return whether all samples in complete batches are equal, up to rounding **/
+		public boolean isConstant() {
+			long n = batchCount * batchSize;
+			if (n < 2) {
+				return true;
+			}
+			double total = 0, totalSq = 0;
+			for (int i = 0; i < batchCount; i++) {
+				total += sum[i];
+				totalSq += sumSq[i];
+			}
+			double mean = total / n;
+			return (totalSq - n * mean * mean) / (n - 1) <= 1e-12 * Math.max(1, mean * mean);
+		}
+
+		/**
+		 * ESS estimated by batch means over complete batches, NaN if there are too few batches
+		 * for an estimate or the statistic is constant, since a constant trace says nothing about mixing
+		 */
+		public double getESS() {
+			if (batchCount < BATCHES / 2 || isConstant()) {
+				return Double.NaN;
+			}
+			long n = batchCount * batchSize;
+			double total = 0, totalSq = 0;
+			for (int i = 0; i < batchCount; i++) {
+				total += sum[i];
+				totalSq += sumSq[i];
+			}
+			double mean = total / n;
+			double variance = (totalSq - n * mean * mean) / (n - 1);
+			double batchVariance = 0;
+			for (int i = 0; i < batchCount; i++) {
+				double d = sum[i] / batchSize - mean;
+				batchVariance += d * d;
+			}
+			batchVariance = batchSize * batchVariance / (batchCount - 1);
+			if (batchVariance <= 0) {
+				return Double.NaN;
+			}
+			return Math.min(n, n * variance / batchVariance);
+		}
+
+		/**
+		 * split-Rhat comparing first and last half of the complete batches, NaN if there are too few batches
+		 * or the statistic is constant
+		 */
+		public double getSplitRhat() {
+			if (batchCount < BATCHES / 2 || isConstant()) {
+				return Double.NaN;
+			}
+			int h = batchCount / 2;
+			long n = h * batchSize;
+			double [] m = new double[2], v = new double[2];
+			for (int k = 0; k < 2; k++) {
+				double total = 0, totalSq = 0;
+				int start = k == 0 ? 0 : batchCount - h;
+				for (int i = start; i < start + h; i++) {
+					total += sum[i];
+					totalSq += sumSq[i];
+				}
+				m[k] = total / n;
+				v[k] = Math.max(0, (totalSq - n * m[k] * m[k]) / (n - 1));
+			}
+			double w = (v[0] + v[1]) / 2;
+			if (w == 0) {
+				// each half is constant, but not at the same value
+				return Double.POSITIVE_INFINITY;
+			}
+			double mean = (m[0] + m[1]) / 2;
+			double b = n * ((m[0] - mean) * (m[0] - mean) + (m[1] - mean) * (m[1] - mean));
+			double varPlus = (n - 1.0) / n * w + b / n;
+			return Math.sqrt(varPlus / w);
+		}
+	}
+
+	private TransmissionTreeLikelihood likelihood;
+	private TreeInterface tree;
+	private Function origin;
+	private boolean directOnly;
+	private int [] infectedBy;
+
+	private BatchStatistics infectionCount;
+	private BatchStatistics originStats;
+	// per host, indicator statistics of being infected by infector, with n for unsampled infectors
+	private List<Map<Integer, BatchStatistics>> indicators;
+	private long sampleCount = 0;
+	private double minESS = Double.NaN, maxRhat = Double.NaN;
+	private boolean converged = false;
+	private CoupledTransmissionMCMC mcmc;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		tree = likelihood.treeInput.get();
+		origin = originInput.get() != null ? originInput.get() : likelihood.originInput.get();
+		directOnly = directOnlyInput.get();
+		int n = tree.getLeafNodeCount();
+		infectedBy = new int[n];
+		infectionCount = new BatchStatistics();
+		originStats = origin != null ? new BatchStatistics() : null;
+		indicators = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			indicators.add(new HashMap<>());
+		}
+	}
+
+	/** called by the MCMC that this monitor logs for, so it can be stopped when converged **/
+	void setMCMC(CoupledTransmissionMCMC mcmc) {
+		this.mcmc = mcmc;
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		out.print(getID() + ".minESS\t" + getID() + ".maxRhat\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		if (sample >= burninInput.get()) {
+			addSample();
+			if (sampleCount % checkEveryInput.get() == 0) {
+				check(sample);
+			}
+		}
+		out.print(minESS + "\t" + maxRhat + "\t");
+	}
+
+	private void addSample() {
+		int [] colourAtBase = likelihood.getColouring();
+		int count = InfectorOfLogger.calcInfectors(tree, colourAtBase, likelihood.blockCountInput.get(), directOnly, infectedBy);
+		int n = infectedBy.length;
+		for (int i = 0; i < n; i++) {
+			int infector = infectedBy[i] < 0 ? n : infectedBy[i];
+			Map<Integer, BatchStatistics> map = indicators.get(i);
+			if (!map.containsKey(infector)) {
+				// first time this infector is seen, so it was not the infector in any earlier sample;
+				// infectionCount does not contain the current sample yet, so has the layout of earlier samples
+				map.put(infector, new BatchStatistics(infectionCount));
+			}
+			for (Map.Entry<Integer, BatchStatistics> entry : map.entrySet()) {
+				entry.getValue().add(entry.getKey() == infector ? 1 : 0);
+			}
+		}
+		infectionCount.add(count);
+		if (originStats != null) {
+			originStats.add(origin.getArrayValue());
+		}
+		sampleCount++;
+	}
+
+	private void check(long sample) {
+		minESS = Double.POSITIVE_INFINITY;
+		maxRhat = 0;
+		List<BatchStatistics> monitored = new ArrayList<>();
+		monitored.add(infectionCount);
+		if (originStats != null) {
+			monitored.add(originStats);
+		}
+		double minProbability = minProbabilityInput.get();
+		for (Map<Integer, BatchStatistics> map : indicators) {
+			for (BatchStatistics stats : map.values()) {
+				// an indicator that never changed (probability 1) says nothing about mixing, but
+				// the infection count and origin must vary, so a stuck chain does not pass
+				if (stats.getMean() >= minProbability && !stats.isConstant()) {
+					monitored.add(stats);
+				}
+			}
+		}
+		for (BatchStatistics stats : monitored) {
+			double ess = stats.getESS();
+			double rhat = stats.getSplitRhat();
+			if (Double.isNaN(ess) || Double.isNaN(rhat)) {
+				// too few samples, or the chain has not moved
+				minESS = Double.NaN;
+				maxRhat = Double.NaN;
+				return;
+			}
+			minESS = Math.min(minESS, ess);
+			maxRhat = Math.max(maxRhat, rhat);
+		}
+
+		if (!converged && minESS >= minESSInput.get() && maxRhat <= maxRhatInput.get()) {
+			converged = true;
+			Log.warning("Converged at sample " + sample + ": smallest ESS = " + minESS + ", largest split-Rhat = " + maxRhat +
+					" over " + monitored.size() + " statistics");
+			if (autoStopInput.get()) {
+				if (mcmc != null) {
+					mcmc.stopAt(sample);
+				} else {
+					Log.warning("Cannot stop run: auto-stop requires the run to be a CoupledTransmissionMCMC");
+				}
+			}
+		}
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		Log.info("Convergence monitor " + getID() + ": smallest ESS = " + minESS + ", largest split-Rhat = " + maxRhat +
+				(converged ? "" : " (not converged)"));
+	}
+}
@@ -0,0 +1,272 @@
+package breath.inference;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLParserException;
+import beast.base.parser.XMLProducer;
+import beast.base.util.Randomizer;
+
+@Description("Metropolis coupled MCMC (MC3) that runs heated chains in parallel threads. "
+		+ "Every chain is a full copy of the model, so each has its own transmission tree likelihood "
+		+ "and colouring cache. States are swapped between chains, so the cold chain always does the logging. "
+		+ "A ConvergenceMonitor in one of the loggers can stop the run early. "
+		+ "The state of the cold chain is stored every storeEvery samples, rounded up to a multiple of resampleEvery. "
+		+ "All chains share the random number generator, so runs with the same seed are only reproducible with threads=1.")
+public class CoupledTransmissionMCMC extends MCMC {
+	final public Input<Integer> chainsInput = new Input<>("chains", "number of chains to run. With 1 chain, this is the same as standard MCMC", 2);
+	final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "temperature difference between successive chains: "
+			+ "chain k samples from the posterior to the power 1/(1+k*deltaTemperature)", 0.1);
+	final public Input<Integer> resampleEveryInput = new Input<>("resampleEvery", "number of samples after which a swap between two chains is proposed", 1000);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to run chains, defaults to number of chains");
+
+	/** inverse temperature of this chain **/
+	protected double beta = 1.0;
+
+	private CoupledTransmissionMCMC [] chains;
+	private long swapsProposed = 0, swapsAccepted = 0;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		if (chainsInput.get() < 1) {
+			throw new IllegalArgumentException("chains should be at least 1");
+		}
+		if (deltaTemperatureInput.get() < 0) {
+			throw new IllegalArgumentException("deltaTemperature should be non-negative");
+		}
+		if (resampleEveryInput.get() < 1) {
+			throw new IllegalArgumentException("resampleEvery should be at least 1");
+		}
+		for (Logger logger : loggersInput.get()) {
+			for (BEASTObject o : logger.loggersInput.get()) {
+				if (o instanceof ConvergenceMonitor) {
+					((ConvergenceMonitor) o).setMCMC(this);
+				}
+			}
+		}
+	}
+
+	/** end the run after sample nr sample, used by ConvergenceMonitor to stop once converged **/
+	public void stopAt(long sample) {
+		if (chains != null) {
+			for (CoupledTransmissionMCMC chain : chains) {
+				chain.chainLength = sample;
+			}
+		} else {
+			chainLength = sample;
+		}
+	}
+
+	@Override
+	public void run() throws IOException, SAXException, ParserConfigurationException {
+		int chainCount = chainsInput.get();
+		if (chainCount <= 1) {
+			super.run();
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		createChains(chainCount);
+		for (CoupledTransmissionMCMC chain : chains) {
+			chain.initialiseChain();
+		}
+		// only the cold chain is stored; on resume, all chains start from its state
+		state.setStateFileName(stateFileName);
+		operatorSchedule.setStateFileName(stateFileName);
+		if (restoreFromFile) {
+			state.restoreFromFile();
+			operatorSchedule.restoreFromFile();
+			burnIn = 0;
+			String xml = state.toXML(0);
+			for (CoupledTransmissionMCMC chain : chains) {
+				chain.setState(xml);
+			}
+		}
+		for (final Logger log : loggers) {
+			log.init();
+		}
+
+		int threads = threadsInput.get() == null ? chainCount : Math.max(1, threadsInput.get());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long resampleEvery = resampleEveryInput.get();
+			long storeEvery = storeEveryInput.get();
+			long sample = -burnIn;
+			while (sample <= chainLength) {
+				final long from = sample;
+				final long to = Math.min(sample + resampleEvery, chainLength + 1);
+				List<Callable<Void>> tasks = new ArrayList<>();
+				for (final CoupledTransmissionMCMC chain : chains) {
+					tasks.add(() -> {
+						chain.runSteps(from, to, chain == this);
+						return null;
+					});
+				}
+				for (Future<Void> f : pool.invokeAll(tasks)) {
+					f.get();
+				}
+				proposeSwap();
+				sample = to;
+				if (storeEvery > 0 && Math.floorDiv(to, storeEvery) > Math.floorDiv(from, storeEvery)) {
+					state.storeToFile(to - 1);
+					operatorSchedule.storeToFile();
+				}
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdown();
+		}
+
+		for (final Logger log : loggers) {
+			log.close();
+		}
+		state.storeToFile(chainLength);
+		operatorSchedule.storeToFile();
+		operatorSchedule.showOperatorRates(System.out);
+		Log.info("Swaps accepted: " + swapsAccepted + " out of " + swapsProposed + " proposed");
+		Log.info("Total calculation time: " + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+	}
+
+	/** chain 0 is this object, the others are parsed from an XML copy of this object **/
+	private void createChains(int chainCount) throws IOException, SAXException, ParserConfigurationException {
+		chains = new CoupledTransmissionMCMC[chainCount];
+		chains[0] = this;
+
+		String xml = new XMLProducer().toXML(this);
+		File file = File.createTempFile("breath-chain", ".xml");
+		file.deleteOnExit();
+		FileWriter outfile = new FileWriter(file);
+		outfile.write(xml);
+		outfile.close();
+
+		for (int k = 1; k < chainCount; k++) {
+			try {
+				chains[k] = (CoupledTransmissionMCMC) new XMLParser().parseFile(file);
+			} catch (XMLParserException e) {
+				throw new IllegalArgumentException("Could not create chain " + k + ": " + e.getMessage());
+			}
+			chains[k].beta = 1.0 / (1.0 + k * deltaTemperatureInput.get());
+		}
+	}
+
+	private void initialiseChain() {
+		state.initAndValidate();
+		burnIn = burnInInput.get();
+		chainLength = chainLengthInput.get();
+		posterior = posteriorInput.get();
+
+		int attempts = 0;
+		do {
+			for (final StateNodeInitialiser initialiser : initialisersInput.get()) {
+				initialiser.initStateNodes();
+			}
+			state.setEverythingDirty(true);
+			oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+			attempts++;
+		} while (Double.isInfinite(oldLogLikelihood) && attempts < numInitializationAttempts.get());
+		if (Double.isInfinite(oldLogLikelihood)) {
+			throw new RuntimeException("Could not find a proper state to initialise chain with temperature " + 1.0 / beta);
+		}
+	}
+
+	/** MCMC steps from sample nr from (inclusive) to to (exclusive) at the temperature of this chain **/
+	private void runSteps(long from, long to, boolean log) {
+		for (long sampleNr = from; sampleNr < to && sampleNr <= chainLength; sampleNr++) {
+			state.store(sampleNr);
+			final Operator operator = operatorSchedule.selectOperator();
+			final double logHastingsRatio = operator.proposal();
+
+			if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+				if (operator.requiresStateInitialisation()) {
+					state.storeCalculationNodes();
+					state.checkCalculationNodesDirtiness();
+				}
+				newLogLikelihood = posterior.calculateLogP();
+				double logAlpha = beta * (newLogLikelihood - oldLogLikelihood) + logHastingsRatio;
+				if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+					oldLogLikelihood = newLogLikelihood;
+					state.acceptCalculationNodes();
+					if (sampleNr >= 0) {
+						operator.accept();
+					}
+				} else {
+					if (sampleNr >= 0) {
+						operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+					}
+					state.restore();
+					state.restoreCalculationNodes();
+				}
+				state.setEverythingDirty(false);
+				if (sampleNr >= 0) {
+					operator.optimize(logAlpha);
+				}
+			} else {
+				if (sampleNr >= 0) {
+					operator.reject(-2);
+				}
+				state.restore();
+				if (!operator.requiresStateInitialisation()) {
+					state.setEverythingDirty(false);
+					state.restoreCalculationNodes();
+				}
+			}
+
+			if (log) {
+				for (final Logger logger : loggers) {
+					logger.log(sampleNr);
+				}
+			}
+		}
+	}
+
+	/** propose to swap states of two randomly chosen chains **/
+	private void proposeSwap() {
+		int i = Randomizer.nextInt(chains.length);
+		int j = Randomizer.nextInt(chains.length - 1);
+		if (j >= i) {
+			j++;
+		}
+		CoupledTransmissionMCMC chain1 = chains[i];
+		CoupledTransmissionMCMC chain2 = chains[j];
+		swapsProposed++;
+
+		double logAlpha = (chain1.beta - chain2.beta) * (chain2.oldLogLikelihood - chain1.oldLogLikelihood);
+		if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+			String xml1 = chain1.state.toXML(0);
+			String xml2 = chain2.state.toXML(0);
+			chain1.setState(xml2);
+			chain2.setState(xml1);
+			swapsAccepted++;
+		}
+	}
+
+	private void setState(String xml) {
+		state.fromXML(xml);
+		state.setEverythingDirty(true);
+		oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+	}
+
+}
@@ -0,0 +1,113 @@
+package breath.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import breath.util.BinaryTreeLogWriter;
+
+@Description("Logs transmission tree with block counts, starts and ends in compact binary format to its own file. "
+		+ "Nothing is written to the log it is part of, so it can be added to any logger, which determines the log frequency. "
+		+ "Use BinaryTreeLogConverter to convert to Nexus; the tools in breath.util read the binary format directly.")
+public class BinaryTransmissionTreeLogger extends BEASTObject implements Loggable {
+    final public Input<TreeInterface> treeInput = new Input<>("tree", "transmission tree to be logged", Validate.REQUIRED);
+    final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+    final public Input<String> fileNameInput = new Input<>("fileName", "name of binary tree log file", Validate.REQUIRED);
+
+    private Tree tree;
+    private RealParameter blockStartFraction;
+    private RealParameter blockEndFraction;
+    private IntegerParameter blockCount;
+    private int [] count;
+    private double [] start;
+    private double [] end;
+    private BinaryTreeLogWriter writer;
+
+    @Override
+	public void initAndValidate() {
+    	tree = (Tree) treeInput.get();
+    	blockStartFraction = blockStartFractionInput.get();
+    	blockEndFraction = blockEndFractionInput.get();
+    	blockCount = blockCountInput.get();
+    	int n = tree.getNodeCount();
+    	count = new int[n];
+    	start = new double[n];
+    	end = new double[n];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		File file = new File(fileNameInput.get());
+		boolean append = false;
+		if (file.exists()) {
+			switch (Logger.FILE_MODE) {
+			case only_new:
+			case only_new_or_exit:
+				throw new IllegalArgumentException("Trying to write to file " + file.getPath() + " but it already exists. "
+						+ "Use -overwrite to overwrite or -resume to append.");
+			case resume:
+				// a new stream with its own header is appended, which the reader accepts in the middle of the file,
+				// once the stream left by the interrupted run is terminated and stripped of any incomplete record
+				try {
+					int count = BinaryTreeLogWriter.rewrite(file);
+					Log.warning("Resuming binary tree log " + file.getPath() + " after " + count + " trees");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				append = true;
+				break;
+			default:
+				break;
+			}
+		}
+		List<String> taxa = new ArrayList<>();
+		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+			taxa.add(tree.getNode(i).getID());
+		}
+		try {
+			Log.warning("Writing binary tree log " + file.getPath());
+			writer = new BinaryTreeLogWriter(new FileOutputStream(file, append), taxa, tree.getNodeCount());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		for (int i = 0; i < count.length; i++) {
+			count[i] = blockCount.getValue(i);
+			start[i] = blockStartFraction.getValue(i);
+			end[i] = blockEndFraction.getValue(i);
+		}
+		try {
+			writer.write(sample, tree, count, start, end);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package breath.logger;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.Operator;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.distribution.TransmissionTreeLikelihood.Component;
+import breath.distribution.TransmissionTreeLikelihood.RejectionCause;
+import breath.operator.ProposalTimer;
+import breath.operator.TimedOperator;
+
+@Description("Logs time spent in proposals of BREATH operators, how often the transmission tree likelihood "
+		+ "was negative infinity and why, and time spent in components of the likelihood. "
+		+ "A summary is reported at the end of the run.")
+public class ProfileLogger extends BEASTObject implements Loggable {
+	final public Input<List<Operator>> operatorsInput = new Input<>("operator", "operator to be profiled, must be one of the BREATH operators", new ArrayList<>());
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood to be profiled");
+
+	private List<Operator> operators;
+	private TransmissionTreeLikelihood likelihood;
+
+	@Override
+	public void initAndValidate() {
+		operators = new ArrayList<>();
+		for (Operator operator : operatorsInput.get()) {
+			if (operator instanceof TimedOperator) {
+				operators.add(operator);
+			} else {
+				Log.warning("Operator " + getName(operator) + " does not keep track of time and will not be profiled");
+			}
+		}
+		likelihood = likelihoodInput.get();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		for (Operator operator : operators) {
+			String name = getName(operator);
+			out.print(name + ".ms\t");
+			out.print(name + ".selfRejected\t");
+		}
+		if (likelihood != null) {
+			for (RejectionCause cause : RejectionCause.values()) {
+				out.print("rejected." + cause + "\t");
+			}
+			for (Component component : Component.values()) {
+				out.print("likelihood." + component + ".ms\t");
+			}
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		for (Operator operator : operators) {
+			ProposalTimer timer = ((TimedOperator) operator).getProposalTimer();
+			out.print(timer.getNanos() / 1e6 + "\t");
+			out.print(timer.getSelfRejectCount() + "\t");
+		}
+		if (likelihood != null) {
+			for (RejectionCause cause : RejectionCause.values()) {
+				out.print(likelihood.getRejectionCount(cause) + "\t");
+			}
+			for (Component component : Component.values()) {
+				out.print(likelihood.getComponentTime(component) / 1e6 + "\t");
+			}
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		Log.info(getReport());
+	}
+
+	/** end of run summary of the profile **/
+	public String getReport() {
+		StringBuilder b = new StringBuilder();
+		b.append("\nOperator profile\n");
+		b.append(String.format("%-40s %12s %12s %12s %12s %12s\n", "operator", "proposals", "total(ms)", "mean(us)", "selfReject", "accepted"));
+		for (Operator operator : operators) {
+			ProposalTimer timer = ((TimedOperator) operator).getProposalTimer();
+			long count = timer.getProposalCount();
+			b.append(String.format("%-40s %12d %12.1f %12.3f %12d %12d\n", getName(operator), count,
+					timer.getNanos() / 1e6, count > 0 ? timer.getNanos() / 1e3 / count : 0.0,
+					timer.getSelfRejectCount(), operator.get_m_nNrAccepted()));
+		}
+		if (likelihood != null) {
+			b.append("\nTransmission tree likelihood profile\n");
+			for (RejectionCause cause : RejectionCause.values()) {
+				b.append(String.format("%-40s %12d\n", "rejected: " + cause, likelihood.getRejectionCount(cause)));
+			}
+			for (Component component : Component.values()) {
+				b.append(String.format("%-40s %12.1f ms\n", "time: " + component, likelihood.getComponentTime(component) / 1e6));
+			}
+		}
+		return b.toString();
+	}
+
+	private String getName(Operator operator) {
+		if (operator.getID() != null) {
+			return operator.getID();
+		}
+		return operator.getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,196 @@
+package breath.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.util.InfectorOfLogger;
+import breath.util.OnlineHistogram;
+import breath.util.SparseWIWMatrix;
+
+@Description("Accumulates who infected who posterior probabilities and infection time distributions of sampled hosts "
+		+ "during MCMC, using the colouring cached by the transmission tree likelihood, so no infectorOf or tree log "
+		+ "needs to be post-processed. Every time the logger it is part of logs, a sample is added; "
+		+ "nothing is written to that log. A snapshot file is written periodically and at the end of the run, "
+		+ "together with a state file (snapshot file name + .state) from which accumulation continues when resuming. "
+		+ "Samples up to the one in the state file are skipped when resuming, so none are counted twice. Samples logged after the "
+		+ "state file was written but before the MCMC state was stored are lost, unless storeEvery matches that of the MCMC state.")
+public class WIWAccumulator extends BEASTObject implements Loggable {
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
+	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only, if false block counts are ignored", true);
+	final public Input<String> fileNameInput = new Input<>("fileName", "name of snapshot file", Validate.REQUIRED);
+	final public Input<Long> burninInput = new Input<>("burnin", "samples logged before this state number are ignored", 0L);
+	final public Input<Integer> snapshotEveryInput = new Input<>("snapshotEvery", "number of accumulated samples between writing snapshots", 100);
+	final public Input<Double> epsilonInput = new Input<>("epsilon", "maximum error in who infected who probabilities due to pruning rare infectors, "
+			+ "which bounds memory for large outbreaks. Use 0 for exact probabilities", 0.0);
+	final public Input<Integer> binCountInput = new Input<>("bins", "number of bins in each infection time histogram, should be even", 100);
+	final public Input<Integer> storeEveryInput = new Input<>("storeEvery", "also write the state file when the sample number is a multiple of storeEvery, "
+			+ "which should be the same as storeEvery of the MCMC state, so that no samples are lost when resuming. "
+			+ "Ignored if not positive, in which case the state file is only written with snapshots", -1);
+
+	private TransmissionTreeLikelihood likelihood;
+	private TreeInterface tree;
+	private IntegerParameter blockCount;
+	private RealParameter blockStartFraction;
+	private boolean directOnly;
+	private int [] infectedBy;
+	private SparseWIWMatrix matrix;
+	private OnlineHistogram [] infectionTimes;
+	// last sample accumulated, -1 if none
+	private long lastSample = -1;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		tree = likelihood.treeInput.get();
+		blockCount = likelihood.blockCountInput.get();
+		blockStartFraction = likelihood.blockStartFractionInput.get();
+		directOnly = directOnlyInput.get();
+		int n = tree.getLeafNodeCount();
+		infectedBy = new int[n];
+		matrix = new SparseWIWMatrix(n, epsilonInput.get());
+		infectionTimes = new OnlineHistogram[n];
+		for (int i = 0; i < n; i++) {
+			infectionTimes[i] = new OnlineHistogram(binCountInput.get(), Double.NaN);
+		}
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		// nothing is logged, but on resume the counts so far are restored
+		if (Logger.FILE_MODE == Logger.LogFileMode.resume) {
+			File stateFile = new File(fileNameInput.get() + ".state");
+			if (stateFile.exists()) {
+				readState(stateFile);
+			} else if (new File(fileNameInput.get()).exists()) {
+				throw new IllegalArgumentException("Cannot resume who infected who accumulation: snapshot " + fileNameInput.get()
+						+ " exists, but state file " + stateFile.getPath() + " does not");
+			}
+		}
+	}
+
+	private void readState(File stateFile) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+			lastSample = in.readLong();
+			matrix.read(in);
+			for (OnlineHistogram h : infectionTimes) {
+				h.read(in);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read state file " + stateFile.getPath() + ": " + e.getMessage());
+		}
+		Log.info("Resuming who infected who accumulation with " + matrix.getSampleCount() + " samples");
+	}
+
+	private void writeState() throws IOException {
+		File file = new File(fileNameInput.get() + ".state");
+		File tmp = new File(fileNameInput.get() + ".state.tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeLong(lastSample);
+			matrix.write(out);
+			for (OnlineHistogram h : infectionTimes) {
+				h.write(out);
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		if (sample < burninInput.get() || sample <= lastSample) {
+			// burn-in, or already accumulated before the run was resumed
+			return;
+		}
+		int [] colourAtBase = likelihood.getColouring();
+		InfectorOfLogger.calcInfectors(tree, colourAtBase, blockCount, directOnly, infectedBy);
+		matrix.add(infectedBy);
+
+		int n = infectedBy.length;
+		for (int i = 0; i < n; i++) {
+			// infection of leaf i is in the first block above it
+			Node node = tree.getNode(i);
+			while (!node.isRoot() && blockCount.getValue(node.getNr()) < 0) {
+				node = node.getParent();
+			}
+			double t = node.isRoot() ? node.getHeight() : node.getHeight() + node.getLength() * blockStartFraction.getValue(node.getNr());
+			infectionTimes[i].add(t);
+		}
+		lastSample = sample;
+
+		if (matrix.getSampleCount() % snapshotEveryInput.get() == 0) {
+			writeSnapshot();
+		} else if (storeEveryInput.get() > 0 && sample % storeEveryInput.get() == 0) {
+			try {
+				writeState();
+			} catch (IOException e) {
+				Log.warning("Could not write state file " + fileNameInput.get() + ".state: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * write who infected who probabilities as (infectee, infector, probability) triples of non-zero entries,
+	 * with infector 'unsampled' for unsampled infectors, followed by infection time summaries per host.
+	 * The file is replaced atomically, so it can be read while the run continues.
+	 * The state file used for resuming is written after it.
+	 */
+	private void writeSnapshot() {
+		File file = new File(fileNameInput.get());
+		File tmp = new File(fileNameInput.get() + ".tmp");
+		int n = infectedBy.length;
+		try (PrintStream out = new PrintStream(tmp)) {
+			out.println("# state " + lastSample + ", " + matrix.getSampleCount() + " samples");
+			out.println("infectee\tinfector\tprobability");
+			for (int i = 0; i < n; i++) {
+				final String infectee = tree.getNode(i).getID();
+				matrix.forEach(i, (j, p) -> {
+					out.println(infectee + "\t" + (j < n ? tree.getNode(j).getID() : "unsampled") + "\t" + p);
+				});
+			}
+			out.println();
+			out.println("host\tmeanInfectionTime\tstddev\t2.5%\tmedian\t97.5%");
+			for (int i = 0; i < n; i++) {
+				OnlineHistogram h = infectionTimes[i];
+				out.println(tree.getNode(i).getID() + "\t" + h.getMean() + "\t" + h.getStandardDeviation() + "\t" +
+						h.getQuantile(0.025) + "\t" + h.getQuantile(0.5) + "\t" + h.getQuantile(0.975));
+			}
+		} catch (IOException e) {
+			Log.warning("Could not write snapshot " + tmp.getPath() + ": " + e.getMessage());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writeState();
+		} catch (IOException e) {
+			Log.warning("Could not write snapshot " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		if (matrix.getSampleCount() > 0) {
+			writeSnapshot();
+			Log.info("Who infected who snapshot written to " + fileNameInput.get());
+		}
+	}
+}
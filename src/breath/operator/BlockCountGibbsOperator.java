@@ -0,0 +1,83 @@
+package breath.operator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.TransmissionTreeLikelihood;
+
+@Description("Operator that resamples the number of infections inside a block from its full conditional "
+		+ "given the block boundaries, enumerating block counts 1 to maxCount")
+public class BlockCountGibbsOperator extends Operator {
+	final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood providing the block likelihood", Validate.REQUIRED);
+	final public Input<Integer> maxCountInput = new Input<>("maxCount", "maximum block count considered", 10);
+
+	private IntegerParameter blockCount;
+	private TransmissionTreeLikelihood likelihood;
+	private TreeInterface tree;
+	private int maxCount;
+
+	@Override
+	public void initAndValidate() {
+		blockCount = blockCountInput.get();
+		likelihood = likelihoodInput.get();
+		tree = likelihood.treeInput.get();
+		maxCount = Math.min(maxCountInput.get(), (int) Math.min(Integer.MAX_VALUE, blockCount.getUpper()));
+		if (maxCount < 1) {
+			throw new IllegalArgumentException("maxCount and upper bound of blockcount should be at least 1");
+		}
+	}
+
+	@Override
+	public double proposal() {
+		// only blocks with more than one infection: these have start < end, and
+		// any count 1...maxCount leaves the colouring and block boundaries valid.
+		// Going to or from count 0 changes the block boundaries, which is left to the BlockOperator
+		List<Integer> candidates = new ArrayList<>();
+		for (int i = 0; i < tree.getNodeCount() - 1; i++) {
+			if (blockCount.getValue(i) > 0) {
+				candidates.add(i);
+			}
+		}
+		if (candidates.size() == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		int i = candidates.get(Randomizer.nextInt(candidates.size()));
+		int current = blockCount.getValue(i);
+		if (current > maxCount) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// full conditional of block count given block boundaries
+		double [] logP = new double[maxCount];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 1; k <= maxCount; k++) {
+			logP[k - 1] = likelihood.getLogBlockLikelihood(i, k);
+			if (Double.isNaN(logP[k - 1])) {
+				logP[k - 1] = Double.NEGATIVE_INFINITY;
+			}
+			max = Math.max(max, logP[k - 1]);
+		}
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double [] p = new double[maxCount];
+		for (int k = 0; k < maxCount; k++) {
+			p[k] = Math.exp(logP[k] - max);
+		}
+		int proposed = Randomizer.randomChoicePDF(p) + 1;
+		blockCount.setValue(i, proposed);
+
+		// the proposal cancels the block likelihood in the acceptance ratio, so only
+		// the prior on block counts remains, which is uniform within bounds by default
+		return logP[current - 1] - logP[proposed - 1];
+	}
+
+}
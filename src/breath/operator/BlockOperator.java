@@ -16,7 +16,7 @@ import beast.base.util.Randomizer;
 import breath.distribution.ColourProvider;
 
 @Description("Operator that moves block parameters of a transmission tree")
-public class BlockOperator extends Operator {
+public class BlockOperator extends Operator implements TimedOperator {
 	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
 	final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
 	final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
@@ -82,8 +82,20 @@ public class BlockOperator extends Operator {
 
 	}
 
+	private final ProposalTimer timer = new ProposalTimer();
+
+	@Override
+	public ProposalTimer getProposalTimer() {
+		return timer;
+	}
+
 	@Override
 	public double proposal() {
+		long start = System.nanoTime();
+		return timer.record(start, doProposal());
+	}
+
+	private double doProposal() {
 //		if (true)
 //			if (Randomizer.nextBoolean()) {
 //				int [] i = chooseInfectionToRemove();
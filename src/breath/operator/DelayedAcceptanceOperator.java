@@ -0,0 +1,160 @@
+package breath.operator;
+
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+import breath.distribution.GammaHazardFunction;
+import breath.distribution.TransmissionTreeLikelihood;
+
+@Description("Operator that wraps around another operator and screens its proposals with delayed acceptance: "
+		+ "first on the cheap part of the transmission tree likelihood (colouring validity, branch length thresholds, "
+		+ "transmission likelihood), and only proposals that pass this stage get the full posterior (including "
+		+ "coalescent) evaluated")
+public class DelayedAcceptanceOperator extends Operator {
+	final public Input<Operator> operatorInput = new Input<>("operator", "operator to be wrapped", Validate.REQUIRED);
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood used for screening proposals", Validate.REQUIRED);
+
+	private Operator operator;
+	private TransmissionTreeLikelihood likelihood;
+
+	private long screenedOut = 0;
+	private long invalid = 0;
+
+	// cheap part of the posterior of the current state, valid while the likelihood version equals cachedVersion
+	private double cachedLogP;
+	private long cachedVersion = -1;
+	// cheap part of the posterior of the last proposed state
+	private double proposedLogP;
+
+	@Override
+	public void initAndValidate() {
+		operator = operatorInput.get();
+		likelihood = likelihoodInput.get();
+
+		// the screening stage reads hazard function parameters directly, which are only
+		// updated after the proposal, so proposals on these would be screened with stale values
+		List<StateNode> stateNodes = operator.listStateNodes();
+		for (GammaHazardFunction hazard : new GammaHazardFunction[]{likelihood.samplingHazardInput.get(), likelihood.transmissionHazardInput.get()}) {
+			for (Function f : new Function[]{hazard.scaleInput.get(), hazard.shapeInput.get(), hazard.rate_trInput.get(), hazard.constantInput.get()}) {
+				if (f != null && stateNodes.contains(f)) {
+					throw new IllegalArgumentException("Operator " + operator.getID() + " changes hazard function parameter " + ((StateNode) f).getID()
+							+ ", which cannot be screened by " + getClass().getSimpleName());
+				}
+			}
+		}
+	}
+
+	@Override
+	public double proposal() {
+		// cheap part of the posterior for the current state, only recalculated
+		// when another operator changed the state since it was cached
+		if (cachedVersion != likelihood.getVersion()) {
+			cachedLogP = likelihood.calculateLogPWithoutCoalescent();
+			cachedVersion = likelihood.getVersion();
+		}
+		double logPOld = cachedLogP;
+		proposedLogP = Double.NaN;
+
+		double logHR = operator.proposal();
+		if (Double.isNaN(logHR) || logHR == Double.NEGATIVE_INFINITY) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		if (logPOld == Double.NEGATIVE_INFINITY) {
+			// current state is not valid, so nothing to screen against
+			return logHR;
+		}
+
+		// first stage: accept with probability min(1, pi*(x')q(x|x') / pi*(x)q(x'|x))
+		// where pi* is the cheap part of the posterior
+		double logPNew = likelihood.calculateLogPWithoutCoalescent();
+		proposedLogP = logPNew;
+		if (logPNew == Double.NEGATIVE_INFINITY) {
+			invalid++;
+			return Double.NEGATIVE_INFINITY;
+		}
+		double logAlpha = logPNew - logPOld + logHR;
+		if (logAlpha < 0 && Randomizer.nextDouble() > Math.exp(logAlpha)) {
+			screenedOut++;
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// second stage: MCMC accepts with probability min(1, pi(x')pi*(x) / pi(x)pi*(x'))
+		return logPOld - logPNew;
+	}
+
+	/** number of proposals rejected in the first stage because the colouring was invalid **/
+	public long getInvalidCount() {
+		return invalid;
+	}
+
+	/** number of valid proposals rejected in the first stage **/
+	public long getScreenedOutCount() {
+		return screenedOut;
+	}
+
+	@Override
+	public double getCoercableParameterValue() {
+		return operator.getCoercableParameterValue();
+	}
+
+	@Override
+	public void setCoercableParameterValue(double value) {
+		operator.setCoercableParameterValue(value);
+	}
+
+	@Override
+	public String getPerformanceSuggestion() {
+		return operator.getPerformanceSuggestion();
+	}
+
+	@Override
+	public void accept() {
+		if (!Double.isNaN(proposedLogP)) {
+			// the proposed state is now the current state
+			cachedLogP = proposedLogP;
+			cachedVersion = likelihood.getVersion();
+		}
+		operator.accept();
+		super.accept();
+	}
+
+	@Override
+	public void reject() {
+		operator.reject();
+		super.reject();
+	}
+
+	@Override
+	public void reject(int reason) {
+		operator.reject(reason);
+		super.reject(reason);
+	}
+
+	@Override
+	public void optimize(double logAlpha) {
+		operator.optimize(logAlpha);
+	}
+
+	@Override
+	public double getTargetAcceptanceProbability() {
+		return operator.getTargetAcceptanceProbability();
+	}
+
+	@Override
+	public List<StateNode> listStateNodes() {
+		return operator.listStateNodes();
+	}
+
+	@Override
+	public void setOperatorSchedule(OperatorSchedule operatorSchedule) {
+		operator.setOperatorSchedule(operatorSchedule);
+		super.setOperatorSchedule(operatorSchedule);
+	}
+}
@@ -16,7 +16,7 @@ import breath.distribution.TransmissionTreeLikelihood;
 import breath.distribution.Validator;
 
 @Description("Operator that randomly picks an infection and moves it elsewhere")
-public class InfectionMover extends Operator {
+public class InfectionMover extends Operator implements TimedOperator {
     final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
     final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
@@ -44,8 +44,20 @@ public class InfectionMover extends Operator {
 
     final static boolean debug = false;
 
+    private final ProposalTimer timer = new ProposalTimer();
+
+    @Override
+    public ProposalTimer getProposalTimer() {
+        return timer;
+    }
+
     @Override
     public double proposal() {
+        long start = System.nanoTime();
+        return timer.record(start, doProposal());
+    }
+
+    private double doProposal() {
 
         if (false) {
             // randomly pick internal node
@@ -21,7 +21,7 @@ import breath.distribution.Validator;
 import breath.logger.ColouredTreeLogger;
 
 @Description("Operator that randomly picks an infection and moves it elsewhere")
-public class InfectionMover2 extends Operator {
+public class InfectionMover2 extends Operator implements TimedOperator {
 	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
     final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
@@ -47,9 +47,16 @@ public class InfectionMover2 extends Operator {
     final static boolean debug = false;
     int [][] stats = new int[3][3];
     
+	private final ProposalTimer timer = new ProposalTimer();
+
+	@Override
+	public ProposalTimer getProposalTimer() {
+		return timer;
+	}
+
 	@Override
 	public double proposal() {
-		
+		long start = System.nanoTime();
 		
 		int pre = blockCount.getValue(0);
 		double logHR = doproposal();
@@ -85,7 +92,7 @@ public class InfectionMover2 extends Operator {
 //		String newick = logger.toString();
 //		System.out.println(newick);
 		
-		return logHR;
+		return timer.record(start, logHR);
 	}
 	
 	private void updateStats(int pre, int post) {
@@ -11,7 +11,7 @@ import beast.base.inference.operator.kernel.KernelDistribution;
 import beast.base.inference.parameter.RealParameter;
 
 @Description("Move both origin and root height at the same time")
-public class OriginAndRootHeightMover extends Operator {
+public class OriginAndRootHeightMover extends Operator implements TimedOperator {
     final public Input<RealParameter> originInput = new Input<>("origin", "time at which the study start above the root of tree. Assumed to be at root if not specified");
     final public Input<TreeInterface> treeInput = new Input<>("tree", "tree over which to calculate a prior or likelihood");
     final public Input<Double> scaleFactorInput = new Input<>("scaleFactor", "scaling factor: range from 0 to 1. Close to zero is very large jumps, close to 1.0 is very small jumps.", 0.75);
@@ -41,8 +41,20 @@ public class OriginAndRootHeightMover extends Operator {
     	setCoercableParameterValue(scaleFactorInput.get());
 	}
 
+	private final ProposalTimer timer = new ProposalTimer();
+
+	@Override
+	public ProposalTimer getProposalTimer() {
+		return timer;
+	}
+
 	@Override
 	public double proposal() {
+		long start = System.nanoTime();
+		return timer.record(start, doProposal());
+	}
+
+	private double doProposal() {
         final Node root = tree.getRoot();                    
         final double scale = getScaler(root.getNr(), root.getHeight());
         final double newHeight = root.getHeight() * scale;
@@ -0,0 +1,35 @@
+package breath.operator;
+
+/** keeps track of time spent in proposals of an operator, and how often the operator rejected its own proposal **/
+public class ProposalTimer {
+	private long proposalCount = 0;
+	private long selfRejectCount = 0;
+	private long nanos = 0;
+
+	/**
+	 * record a proposal that started at time startNanos (as given by System.nanoTime())
+	 * @return logHR, so this can wrap a return statement
+	 */
+	public double record(long startNanos, double logHR) {
+		nanos += System.nanoTime() - startNanos;
+		proposalCount++;
+		if (logHR == Double.NEGATIVE_INFINITY || Double.isNaN(logHR)) {
+			selfRejectCount++;
+		}
+		return logHR;
+	}
+
+	public long getProposalCount() {
+		return proposalCount;
+	}
+
+	/** number of proposals where the operator returned negative infinity itself **/
+	public long getSelfRejectCount() {
+		return selfRejectCount;
+	}
+
+	/** total time spent in proposals in nano seconds **/
+	public long getNanos() {
+		return nanos;
+	}
+}
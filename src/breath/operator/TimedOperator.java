@@ -0,0 +1,6 @@
+package breath.operator;
+
+/** operator that keeps track of time spent in its proposals **/
+public interface TimedOperator {
+	ProposalTimer getProposalTimer();
+}
@@ -0,0 +1,178 @@
+package breath.operator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.operator.TreeOperator;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.ColourProvider;
+
+@Description("Subtree prune and regraft operator for transmission trees. "
+		+ "The block on the branch above the pruned subtree moves along with the subtree, "
+		+ "and the subtree is only regrafted at places where the colouring remains valid")
+public class TransmissionSPR extends TreeOperator {
+	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+
+	private RealParameter blockStartFraction;
+	private RealParameter blockEndFraction;
+	private IntegerParameter blockCount;
+
+	@Override
+	public void initAndValidate() {
+		blockStartFraction = blockStartFractionInput.get();
+		blockEndFraction = blockEndFractionInput.get();
+		blockCount = blockCountInput.get();
+	}
+
+	@Override
+	public double proposal() {
+		Tree tree = treeInput.get(this);
+		int n = tree.getLeafNodeCount();
+
+		// pick subtree to prune: the branch above its parent should not contain
+		// an infection, so that removing the parent does not merge two blocks
+		List<Node> candidates = getPruneCandidates(tree);
+		if (candidates.size() == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		Node i = candidates.get(Randomizer.nextInt(candidates.size()));
+		Node p = i.getParent();
+		Node s = getOtherChild(p, i);
+		Node g = p.getParent();
+
+		int [] colourAtBase = new int[tree.getNodeCount()];
+		if (!ColourProvider.getColour(tree.getRoot(), blockCount, n, colourAtBase)) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// pick branch to regraft on
+		List<Node> targets = getRegraftTargets(tree, i, colourAtBase);
+		if (targets.size() == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		Node j = targets.get(Randomizer.nextInt(targets.size()));
+		Node jP = j.getParent();
+
+		double newLower = getLowerBound(i, j);
+		double newRange = jP.getHeight() - newLower;
+		double newHeight = newLower + Randomizer.nextDouble() * newRange;
+		double oldRange = g.getHeight() - getLowerBound(i, s);
+
+		double oldLengthI = i.getLength();
+		double oldLengthS = s.getLength();
+		double oldLengthJ = j.getLength();
+
+		// prune and regraft
+		replace(g, p, s);
+		replace(p, s, j);
+		replace(jP, j, p);
+		p.setHeight(newHeight);
+
+		// blocks on sibling and target branch stay at the same time,
+		// the block on the pruned branch keeps its fractions
+		rescaleBlock(s, oldLengthS);
+		rescaleBlock(j, oldLengthJ);
+
+		// Hastings ratio: probability of selecting reverse move over forward move
+		List<Node> reverseCandidates = getPruneCandidates(tree);
+		if (!ColourProvider.getColour(tree.getRoot(), blockCount, n, colourAtBase)) {
+			// should not happen
+			return Double.NEGATIVE_INFINITY;
+		}
+		List<Node> reverseTargets = getRegraftTargets(tree, i, colourAtBase);
+		if (!reverseTargets.contains(s)) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		double logHR = Math.log(candidates.size()) - Math.log(reverseCandidates.size())
+				+ Math.log(targets.size()) - Math.log(reverseTargets.size())
+				+ Math.log(newRange) - Math.log(oldRange);
+
+		// volume change of block on pruned branch, as in TreeWrapOperator
+		int bc = blockCount.getValue(i.getNr());
+		if (bc == 0) {
+			logHR += Math.log(i.getLength()) - Math.log(oldLengthI);
+		} else if (bc > 0) {
+			logHR += 2 * (Math.log(i.getLength()) - Math.log(oldLengthI));
+		}
+		return logHR;
+	}
+
+	/** nodes that can be pruned: not the root, parent not the root, and no infection above parent **/
+	private List<Node> getPruneCandidates(Tree tree) {
+		List<Node> candidates = new ArrayList<>();
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isRoot() && !node.getParent().isRoot() && blockCount.getValue(node.getParent().getNr()) < 0) {
+				candidates.add(node);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * branches on which the subtree below i can be regrafted, such that
+	 * o the regraft point can be above the block on the target branch, and
+	 * o if there is no infection on the branch above i and the host at the top of the
+	 *   subtree is sampled, the host at the regraft point is not sampled
+	 * The sibling branch is excluded since it only changes the height of the parent of i.
+	 */
+	private List<Node> getRegraftTargets(Tree tree, Node i, int [] colourAtBase) {
+		int n = tree.getLeafNodeCount();
+		Node p = i.getParent();
+		boolean [] inSubtree = new boolean[tree.getNodeCount()];
+		for (Node node : i.getAllChildNodesAndSelf()) {
+			inSubtree[node.getNr()] = true;
+		}
+		int topColour = colourAtBase[i.getNr()];
+		boolean topSampled = blockCount.getValue(i.getNr()) < 0 && topColour < n && inSubtree[topColour];
+
+		List<Node> targets = new ArrayList<>();
+		for (Node j : tree.getNodesAsArray()) {
+			if (j.isRoot() || inSubtree[j.getNr()] || j == p || j.getParent() == p) {
+				continue;
+			}
+			Node jP = j.getParent();
+			if (jP.getHeight() <= getLowerBound(i, j)) {
+				continue;
+			}
+			if (topSampled) {
+				// colour at regraft point is the colour of the parent of j
+				int colour = colourAtBase[jP.getNr()];
+				if (colour < n && !inSubtree[colour]) {
+					continue;
+				}
+			}
+			targets.add(j);
+		}
+		return targets;
+	}
+
+	/** lowest height at which the subtree below i can be attached to the branch above j **/
+	private double getLowerBound(Node i, Node j) {
+		double lower = j.getHeight();
+		if (blockCount.getValue(j.getNr()) >= 0) {
+			lower += j.getLength() * blockEndFraction.getValue(j.getNr());
+		}
+		return Math.max(i.getHeight(), lower);
+	}
+
+	/** keep block on branch above node at the same time after its branch length changed **/
+	private void rescaleBlock(Node node, double oldLength) {
+		int k = node.getNr();
+		if (blockCount.getValue(k) < 0) {
+			return;
+		}
+		double scale = oldLength / node.getLength();
+		blockStartFraction.setValue(k, blockStartFraction.getValue(k) * scale);
+		blockEndFraction.setValue(k, blockEndFraction.getValue(k) * scale);
+	}
+}
@@ -12,7 +12,7 @@ import beast.base.inference.StateNode;
 import beast.base.inference.parameter.IntegerParameter;
 
 @Description("Operator that wraps around a tree operator, taking in account the volume change for blocks when branch lengths change")
-public class TreeWrapOperator extends Operator {
+public class TreeWrapOperator extends Operator implements TimedOperator {
 	
 	final public Input<Operator> operatorInput = new Input<>("operator","tree operator to be wrapped", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
@@ -29,8 +29,20 @@ public class TreeWrapOperator extends Operator {
     	tree = (TreeInterface) operator.getInput("tree").get();
 	}
 
+	private final ProposalTimer timer = new ProposalTimer();
+
+	@Override
+	public ProposalTimer getProposalTimer() {
+		return timer;
+	}
+
 	@Override
 	public double proposal() {
+		long start = System.nanoTime();
+		return timer.record(start, doProposal());
+	}
+
+	private double doProposal() {
 		double logHR = 0;
 		int n = tree.getNodeCount();
 		for (int i = 0; i < n - 1; i++) {
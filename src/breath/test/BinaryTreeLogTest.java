@@ -0,0 +1,176 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import breath.util.BinaryTreeLogConverter;
+import breath.util.BinaryTreeLogReader;
+import breath.util.BinaryTreeLogWriter;
+import breath.util.TransmissionTreeRecord;
+import breath.util.TreeLogReader;
+
+public class BinaryTreeLogTest {
+
+	final static String [] TREES = {
+		"((1[&blockcount=0,blockstart=0.25,blockend=0.75]:1.0,2[&blockcount=-1,blockstart=0.5,blockend=0.5]:2.0)[&blockcount=1,blockstart=0.1,blockend=0.9]:0.5,3[&blockcount=2,blockstart=0.2,blockend=0.4]:3.0)[&blockcount=-1,blockstart=0.5,blockend=0.5];",
+		// same topology, different heights and blocks
+		"((1[&blockcount=-1,blockstart=0.5,blockend=0.5]:1.5,2[&blockcount=0,blockstart=0.3,blockend=0.3]:2.5)[&blockcount=-1,blockstart=0.5,blockend=0.5]:0.5,3[&blockcount=0,blockstart=0.6,blockend=0.6]:4.0)[&blockcount=-1,blockstart=0.5,blockend=0.5];",
+		// different topology
+		"(1[&blockcount=0,blockstart=0.5,blockend=0.5]:2.0,(2[&blockcount=1,blockstart=0.2,blockend=0.8]:1.0,3[&blockcount=-1,blockstart=0.5,blockend=0.5]:0.5)[&blockcount=0,blockstart=0.7,blockend=0.7]:1.5)[&blockcount=-1,blockstart=0.5,blockend=0.5];"
+	};
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File nexus = File.createTempFile("breath", ".trees");
+		File binary = File.createTempFile("breath", ".btrees");
+		File nexus2 = File.createTempFile("breath", ".trees");
+		nexus.deleteOnExit();
+		binary.deleteOnExit();
+		nexus2.deleteOnExit();
+		writeNexus(nexus);
+
+		convert(nexus, binary);
+		assertTrue(BinaryTreeLogReader.isBinaryTreeLog(binary));
+		assertFalse(BinaryTreeLogReader.isBinaryTreeLog(nexus));
+		assertEquals(TREES.length, BinaryTreeLogReader.countRecords(binary));
+
+		convert(binary, nexus2);
+		assertFalse(BinaryTreeLogReader.isBinaryTreeLog(nexus2));
+
+		List<TransmissionTreeRecord> original = read(nexus);
+		List<TransmissionTreeRecord> roundTrip = read(nexus2);
+		assertEquals(TREES.length, roundTrip.size());
+		for (int k = 0; k < TREES.length; k++) {
+			TransmissionTreeRecord r1 = original.get(k);
+			TransmissionTreeRecord r2 = roundTrip.get(k);
+			assertArrayEquals(r1.blockCount, r2.blockCount);
+			assertArrayEquals(r1.blockStart, r2.blockStart, 1e-12);
+			assertArrayEquals(r1.blockEnd, r2.blockEnd, 1e-12);
+			for (int i = 0; i < r1.tree.getNodeCount(); i++) {
+				Node n1 = r1.tree.getNode(i);
+				Node n2 = r2.tree.getNode(i);
+				assertEquals(n1.getID(), n2.getID());
+				assertEquals(n1.getHeight(), n2.getHeight(), 1e-12);
+				assertEquals(n1.isRoot() ? -1 : n1.getParent().getNr(), n2.isRoot() ? -1 : n2.getParent().getNr());
+			}
+		}
+
+		// the reader rebuilds the tree only when the topology changes
+		try (BinaryTreeLogReader reader = new BinaryTreeLogReader(binary)) {
+			assertTrue(reader.next());
+			assertTrue(reader.isTopologyChanged());
+			assertTrue(reader.next());
+			assertFalse(reader.isTopologyChanged());
+			assertTrue(reader.next());
+			assertTrue(reader.isTopologyChanged());
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		File binary = File.createTempFile("breath", ".btrees");
+		binary.deleteOnExit();
+		Tree tree = new TreeParser("((A:1.0,B:1.0):0.5,C:1.5);");
+		List<String> taxa = new ArrayList<>();
+		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+			taxa.add(tree.getNode(i).getID());
+		}
+		int n = tree.getNodeCount();
+		int [] count = new int[n];
+		double [] start = new double[n];
+		double [] end = new double[n];
+		Arrays.fill(count, -1);
+		Arrays.fill(start, 0.5);
+		Arrays.fill(end, 0.5);
+
+		// interrupted run: the stream is flushed after every record, but never closed
+		BinaryTreeLogWriter writer = new BinaryTreeLogWriter(new FileOutputStream(binary), taxa, n);
+		long length = 0;
+		for (int k = 0; k < 3; k++) {
+			for (int i = 0; i < n; i++) {
+				start[i] = 0.1 * k + 0.01 * i;
+			}
+			length = binary.length();
+			writer.write(k * 1000, tree, count, start, end);
+		}
+		// the last record is cut short
+		byte [] bytes = Files.readAllBytes(binary.toPath());
+		Files.write(binary.toPath(), Arrays.copyOf(bytes, (int) (length + bytes.length) / 2));
+		assertEquals(2, BinaryTreeLogReader.countRecords(binary));
+
+		// resume, as BinaryTransmissionTreeLogger does
+		assertEquals(2, BinaryTreeLogWriter.rewrite(binary));
+		writer = new BinaryTreeLogWriter(new FileOutputStream(binary, true), taxa, n);
+		for (int k = 2; k < 4; k++) {
+			count[0] = k;
+			writer.write(k * 1000, tree, count, start, end);
+		}
+		writer.close();
+
+		assertEquals(4, BinaryTreeLogReader.countRecords(binary));
+		try (BinaryTreeLogReader reader = new BinaryTreeLogReader(binary)) {
+			for (int k = 0; k < 4; k++) {
+				assertTrue(reader.next());
+				assertEquals(k * 1000, reader.getSample());
+				assertEquals(k < 2 ? -1 : k, reader.getBlockCount()[0]);
+				assertEquals(tree.getRoot().getHeight(), reader.getTree().getRoot().getHeight(), 1e-12);
+			}
+			assertFalse(reader.next());
+		}
+	}
+
+	private void writeNexus(File file) throws IOException {
+		PrintStream out = new PrintStream(file);
+		out.println("#NEXUS\n");
+		out.println("Begin trees;");
+		out.println("\tTranslate");
+		out.println("\t\t1 A,");
+		out.println("\t\t2 B,");
+		out.println("\t\t3 C");
+		out.println(";");
+		for (int k = 0; k < TREES.length; k++) {
+			out.println("tree STATE_" + (k * 1000) + " = " + TREES[k]);
+		}
+		out.println("End;");
+		out.close();
+	}
+
+	private void convert(File in, File out) throws Exception {
+		BinaryTreeLogConverter converter = new BinaryTreeLogConverter();
+		converter.initByName("in", new TreeFile(in.getPath()), "out", new OutFile(out.getPath()));
+		converter.run();
+	}
+
+	private List<TransmissionTreeRecord> read(File file) throws IOException {
+		List<TransmissionTreeRecord> records = new ArrayList<>();
+		try (TreeLogReader reader = new TreeLogReader(file)) {
+			String newick;
+			while ((newick = reader.nextTree()) != null) {
+				Tree tree = reader.parse(newick);
+				TransmissionTreeRecord record = new TransmissionTreeRecord(null);
+				record.set(tree, records.size());
+				records.add(record);
+			}
+		}
+		return records;
+	}
+}
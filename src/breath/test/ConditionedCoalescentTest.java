@@ -0,0 +1,57 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.util.MersenneTwisterFast;
+import breath.util.ConditionedCoalescent;
+
+public class ConditionedCoalescentTest {
+
+	@Test
+	public void testTransitionProbabilities() {
+		// two lineages coalesce at rate 1
+		assertEquals(1 - Math.exp(-0.3), ConditionedCoalescent.transitionProbability(2, 1, 0.3), 1e-12);
+		assertEquals(Math.exp(-3 * 0.3), ConditionedCoalescent.transitionProbability(3, 3, 0.3), 1e-12);
+		for (int k = 2; k <= 20; k++) {
+			double sum = 0;
+			for (int j = 1; j <= k; j++) {
+				sum += ConditionedCoalescent.transitionProbability(k, j, 0.05);
+			}
+			assertEquals(1.0, sum, 1e-9);
+		}
+	}
+
+	@Test
+	public void testSampler() {
+		// two lineages at time 0: coalescent time is exponential truncated at end
+		double end = 0.5;
+		ConditionedCoalescent coalescent = new ConditionedCoalescent(new double[]{0, 0}, end);
+		assertTrue(coalescent.isValid());
+		assertEquals(Math.log(1 - Math.exp(-end)), coalescent.getLogProbabilityOfCoalescence(), 1e-12);
+
+		MersenneTwisterFast random = new MersenneTwisterFast(123);
+		int n = 100000;
+		double mean = 0;
+		for (int i = 0; i < n; i++) {
+			double [] times = coalescent.sample(random);
+			assertTrue(times[0] >= 0 && times[0] <= end);
+			mean += times[0] / n;
+		}
+		double expected = 1 - end * Math.exp(-end) / (1 - Math.exp(-end));
+		assertEquals(expected, mean, 0.005);
+
+		// staggered arrivals: all coalescences before end, in increasing order
+		coalescent = new ConditionedCoalescent(new double[]{0, 0, 0.1, 0.3, 0.3}, 0.8);
+		for (int i = 0; i < 1000; i++) {
+			double [] times = coalescent.sample(random);
+			assertEquals(4, times.length);
+			for (int j = 1; j < times.length; j++) {
+				assertTrue(times[j] >= times[j - 1]);
+			}
+			assertTrue(times[0] >= 0 && times[3] >= 0.3 && times[3] <= 0.8);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import breath.inference.ConvergenceMonitor.BatchStatistics;
+
+public class ConvergenceMonitorTest {
+
+	@Test
+	public void testESSOfAR1() {
+		// AR(1) with coefficient phi has ESS n(1-phi)/(1+phi)
+		double phi = 0.5;
+		int n = 200000;
+		double expected = n * (1 - phi) / (1 + phi);
+		double meanRatio = 0;
+		for (int seed = 1; seed <= 10; seed++) {
+			Random random = new Random(seed);
+			BatchStatistics stats = new BatchStatistics();
+			double x = 0;
+			for (int i = 0; i < n; i++) {
+				x = phi * x + random.nextGaussian();
+				stats.add(x);
+			}
+			double ratio = stats.getESS() / expected;
+			assertTrue(ratio > 0.65 && ratio < 1.35, "ESS ratio " + ratio);
+			assertEquals(1.0, stats.getSplitRhat(), 0.01);
+			meanRatio += ratio / 10;
+		}
+		assertEquals(1.0, meanRatio, 0.1);
+	}
+
+	@Test
+	public void testShift() {
+		// first half at 0, second half at 1, with noise
+		Random random = new Random(1);
+		BatchStatistics stats = new BatchStatistics();
+		for (int i = 0; i < 10000; i++) {
+			stats.add((i < 5000 ? 0 : 1) + 0.1 * random.nextGaussian());
+		}
+		assertTrue(stats.getSplitRhat() > 1.1);
+	}
+
+	@Test
+	public void testConstant() {
+		// a chain that does not move is not informative, so never passes
+		BatchStatistics stats = new BatchStatistics();
+		for (int i = 0; i < 10000; i++) {
+			stats.add(3.7);
+		}
+		assertTrue(stats.isConstant());
+		assertTrue(Double.isNaN(stats.getESS()));
+		assertTrue(Double.isNaN(stats.getSplitRhat()));
+	}
+}
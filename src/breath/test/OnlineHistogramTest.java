@@ -0,0 +1,98 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import breath.util.OnlineHistogram;
+
+public class OnlineHistogramTest {
+
+	@Test
+	public void testQuantiles() {
+		// uniform values on [0,1000), so the range grows while adding and bins get merged
+		Random random = new Random(1);
+		OnlineHistogram h = new OnlineHistogram(100, Double.NaN);
+		int n = 100000;
+		double [] values = new double[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = 1000.0 * i / n;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			double tmp = values[i]; values[i] = values[j]; values[j] = tmp;
+		}
+		for (double x : values) {
+			h.add(x);
+		}
+		assertEquals(n, h.getCount());
+		assertEquals(Arrays.stream(values).average().getAsDouble(), h.getMean(), 1e-9);
+		assertEquals(1000 / Math.sqrt(12), h.getStandardDeviation(), 0.1);
+		// quantiles are accurate up to the bin width
+		assertTrue(h.getBinWidth() <= 1000.0 / 50);
+		assertEquals(25, h.getQuantile(0.025), h.getBinWidth());
+		assertEquals(500, h.getQuantile(0.5), h.getBinWidth());
+		assertEquals(975, h.getQuantile(0.975), h.getBinWidth());
+	}
+
+	@Test
+	public void testBatchAdd() {
+		OnlineHistogram h1 = new OnlineHistogram(10, Double.NaN);
+		OnlineHistogram h2 = new OnlineHistogram(10, Double.NaN);
+		for (int x = 1; x <= 5; x++) {
+			h1.add(x, x);
+			for (int k = 0; k < x; k++) {
+				h2.add(x);
+			}
+		}
+		assertEquals(h2.getCount(), h1.getCount());
+		assertEquals(h2.getMean(), h1.getMean(), 1e-12);
+		assertEquals(h2.getStandardDeviation(), h1.getStandardDeviation(), 1e-12);
+		assertEquals(h2.getQuantile(0.5), h1.getQuantile(0.5), 1e-12);
+	}
+
+	@Test
+	public void testMerge() {
+		// histograms with different ranges, so different bin widths
+		Random random = new Random(2);
+		OnlineHistogram h1 = new OnlineHistogram(100, Double.NaN);
+		OnlineHistogram h2 = new OnlineHistogram(100, Double.NaN);
+		OnlineHistogram all = new OnlineHistogram(100, Double.NaN);
+		h1.add(0, 1000);
+		all.add(0, 1000);
+		for (int i = 0; i < 10000; i++) {
+			double x1 = 10 * random.nextDouble();
+			double x2 = 100 * random.nextDouble();
+			h1.add(x1);
+			h2.add(x2);
+			all.add(x1);
+			all.add(x2);
+		}
+		h1.add(h2);
+		assertEquals(all.getCount(), h1.getCount());
+		assertEquals(all.getMean(), h1.getMean(), 1e-9);
+		assertEquals(all.getStandardDeviation(), h1.getStandardDeviation(), 1e-9);
+		assertEquals(0.0, h1.getQuantile(0.04));
+		for (double p : new double[]{0.1, 0.5, 0.9}) {
+			assertEquals(all.getQuantile(p), h1.getQuantile(p), h1.getBinWidth() + h2.getBinWidth());
+		}
+	}
+
+	@Test
+	public void testZeros() {
+		// mostly zeros: lower quantiles are exactly 0, not interpolated inside the first bin
+		OnlineHistogram h = new OnlineHistogram(100, Double.NaN);
+		h.add(0, 90);
+		for (int x = 1; x <= 10; x++) {
+			h.add(x);
+		}
+		assertEquals(0.0, h.getQuantile(0.025));
+		assertEquals(0.0, h.getQuantile(0.5));
+		assertEquals(0.0, h.getQuantile(0.9));
+		assertTrue(h.getQuantile(0.95) > 0);
+	}
+}
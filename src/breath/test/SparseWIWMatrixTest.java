@@ -0,0 +1,150 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import breath.util.SparseWIWMatrix;
+
+public class SparseWIWMatrixTest {
+
+	final static int N = 50;
+
+	/** infector of host i: mostly a few likely infectors, sometimes any host or unsampled (-1) **/
+	private int [] sample(Random random) {
+		int [] infectedBy = new int[N];
+		for (int i = 0; i < N; i++) {
+			double u = random.nextDouble();
+			if (u < 0.6) {
+				infectedBy[i] = (i + 1) % N;
+			} else if (u < 0.8) {
+				infectedBy[i] = -1;
+			} else {
+				infectedBy[i] = random.nextInt(N);
+			}
+		}
+		return infectedBy;
+	}
+
+	@Test
+	public void testExact() {
+		Random random = new Random(1);
+		SparseWIWMatrix matrix = new SparseWIWMatrix(N, 0);
+		long [][] dense = new long[N][N + 1];
+		int samples = 10000;
+		for (int k = 0; k < samples; k++) {
+			int [] infectedBy = sample(random);
+			matrix.add(infectedBy);
+			for (int i = 0; i < N; i++) {
+				dense[i][infectedBy[i] < 0 ? N : infectedBy[i]]++;
+			}
+		}
+		assertEquals(samples, matrix.getSampleCount());
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j <= N; j++) {
+				assertEquals((double) dense[i][j] / samples, matrix.get(i, j), 1e-15);
+			}
+			assertEquals(matrix.get(i, N), matrix.get(i, -1));
+		}
+	}
+
+	@Test
+	public void testLossy() {
+		Random random = new Random(2);
+		double epsilon = 0.01;
+		SparseWIWMatrix exact = new SparseWIWMatrix(N, 0);
+		SparseWIWMatrix lossy = new SparseWIWMatrix(N, epsilon);
+		for (int k = 0; k < 20000; k++) {
+			int [] infectedBy = sample(random);
+			exact.add(infectedBy);
+			lossy.add(infectedBy);
+		}
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j <= N; j++) {
+				double p = exact.get(i, j);
+				double estimate = lossy.get(i, j);
+				// counts are only ever underestimated, by at most epsilon
+				assertTrue(estimate <= p);
+				assertTrue(p - estimate <= epsilon, "error " + (p - estimate) + " for " + i + " infected by " + j);
+				if (p >= epsilon) {
+					assertTrue(estimate > 0);
+				}
+			}
+		}
+		// rare infectors are pruned
+		assertTrue(lossy.getEntryCount() < exact.getEntryCount());
+	}
+
+	@Test
+	public void testRow() {
+		Random random = new Random(3);
+		SparseWIWMatrix matrix = new SparseWIWMatrix(N, 0);
+		for (int k = 0; k < 1000; k++) {
+			matrix.add(sample(random));
+		}
+		double [] row = new double[N + 1];
+		for (int i = 0; i < N; i++) {
+			matrix.getRow(i, row);
+			double sum = 0;
+			for (int j = 0; j <= N; j++) {
+				assertEquals(matrix.get(i, j), row[j]);
+				sum += row[j];
+			}
+			// every sample has an infector for every infectee
+			assertEquals(1.0, sum, 1e-12);
+			final int infectee = i;
+			int [] entries = new int[1];
+			matrix.forEach(i, (infector, p) -> {
+				assertTrue(p > 0);
+				assertEquals(matrix.get(infectee, infector), p);
+				entries[0]++;
+			});
+			int nonZero = 0;
+			for (double p : row) {
+				if (p > 0) {
+					nonZero++;
+				}
+			}
+			assertEquals(nonZero, entries[0]);
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		Random random = new Random(4);
+		SparseWIWMatrix matrix = new SparseWIWMatrix(N, 0.01);
+		SparseWIWMatrix reference = new SparseWIWMatrix(N, 0.01);
+		for (int k = 0; k < 5000; k++) {
+			int [] infectedBy = sample(random);
+			matrix.add(infectedBy);
+			reference.add(infectedBy);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		matrix.write(out);
+		out.close();
+		SparseWIWMatrix restored = new SparseWIWMatrix(N, 0.01);
+		restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		// continuing accumulation after reading gives the same result as without interruption
+		for (int k = 0; k < 5000; k++) {
+			int [] infectedBy = sample(random);
+			restored.add(infectedBy);
+			reference.add(infectedBy);
+		}
+		assertEquals(reference.getSampleCount(), restored.getSampleCount());
+		assertEquals(reference.getEntryCount(), restored.getEntryCount());
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j <= N; j++) {
+				assertEquals(reference.get(i, j), restored.get(i, j));
+			}
+		}
+	}
+}
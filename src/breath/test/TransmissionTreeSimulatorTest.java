@@ -0,0 +1,105 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import beastfx.app.util.OutFile;
+import breath.util.TransmissionTreeSimulator;
+
+public class TransmissionTreeSimulatorTest {
+
+	final static int TAXON_COUNT = 5;
+	final static int TREE_COUNT = 2000;
+	final static Pattern BLOCK_COUNT = Pattern.compile("blockcount=(-?[0-9]+)");
+
+	@Test
+	public void testLargeEpidemic() throws Exception {
+		double [][] small = simulate(false);
+		double [][] large = simulate(true);
+
+		// every sampled host has one leaf, so leaves are separated by infections
+		for (double infections : large[0]) {
+			assertTrue(infections >= TAXON_COUNT - 1, "only " + infections + " infections in tree with " + TAXON_COUNT + " taxa");
+		}
+
+		// both modes sample trees from the same distribution
+		for (int k = 0; k < 2; k++) {
+			double mean1 = mean(small[k]), mean2 = mean(large[k]);
+			double se = Math.sqrt(variance(small[k]) / TREE_COUNT + variance(large[k]) / TREE_COUNT);
+			assertEquals(mean1, mean2, 4 * se, (k == 0 ? "infection count" : "tree height") + " differs");
+		}
+	}
+
+	/** @return number of infections and tree height of every simulated tree **/
+	private double [][] simulate(boolean largeEpidemic) throws Exception {
+		File trees = File.createTempFile("breath", ".trees");
+		File trace = File.createTempFile("breath", ".log");
+		trees.deleteOnExit();
+		trace.deleteOnExit();
+		TransmissionTreeSimulator simulator = new TransmissionTreeSimulator();
+		simulator.initByName("out", new OutFile(trees.getPath()), "trace", new OutFile(trace.getPath()),
+				"taxonCount", TAXON_COUNT, "treeCount", TREE_COUNT, "seed", 123L,
+				"largeEpidemic", largeEpidemic, "quiet", true);
+		simulator.run();
+
+		double [][] stats = new double[2][];
+		stats[0] = new double[TREE_COUNT];
+		List<String> newicks = readLines(trees);
+		assertEquals(TREE_COUNT, newicks.size());
+		for (int i = 0; i < TREE_COUNT; i++) {
+			Matcher m = BLOCK_COUNT.matcher(newicks.get(i));
+			while (m.find()) {
+				stats[0][i] += Integer.parseInt(m.group(1)) + 1;
+			}
+		}
+
+		stats[1] = new double[TREE_COUNT];
+		List<String> lines = readLines(trace);
+		int column = Arrays.asList(lines.get(0).split("\t")).indexOf("Tree.height");
+		for (int i = 0; i < TREE_COUNT; i++) {
+			stats[1][i] = Double.parseDouble(lines.get(i + 1).split("\t")[column]);
+		}
+		return stats;
+	}
+
+	private List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader fin = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = fin.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	private double mean(double [] x) {
+		double sum = 0;
+		for (double d : x) {
+			sum += d;
+		}
+		return sum / x.length;
+	}
+
+	private double variance(double [] x) {
+		double m = mean(x), sum = 0;
+		for (double d : x) {
+			sum += (d - m) * (d - m);
+		}
+		return sum / (x.length - 1);
+	}
+}
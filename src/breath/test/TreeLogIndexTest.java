@@ -0,0 +1,77 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.Test;
+
+import breath.util.TreeLogIndex;
+
+public class TreeLogIndexTest {
+
+	final static String [] TREES = {
+		"((1:1.0,2:1.0):0.5,3:1.5);",
+		"((1:2.0,3:2.0):0.5,2:2.5);",
+		"(1:2.0,(2:1.0,3:1.0):1.0);",
+		"((1:0.5,2:0.5):2.0,3:2.5);"
+	};
+
+	@Test
+	public void testIndex() throws Exception {
+		File file = File.createTempFile("breath", ".trees");
+		File indexFile = new File(file.getPath() + ".idx");
+		file.deleteOnExit();
+		indexFile.deleteOnExit();
+		writeNexus(file, TREES.length);
+
+		try (TreeLogIndex index = TreeLogIndex.get(file)) {
+			assertEquals(TREES.length, index.size());
+			for (int i = 0; i < TREES.length; i++) {
+				assertEquals(TREES[i], index.getNewick(i));
+				assertTrue(index.getLine(i).startsWith("tree STATE_" + (i * 1000)));
+			}
+			assertEquals(0, index.getBurnin(0));
+			assertEquals(1, index.getBurnin(25));
+			assertEquals(2, index.getBurnin(50));
+		}
+		assertTrue(indexFile.exists());
+
+		// the sidecar file is reused while the log is unchanged
+		long indexModified = indexFile.lastModified();
+		try (TreeLogIndex index = TreeLogIndex.get(file)) {
+			assertEquals(TREES.length, index.size());
+			assertEquals(TREES[2], index.getNewick(2));
+		}
+		assertEquals(indexModified, indexFile.lastModified());
+
+		// and rebuilt once the log has changed
+		writeNexus(file, TREES.length - 1);
+		file.setLastModified(indexModified + 2000);
+		try (TreeLogIndex index = TreeLogIndex.get(file)) {
+			assertEquals(TREES.length - 1, index.size());
+			assertEquals(TREES[1], index.getNewick(1));
+		}
+	}
+
+	private void writeNexus(File file, int treeCount) throws IOException {
+		PrintStream out = new PrintStream(new FileOutputStream(file));
+		out.println("#NEXUS\n");
+		out.println("Begin trees;");
+		out.println("\tTranslate");
+		out.println("\t\t1 A,");
+		out.println("\t\t2 B,");
+		out.println("\t\t3 C");
+		out.println(";");
+		for (int k = 0; k < treeCount; k++) {
+			// indented and Windows line endings are also recognised
+			out.print((k % 2 == 0 ? "" : "\t") + "tree STATE_" + (k * 1000) + " = " + TREES[k] + (k == 1 ? "\r\n" : "\n"));
+		}
+		out.println("End;");
+		out.close();
+	}
+}
@@ -0,0 +1,136 @@
+package breath.util;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+import beastfx.app.tools.Application;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+
+@Description("Converts transmission tree log in binary format (as produced by BinaryTransmissionTreeLogger) to Nexus, "
+		+ "or a Nexus transmission tree log with block count, start and end annotations to binary format. "
+		+ "The direction is determined from the format of the input file.")
+public class BinaryTreeLogConverter extends Runnable {
+	final public Input<TreeFile> srcInput = new Input<>("in", "source tree log, either binary or Nexus", Validate.REQUIRED);
+	final public Input<OutFile> outputInput = new Input<>("out", "output file", Validate.REQUIRED);
+	final public Input<String> partitionInput = new Input<>("partition", "name of the partition appended to `blockcount, blockend and blockstart`, only used when converting from Nexus");
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		int count;
+		if (BinaryTreeLogReader.isBinaryTreeLog(srcInput.get())) {
+			Log.warning("Converting binary tree log to Nexus file " + outputInput.get().getPath());
+			count = toNexus();
+		} else {
+			Log.warning("Converting Nexus tree log to binary file " + outputInput.get().getPath());
+			count = toBinary();
+		}
+		Log.warning("Converted " + count + " trees");
+		Log.warning("Done");
+	}
+
+	private int toBinary() throws Exception {
+		int count = 0;
+		BinaryTreeLogWriter writer = null;
+		TransmissionTreeRecord record = new TransmissionTreeRecord(partitionInput.get());
+		try (TreeLogReader reader = new TreeLogReader(srcInput.get())) {
+			String newick;
+			while ((newick = reader.nextTree()) != null) {
+				Tree tree = reader.parse(newick);
+				record.set(tree, count);
+				if (writer == null) {
+					if (record.isPoorlyMatched()) {
+						Log.warning("WARNING: not much metadata matched: did you specify the 'partition'?");
+					}
+					List<String> taxa = new ArrayList<>();
+					for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+						taxa.add(tree.getNode(i).getID());
+					}
+					writer = new BinaryTreeLogWriter(new FileOutputStream(outputInput.get()), taxa, tree.getNodeCount());
+				}
+				writer.write(reader.getSampleNr(), tree, record.blockCount, record.blockStart, record.blockEnd);
+				count++;
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		return count;
+	}
+
+	private int toNexus() throws Exception {
+		int count = 0;
+		try (BinaryTreeLogReader reader = new BinaryTreeLogReader(srcInput.get());
+				PrintStream out = new PrintStream(outputInput.get())) {
+			List<String> taxa = reader.getTaxa();
+			out.println("#NEXUS\n");
+			out.println("Begin taxa;");
+			out.println("\tDimensions ntax=" + taxa.size() + ";");
+			out.println("\t\tTaxlabels");
+			for (String taxon : taxa) {
+				out.println("\t\t\t" + taxon);
+			}
+			out.println("\t\t\t;");
+			out.println("End;");
+			out.println("Begin trees;");
+			out.println("\tTranslate");
+			for (int i = 0; i < taxa.size(); i++) {
+				out.print("\t\t\t" + (i + 1) + " " + taxa.get(i));
+				out.println(i < taxa.size() - 1 ? "," : "");
+			}
+			out.println(";");
+
+			StringBuilder b = new StringBuilder();
+			while (reader.next()) {
+				b.setLength(0);
+				b.append("tree STATE_").append(reader.getSample()).append(" = ");
+				toNewick(reader.getTree().getRoot(), reader, b);
+				b.append(';');
+				out.println(b);
+				count++;
+			}
+			out.println("End;");
+		}
+		return count;
+	}
+
+	private void toNewick(Node node, BinaryTreeLogReader reader, StringBuilder b) {
+		if (!node.isLeaf()) {
+			b.append('(');
+			for (int i = 0; i < node.getChildCount(); i++) {
+				if (i > 0) {
+					b.append(',');
+				}
+				toNewick(node.getChild(i), reader, b);
+			}
+			b.append(')');
+		} else {
+			b.append(node.getNr() + 1);
+		}
+		int i = node.getNr();
+		b.append("[&blockcount=").append(reader.getBlockCount()[i])
+			.append(",blockend=").append(reader.getBlockEnd()[i])
+			.append(",blockstart=").append(reader.getBlockStart()[i]).append(']');
+		if (!node.isRoot()) {
+			b.append(':').append(node.getLength());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new BinaryTreeLogConverter(), "Binary Tree Log Converter", args);
+	}
+}
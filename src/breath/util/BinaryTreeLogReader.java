@@ -0,0 +1,247 @@
+package breath.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Reads transmission tree logs in the binary format written by BinaryTreeLogWriter.
+ * Nodes and arrays are reused between records, and the tree is only rebuilt when its
+ * topology changes, so returned trees and arrays are only valid till the next call to next().
+ */
+public class BinaryTreeLogReader implements AutoCloseable {
+	private DataInputStream in;
+
+	private List<String> taxa;
+	private int nodeCount;
+	private long sample;
+	private int [] parentCode;
+	private double [] height;
+	private int [] blockCount;
+	private double [] blockStart;
+	private double [] blockEnd;
+	private Node [] nodes;
+	private Tree tree;
+	private boolean topologyChanged;
+
+	public BinaryTreeLogReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		if (in.readByte() != BinaryTreeLogWriter.HEADER) {
+			throw new IllegalArgumentException("Not a binary tree log: " + file.getPath());
+		}
+		readHeader();
+	}
+
+	/** @return true if file looks like a binary tree log, false if it is not, e.g. for a Nexus file **/
+	public static boolean isBinaryTreeLog(File file) {
+		try (InputStream raw = new FileInputStream(file)) {
+			if (raw.read() != 0x1f || raw.read() != 0x8b) {
+				// not gzipped
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+			return in.readByte() == BinaryTreeLogWriter.HEADER && in.readInt() == BinaryTreeLogWriter.MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		if (in.readInt() != BinaryTreeLogWriter.MAGIC) {
+			throw new IllegalArgumentException("Binary tree log is corrupted: header expected");
+		}
+		int version = in.readInt();
+		if (version > BinaryTreeLogWriter.VERSION) {
+			throw new IllegalArgumentException("Binary tree log has version " + version + " but only versions up to " +
+					BinaryTreeLogWriter.VERSION + " are supported");
+		}
+		int leafCount = in.readInt();
+		int nodeCount = in.readInt();
+		List<String> taxa = new ArrayList<>();
+		for (int i = 0; i < leafCount; i++) {
+			taxa.add(in.readUTF());
+		}
+		if (this.taxa != null) {
+			// repeated header, e.g. after resuming a run
+			if (!this.taxa.equals(taxa) || this.nodeCount != nodeCount) {
+				throw new IllegalArgumentException("Binary tree log contains trees with different taxa");
+			}
+			return;
+		}
+		this.taxa = taxa;
+		this.nodeCount = nodeCount;
+		parentCode = new int[nodeCount];
+		height = new double[nodeCount];
+		blockCount = new int[nodeCount];
+		blockStart = new double[nodeCount];
+		blockEnd = new double[nodeCount];
+		nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = new Node();
+			nodes[i].setNr(i);
+			if (i < leafCount) {
+				nodes[i].setID(taxa.get(i));
+			}
+		}
+	}
+
+	/**
+	 * move to next record
+	 * @return false if there are no more records
+	 */
+	public boolean next() throws IOException {
+		return next(true);
+	}
+
+	/** @param parse whether to parse the record, or skip over it without building the tree **/
+	private boolean next(boolean parse) throws IOException {
+		try {
+			while (true) {
+				int tag = in.read();
+				if (tag < 0) {
+					return false;
+				}
+				if (tag == BinaryTreeLogWriter.HEADER) {
+					readHeader();
+				} else if (tag == BinaryTreeLogWriter.RECORD) {
+					if (parse) {
+						readRecord();
+					} else {
+						skipRecord();
+					}
+					return true;
+				} else {
+					throw new IllegalArgumentException("Binary tree log is corrupted: unexpected tag " + tag);
+				}
+			}
+		} catch (EOFException e) {
+			// last record was not completely written, e.g. because the run was interrupted
+			Log.warning("WARNING: binary tree log ends with an incomplete record, which is ignored");
+			return false;
+		} catch (ZipException e) {
+			// the compressed stream was not terminated, and something else was appended to it,
+			// e.g. by resuming an interrupted run with a version that did not rewrite the log first
+			Log.warning("WARNING: binary tree log is corrupted after the last complete record, the remainder is ignored: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void readRecord() throws IOException {
+		sample = in.readLong();
+		int changeCount = in.readInt();
+		for (int k = 0; k < changeCount; k++) {
+			int i = in.readInt();
+			parentCode[i] = in.readInt();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			height[i] = in.readDouble();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			blockCount[i] = in.readInt();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			blockStart[i] = in.readDouble();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			blockEnd[i] = in.readDouble();
+		}
+
+		topologyChanged = changeCount > 0 || tree == null;
+		if (topologyChanged) {
+			buildTree();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i].setHeight(height[i]);
+		}
+	}
+
+	private void skipRecord() throws IOException {
+		in.readLong();
+		int changeCount = in.readInt();
+		// changes are (int, int) pairs; per node a height, block count, block start and block end
+		long remaining = changeCount * 8L + nodeCount * (8L + 4L + 8L + 8L);
+		while (remaining > 0) {
+			int skipped = in.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				// skipBytes does not distinguish end of file from a stream that is temporarily empty
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private void buildTree() {
+		for (Node node : nodes) {
+			node.removeAllChildren(false);
+		}
+		Node root = null;
+		Node [] children = new Node[2 * nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			if (parentCode[i] < 0) {
+				root = nodes[i];
+			} else {
+				children[parentCode[i]] = nodes[i];
+			}
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			for (int j = 0; j < 2; j++) {
+				if (children[2 * i + j] != null) {
+					nodes[i].addChild(children[2 * i + j]);
+				}
+			}
+		}
+		if (root == null) {
+			throw new IllegalArgumentException("Binary tree log is corrupted: tree without root");
+		}
+		root.setParent(null);
+		tree = new Tree(root);
+	}
+
+	/** fill record with tree and block parameters of the current sample **/
+	public void fill(TransmissionTreeRecord record, int sampleIndex) {
+		record.set(tree, sampleIndex, blockCount, blockStart, blockEnd);
+	}
+
+	/** @return number of complete records in the file, skipping over records without parsing them **/
+	public static int countRecords(File file) throws IOException {
+		int count = 0;
+		try (BinaryTreeLogReader reader = new BinaryTreeLogReader(file)) {
+			while (reader.next(false)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public List<String> getTaxa() {return taxa;}
+	public int getNodeCount() {return nodeCount;}
+	public long getSample() {return sample;}
+	public Tree getTree() {return tree;}
+	public boolean isTopologyChanged() {return topologyChanged;}
+	public int [] getBlockCount() {return blockCount;}
+	public double [] getBlockStart() {return blockStart;}
+	public double [] getBlockEnd() {return blockEnd;}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
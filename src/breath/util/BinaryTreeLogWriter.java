@@ -0,0 +1,145 @@
+package breath.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Writes transmission trees in compact binary format, read by BinaryTreeLogReader.
+ *
+ * The stream is gzip compressed and consists of a header followed by records, one per sample.
+ * Header: tag 'H', magic number, version, leaf count, node count, and the taxon names of leafs
+ * in node number order.
+ * Record: tag 'R', sample number, topology changes since the previous record as (node nr, parent code)
+ * pairs, where the parent code is -1 for the root and 2 * parent nr + child index otherwise, followed
+ * by node heights, block counts, block starts and block ends for all nodes in node number order.
+ * The first record after a header lists the parent codes of all nodes. A header may be repeated,
+ * e.g. when a run is resumed and appended to an existing log. In that case, the log should be
+ * rewritten first, since a stream that was not closed cannot be followed by another.
+ */
+public class BinaryTreeLogWriter implements AutoCloseable {
+	final static byte HEADER = 'H';
+	final static byte RECORD = 'R';
+	final static int MAGIC = 0x4252544C; // "BRTL"
+	final static int VERSION = 1;
+
+	private DataOutputStream out;
+	private int nodeCount;
+	private int [] parentCode;
+	private int [] prevParentCode;
+	private int [] changed;
+
+	public BinaryTreeLogWriter(OutputStream out, List<String> taxa, int nodeCount) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out, true)));
+		this.nodeCount = nodeCount;
+		parentCode = new int[nodeCount];
+		prevParentCode = new int[nodeCount];
+		// make sure all nodes are listed in the first record
+		Arrays.fill(prevParentCode, Integer.MIN_VALUE);
+		changed = new int[nodeCount];
+
+		this.out.writeByte(HEADER);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		this.out.writeInt(taxa.size());
+		this.out.writeInt(nodeCount);
+		for (String taxon : taxa) {
+			this.out.writeUTF(taxon);
+		}
+	}
+
+	/**
+	 * write tree with block counts, starts and ends indexed by node number.
+	 * Block parameters of the root are ignored.
+	 */
+	public void write(long sample, Tree tree, int [] blockCount, double [] blockStart, double [] blockEnd) throws IOException {
+		if (tree.getNodeCount() != nodeCount) {
+			throw new IllegalArgumentException("Expected tree with " + nodeCount + " nodes, but got " + tree.getNodeCount());
+		}
+		Node [] nodes = tree.getNodesAsArray();
+		int changeCount = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			Node node = nodes[i];
+			if (node.isRoot()) {
+				parentCode[i] = -1;
+			} else {
+				Node parent = node.getParent();
+				parentCode[i] = 2 * parent.getNr() + (parent.getChild(0) == node ? 0 : 1);
+			}
+			if (parentCode[i] != prevParentCode[i]) {
+				changed[changeCount++] = i;
+			}
+		}
+
+		out.writeByte(RECORD);
+		out.writeLong(sample);
+		out.writeInt(changeCount);
+		for (int k = 0; k < changeCount; k++) {
+			out.writeInt(changed[k]);
+			out.writeInt(parentCode[changed[k]]);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeDouble(nodes[i].getHeight());
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeInt(blockCount[i]);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeDouble(blockStart[i]);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeDouble(blockEnd[i]);
+		}
+		out.flush();
+
+		int [] tmp = prevParentCode;
+		prevParentCode = parentCode;
+		parentCode = tmp;
+	}
+
+	/**
+	 * Rewrite log with its complete records only, as a single properly terminated compressed stream,
+	 * so that another stream can be appended. A run that was interrupted never closed its stream, and
+	 * may have left an incomplete record, and readers cannot continue past either of these.
+	 * @return number of records kept
+	 */
+	public static int rewrite(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		int count = 0;
+		BinaryTreeLogReader reader;
+		try {
+			reader = new BinaryTreeLogReader(file);
+		} catch (EOFException e) {
+			// not even the header was written
+			Files.delete(file.toPath());
+			return 0;
+		}
+		try (BinaryTreeLogWriter writer = new BinaryTreeLogWriter(new FileOutputStream(tmp), reader.getTaxa(), reader.getNodeCount())) {
+			while (reader.next()) {
+				writer.write(reader.getSample(), reader.getTree(), reader.getBlockCount(), reader.getBlockStart(), reader.getBlockEnd());
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
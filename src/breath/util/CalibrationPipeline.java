@@ -0,0 +1,363 @@
+package breath.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Logger;
+import beast.base.inference.Runnable;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+import beastfx.app.tools.Application;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.XMLFile;
+import breath.distribution.ColourProvider;
+
+@Description("Simulation based calibration of who infected who: simulates transmission trees, "
+		+ "runs an MCMC analysis for each of them in-process and calculates coverage of infectors, "
+		+ "replacing the chain TransmissionTreeSimulator, BEAST, TransmissionTree2InfectorOfLog and InfectedByCoverageCalculator. "
+		+ "Replicates run in parallel threads. Each finished replicate leaves a small summary file in the output directory, "
+		+ "so a pipeline that is restarted skips replicates that are done already.")
+public class CalibrationPipeline extends Runnable {
+	final public Input<TransmissionTreeSimulator> simulatorInput = new Input<>("simulator", "simulator for generating the true transmission trees", Validate.REQUIRED);
+	final public Input<XMLFile> xmlInput = new Input<>("xml", "BEAST XML file for analysing a single tree. "
+			+ "$(newick) is replaced by the simulated tree (without meta data, to be parsed with IsLabelledNewick=\"true\" and adjustTipHeights=\"false\"), "
+			+ "$(filebase) by the name of the replicate, $(taxonCount) and $(nodeCount) by the number of leafs and nodes in the tree, "
+			+ "$(endTime) by the end time and $(seed) by the random number seed of the replicate. "
+			+ "The trace log should be called $(filebase).log and contain an InfectorOfLogger", Validate.REQUIRED);
+	final public Input<Integer> replicatesInput = new Input<>("replicates", "number of replicates = simulated trees to analyse", 100);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of replicates analysed in parallel. "
+			+ "With more than 1 thread, the analyses share the random number generator, so they are not reproducible", 1);
+	final public Input<File> dirInput = new Input<>("dir", "directory for XML, log and summary files of replicates", new File("."));
+	final public Input<Long> seedInput = new Input<>("seed", "random number seed used for simulating trees");
+	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trace log to used as burn-in (and will be ignored)", 10);
+	final public Input<Double> coverageInput = new Input<>("coverage", "percentage of coverage to be tested against (between 0 and 100, default 95)", 95.0);
+	final public Input<String> tagInput = new Input<>("tag", "name of the entry in log files containing infector of information", "infectorOf");
+	final public Input<Boolean> includeUnsampledInput = new Input<>("includeUnsampled", "include unsampled infectors in true-vs-inferred plot", true);
+	final public Input<Integer> binCountInput = new Input<>("bins", "number of bins=bars to use for the chart", 10);
+	final public Input<Boolean> keepLogsInput = new Input<>("keepLogs", "keep XML, log and state files of replicates. If false, they are deleted once a replicate is summarised", true);
+	final public Input<OutFile> outputInput = new Input<>("out", "output file with coverage per replicate, or stdout if not specified", new OutFile("[[none]]"));
+	final public Input<OutFile> pngFileInput = new Input<>("png", "name of file to write bar-chart plot", new OutFile("[[none]]"));
+
+	private final static String SUMMARY_EXTENSION = ".coverage";
+
+	/** coverage of a single replicate: covered flags per leaf and contributions to the true-vs-inferred bins **/
+	static class Replicate {
+		int [] covered;
+		int [] truebins;
+		int [] totals;
+		double [] probsPerBin;
+
+		Replicate(int n, int binCount) {
+			covered = new int[n];
+			truebins = new int[binCount];
+			totals = new int[binCount];
+			probsPerBin = new double[binCount];
+		}
+	}
+
+	private String template;
+	private TransmissionTreeSimulator simulator;
+	private TransmissionTreeSimulator.Model model;
+	private long seed;
+	private int maxTaxonCount;
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		simulator = simulatorInput.get();
+		template = new String(Files.readAllBytes(xmlInput.get().toPath()));
+		File dir = dirInput.get();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Could not create directory " + dir.getPath());
+		}
+		int replicateCount = replicatesInput.get();
+		int binCount = binCountInput.get();
+		seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+		model = simulator.new Model();
+		int taxonCount = simulator.taxonCountInput.get();
+		maxTaxonCount = taxonCount > 0 ? taxonCount : simulator.maxTaxonCountInput.get();
+		if (maxTaxonCount <= 0) {
+			maxTaxonCount = Integer.MAX_VALUE;
+		}
+		// replicates share the log directory, and may be rerun after a restart
+		Logger.LogFileMode fileMode = Logger.FILE_MODE;
+		Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+		try {
+			runReplicates(replicateCount, binCount);
+		} finally {
+			Logger.FILE_MODE = fileMode;
+		}
+	}
+
+	private void runReplicates(int replicateCount, int binCount) throws Exception {
+		Replicate [] replicates = new Replicate[replicateCount];
+		int done = 0;
+		for (int i = 0; i < replicateCount; i++) {
+			replicates[i] = readSummary(summaryFile(i), binCount);
+			if (replicates[i] != null) {
+				done++;
+			}
+		}
+		if (done > 0) {
+			Log.warning("Skipping " + done + " replicates that were completed before");
+		}
+
+		// only as many replicates as there are threads are in memory at any time
+		int threads = Math.max(1, threadsInput.get());
+		if (threads > 1) {
+			Log.warning("Analyses running in parallel share the random number generator, so replicates are not reproducible from the seed");
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+		int submitted = 0;
+		try {
+			for (int i = 0; i < replicateCount; i++) {
+				if (replicates[i] == null) {
+					final int index = i;
+					completion.submit(() -> {
+						replicates[index] = runReplicate(index, binCount);
+						return index;
+					});
+					submitted++;
+				}
+			}
+			for (int k = 0; k < submitted; k++) {
+				int i;
+				try {
+					i = completion.take().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+				done++;
+				Log.warning("Replicate " + i + " done (" + done + " out of " + replicateCount + ")");
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		report(replicates, binCount);
+	}
+
+	/** simulate tree, infer its colouring and summarise the coverage **/
+	private Replicate runReplicate(int i, int binCount) throws Exception {
+		TransmissionTreeSimulator.SimulatedTree simulated = simulator.simulate(model, i, seed, maxTaxonCount);
+		String newick = simulated.getNewick();
+
+		// true infectors, numbered the same way as in the analysis
+		TreeParser tree = new TreeParser(newick);
+		int n = tree.getLeafNodeCount();
+		IntegerParameter blockCount = new IntegerParameter();
+		blockCount.initByName("dimension", tree.getNodeCount(), "value", "-1");
+		for (int j = 0; j < tree.getNodeCount(); j++) {
+			Node node = tree.getNode(j);
+			Object o = node.getMetaData("blockcount");
+			if (o != null) {
+				blockCount.setValue(j, (int)(double) o);
+			}
+		}
+		int [] colourAtBase = new int[tree.getNodeCount()];
+		ColourProvider.getColour(tree.getRoot(), blockCount, n, colourAtBase);
+		int [] infectedBy = new int[n];
+		InfectorOfLogger.calcInfectors(tree, colourAtBase, blockCount, simulator.directOnlyInput.get(), infectedBy);
+
+		// run analysis
+		String filebase = replicateBase(i);
+		String xml = template
+				.replace("$(newick)", newick.replaceAll("\\[&[^\\]]*\\]", ""))
+				.replace("$(filebase)", filebase)
+				.replace("$(taxonCount)", n + "")
+				.replace("$(nodeCount)", tree.getNodeCount() + "")
+				.replace("$(endTime)", -simulated.h + "")
+				.replace("$(seed)", replicateSeed(i) + "");
+		File xmlFile = new File(filebase + ".xml");
+		FileWriter outfile = new FileWriter(xmlFile);
+		outfile.write(xml);
+		outfile.close();
+		Runnable analysis = new XMLParser().parseFile(xmlFile);
+		analysis.setStateFile(filebase + ".xml.state", false);
+		if (threadsInput.get() <= 1) {
+			// analyses run one at a time, so each can have its own seed
+			Randomizer.setSeed(replicateSeed(i));
+		}
+		analysis.run();
+
+		// summarise
+		File logFile = new File(filebase + ".log");
+		if (!logFile.exists()) {
+			throw new IllegalArgumentException("Expected trace log " + logFile.getPath() + " -- is the log file in the XML called $(filebase).log?");
+		}
+		// only the infector columns are parsed
+		List<String> labels = ColumnTraceReader.readLabels(logFile);
+		int first = labels.indexOf(tagInput.get() + ".1");
+		if (first < 0) {
+			throw new IllegalArgumentException("Could not find " + tagInput.get() + ".1 in " + logFile.getPath());
+		}
+		double [][] trace = ColumnTraceReader.read(logFile, burnInPercentageInput.get(), first, n);
+		Replicate replicate = new Replicate(n, binCount);
+		for (int j = 1; j <= n; j++) {
+			boolean covered = InfectedByCoverageCalculator.calcCoverage(infectedBy[j - 1], trace[j - 1], n,
+					coverageInput.get(), includeUnsampledInput.get(), replicate.truebins, replicate.totals, replicate.probsPerBin);
+			replicate.covered[j - 1] = covered ? 1 : 0;
+		}
+		writeSummary(summaryFile(i), replicate);
+
+		if (!keepLogsInput.get()) {
+			xmlFile.delete();
+			logFile.delete();
+			new File(filebase + ".xml.state").delete();
+		}
+		return replicate;
+	}
+
+	/** seed of the analysis of replicate i, from a stream separate from those of the simulated trees **/
+	private long replicateSeed(int i) {
+		return TransmissionTreeSimulator.seedFor(Long.reverse(seed), i);
+	}
+
+	private String replicateBase(int i) {
+		return new File(dirInput.get(), "replicate" + i).getPath();
+	}
+
+	private File summaryFile(int i) {
+		return new File(replicateBase(i) + SUMMARY_EXTENSION);
+	}
+
+	/** summary is written to a temporary file first, so an interrupted run never leaves a partial summary **/
+	private void writeSummary(File file, Replicate replicate) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		PrintStream out = new PrintStream(tmp);
+		out.println(join(replicate.covered));
+		out.println(join(replicate.truebins));
+		out.println(join(replicate.totals));
+		StringBuilder b = new StringBuilder();
+		for (double d : replicate.probsPerBin) {
+			b.append(d).append('\t');
+		}
+		out.println(b.toString().trim());
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Replicate readSummary(File file, int binCount) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		BufferedReader fin = new BufferedReader(new FileReader(file));
+		String [] covered = split(fin.readLine());
+		String [] truebins = split(fin.readLine());
+		String [] totals = split(fin.readLine());
+		String [] probs = split(fin.readLine());
+		fin.close();
+		if (truebins.length != binCount) {
+			throw new IllegalArgumentException("Summary " + file.getPath() + " has " + truebins.length + " bins instead of " + binCount + ": remove it, or use the same number of bins");
+		}
+		Replicate replicate = new Replicate(covered.length, binCount);
+		for (int i = 0; i < covered.length; i++) {
+			replicate.covered[i] = Integer.parseInt(covered[i]);
+		}
+		for (int i = 0; i < binCount; i++) {
+			replicate.truebins[i] = Integer.parseInt(truebins[i]);
+			replicate.totals[i] = Integer.parseInt(totals[i]);
+			replicate.probsPerBin[i] = Double.parseDouble(probs[i]);
+		}
+		return replicate;
+	}
+
+	/** tab separated values, none for an empty line, e.g. for a replicate without sampled hosts **/
+	private String [] split(String line) {
+		line = line.trim();
+		return line.length() == 0 ? new String[0] : line.split("\t");
+	}
+
+	private String join(int [] values) {
+		StringBuilder b = new StringBuilder();
+		for (int i : values) {
+			b.append(i).append('\t');
+		}
+		return b.toString().trim();
+	}
+
+	/** coverage per replicate, and bins as reported by InfectedByCoverageCalculator **/
+	private void report(Replicate [] replicates, int binCount) throws IOException {
+		PrintStream out = System.out;
+		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			Log.warning("Writing to file " + outputInput.get().getPath());
+			out = new PrintStream(outputInput.get());
+		}
+		int [] truebins = new int[binCount];
+		int [] totals = new int[binCount];
+		double [] probsPerBin = new double[binCount];
+		int covered = 0, count = 0;
+		out.println("Sample\tCovered");
+		for (int i = 0; i < replicates.length; i++) {
+			Replicate replicate = replicates[i];
+			out.print(i + "\t");
+			for (int c : replicate.covered) {
+				out.print(c + "\t");
+				covered += c;
+				count++;
+			}
+			out.println();
+			for (int x = 0; x < binCount; x++) {
+				truebins[x] += replicate.truebins[x];
+				totals[x] += replicate.totals[x];
+				probsPerBin[x] += replicate.probsPerBin[x];
+			}
+		}
+		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			out.close();
+		}
+
+		for (int x = 0; x < binCount; x++) {
+			probsPerBin[x] /= totals[x];
+		}
+		System.out.println();
+		System.out.println("coverage: " + covered + " out of " + count + " infectors (" + (100.0 * covered / count) + "%)");
+		System.out.println("totals: " + Arrays.toString(totals));
+		System.out.println("true: " + Arrays.toString(truebins));
+		System.out.print("Observed_probs: ");
+		for (int x = 0; x < binCount; x++) {
+			System.out.print((double) truebins[x] / totals[x] + (x < binCount - 1 ? ", " : ""));
+		}
+		System.out.print("\nExpected_probs: ");
+		for (int x = 0; x < binCount; x++) {
+			System.out.print(probsPerBin[x] + (x < binCount - 1 ? ", " : ""));
+		}
+		System.out.println();
+
+		if (pngFileInput.get() != null && !pngFileInput.get().getName().equals("[[none]]")) {
+			InfectedByCoverageCalculator.showCoveragePlot(truebins, totals, pngFileInput.get(), includeUnsampledInput.get());
+		}
+		Log.warning("Done");
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new CalibrationPipeline(), "Calibration pipeline", args);
+	}
+}
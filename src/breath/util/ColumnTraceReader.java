@@ -0,0 +1,160 @@
+package breath.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming reader for tab separated trace logs that only parses a range of columns,
+ * as a light weight alternative to LogAnalyser when only a few columns are of interest.
+ * Burn-in rows are skipped without being split into columns or parsed.
+ */
+public class ColumnTraceReader {
+
+	/** @return column labels of trace log, including the first (Sample) column **/
+	public static List<String> readLabels(File file) throws IOException {
+		try (BufferedReader fin = new BufferedReader(new FileReader(file))) {
+			String str;
+			while ((str = fin.readLine()) != null) {
+				if (!str.startsWith("#") && str.trim().length() > 0) {
+					return Arrays.asList(str.split("\t"));
+				}
+			}
+		}
+		throw new IllegalArgumentException("No header found in trace log " + file.getPath());
+	}
+
+	/**
+	 * @return index of first column with label starting with prefix, or -1 if there is none
+	 */
+	public static int indexOfPrefix(List<String> labels, String prefix) {
+		for (int i = 0; i < labels.size(); i++) {
+			if (labels.get(i).startsWith(prefix)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** callback for rows of a trace log **/
+	public interface RowConsumer {
+		/** @param values values of selected columns, only valid during the call **/
+		void accept(int row, double [] values) throws IOException;
+	}
+
+	/**
+	 * @param burnInPercentage percentage of rows to skip, as in LogAnalyser
+	 * @param firstColumn index of first column to read, where the Sample column has index 0
+	 * @param columnCount number of consecutive columns to read
+	 * @return values of the columns, indexed by column then row after burn-in
+	 */
+	public static double [][] read(File file, int burnInPercentage, int firstColumn, int columnCount) throws IOException {
+		int rowCount = countRows(file);
+		int burnin = burnInPercentage * rowCount / 100;
+		double [][] values = new double[columnCount][rowCount - burnin];
+		stream(file, burnin, rowCount, firstColumn, columnCount, (row, rowValues) -> {
+			for (int i = 0; i < columnCount; i++) {
+				values[i][row] = rowValues[i];
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Pass rows after burn-in to consumer one at a time, so memory does not depend on the length of the log.
+	 * @return number of rows passed to consumer
+	 */
+	public static int stream(File file, int burnInPercentage, int firstColumn, int columnCount, RowConsumer consumer) throws IOException {
+		int rowCount = countRows(file);
+		int burnin = burnInPercentage * rowCount / 100;
+		stream(file, burnin, rowCount, firstColumn, columnCount, consumer);
+		return rowCount - burnin;
+	}
+
+	private static void stream(File file, int burnin, int rowCount, int firstColumn, int columnCount, RowConsumer consumer) throws IOException {
+		int lastColumn = firstColumn + columnCount;
+		double [] values = new double[columnCount];
+
+		try (BufferedReader fin = new BufferedReader(new FileReader(file))) {
+			String str;
+			boolean headerSeen = false;
+			int row = 0;
+			while ((str = fin.readLine()) != null && row < rowCount) {
+				if (str.startsWith("#") || str.trim().length() == 0) {
+					continue;
+				}
+				if (!headerSeen) {
+					headerSeen = true;
+					continue;
+				}
+				if (row++ < burnin) {
+					continue;
+				}
+				// walk over tabs, only parsing the selected columns
+				int column = 0, start = 0;
+				while (column < lastColumn) {
+					int end = str.indexOf('\t', start);
+					if (end < 0) {
+						end = str.length();
+					}
+					if (column >= firstColumn) {
+						if (start >= str.length()) {
+							throw new IllegalArgumentException("Trace log " + file.getPath() + " has too few columns in row " + row);
+						}
+						values[column - firstColumn] = Double.parseDouble(str.substring(start, end));
+					}
+					column++;
+					start = end + 1;
+				}
+				consumer.accept(row - burnin - 1, values);
+			}
+		}
+	}
+
+	/**
+	 * count data rows without decoding lines: lines that are not blank, not comments and not the header,
+	 * with the same rule as stream, which skips lines starting with # or that are empty after trimming
+	 */
+	private static int countRows(File file) throws IOException {
+		int lines = 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			byte [] buf = new byte[1 << 16];
+			boolean atLineStart = true, comment = false, countLine = false;
+			int k;
+			while ((k = in.read(buf)) > 0) {
+				for (int i = 0; i < k; i++) {
+					byte b = buf[i];
+					if (b == '\n') {
+						if (countLine) {
+							lines++;
+						}
+						atLineStart = true;
+						comment = false;
+						countLine = false;
+						continue;
+					}
+					if (atLineStart) {
+						atLineStart = false;
+						comment = b == '#';
+					}
+					// String.trim removes characters up to and including space; bytes of multi-byte characters are negative
+					if (!comment && (b < 0 || b > ' ')) {
+						countLine = true;
+					}
+				}
+			}
+			if (countLine) {
+				// last line without new line
+				lines++;
+			}
+		}
+		// do not count the header
+		return Math.max(0, lines - 1);
+	}
+}
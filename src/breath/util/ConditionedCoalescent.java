@@ -0,0 +1,262 @@
+package breath.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.util.MersenneTwisterFast;
+
+/**
+ * Kingman coalescent with lineages entering at given times, conditioned on all
+ * lineages having coalesced into a single one at a given end time.
+ * Time is measured in units of the intensity of the population function,
+ * so for a constant population that is time divided by population size.
+ *
+ * Coalescent times are sampled without rejection: the probability of complete
+ * coalescence is calculated backwards over the intervals between arrivals of lineages
+ * (using the transition probabilities of the pure death process of lineage counts),
+ * then lineage counts at the end of each interval and coalescent times inside are
+ * sampled forwards.
+ */
+public class ConditionedCoalescent {
+	/** transition probabilities become unreliable for large lineage counts due to cancellation **/
+	public final static int MAX_LINEAGES = 25;
+
+	private final static double TOLERANCE = 1e-8;
+
+	// start times of intervals, and end time as last entry
+	private double [] epochs;
+	// number of lineages entering at start of interval
+	private int [] arrivals;
+	// h[i][k] = probability of single lineage at end, given k lineages at start of interval i (after arrivals)
+	private double [][] h;
+	// coefficients[k][j] = coefficients of exponentials in transition probability from k to j lineages
+	private double [][][] coefficients;
+	private int lineageCount;
+	private double logP;
+	private boolean valid = true;
+
+	/**
+	 * @param arrivalTimes times at which lineages enter, in intensity units
+	 * @param end time at which all lineages should have coalesced, in intensity units
+	 */
+	public ConditionedCoalescent(double [] arrivalTimes, double end) {
+		lineageCount = arrivalTimes.length;
+		double [] times = arrivalTimes.clone();
+		Arrays.sort(times);
+
+		List<Double> epochList = new ArrayList<>();
+		List<Integer> arrivalList = new ArrayList<>();
+		for (double t : times) {
+			if (epochList.size() > 0 && epochList.get(epochList.size() - 1) == t) {
+				arrivalList.set(arrivalList.size() - 1, arrivalList.get(arrivalList.size() - 1) + 1);
+			} else {
+				epochList.add(t);
+				arrivalList.add(1);
+			}
+		}
+		int m = epochList.size();
+		epochs = new double[m + 1];
+		arrivals = new int[m];
+		for (int i = 0; i < m; i++) {
+			epochs[i] = epochList.get(i);
+			arrivals[i] = arrivalList.get(i);
+		}
+		epochs[m] = end;
+
+		if (lineageCount <= 1) {
+			logP = 0;
+			return;
+		}
+		if (lineageCount > MAX_LINEAGES || !(end > epochs[m - 1]) || Double.isInfinite(end)) {
+			valid = false;
+			logP = Double.NEGATIVE_INFINITY;
+			return;
+		}
+
+		coefficients = new double[lineageCount + 1][][];
+		h = new double[m][];
+		int [] cumulative = new int[m];
+		cumulative[0] = arrivals[0];
+		for (int i = 1; i < m; i++) {
+			cumulative[i] = cumulative[i - 1] + arrivals[i];
+		}
+		for (int i = m - 1; i >= 0; i--) {
+			double delta = epochs[i + 1] - epochs[i];
+			h[i] = new double[cumulative[i] + 1];
+			for (int k = 1; k <= cumulative[i]; k++) {
+				double [] p = transitionProbabilities(k, delta);
+				if (i == m - 1) {
+					h[i][k] = p[1];
+				} else {
+					double sum = 0;
+					for (int j = 1; j <= k; j++) {
+						sum += p[j] * h[i + 1][j + arrivals[i + 1]];
+					}
+					h[i][k] = sum;
+				}
+			}
+		}
+		logP = Math.log(h[0][arrivals[0]]);
+		if (!valid || Double.isNaN(logP) || Double.isInfinite(logP)) {
+			valid = false;
+			logP = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/** false if the conditioning event has (numerically) zero probability or the lineage count is too large **/
+	public boolean isValid() {
+		return valid;
+	}
+
+	/** log probability that all lineages have coalesced by the end time under the unconditioned coalescent **/
+	public double getLogProbabilityOfCoalescence() {
+		return logP;
+	}
+
+	/** coalescent times in intensity units, in increasing order **/
+	public double [] sample(MersenneTwisterFast random) {
+		if (!valid) {
+			throw new IllegalArgumentException("Cannot sample from conditioned coalescent with zero probability");
+		}
+		double [] times = new double[Math.max(0, lineageCount - 1)];
+		int eventCount = 0;
+		int m = arrivals.length;
+		int k = 0;
+		for (int i = 0; i < m; i++) {
+			k += arrivals[i];
+			double delta = epochs[i + 1] - epochs[i];
+
+			// 1. lineage count at end of interval
+			int j = 1;
+			if (k > 1) {
+				double [] p = transitionProbabilities(k, delta);
+				double [] w = new double[k + 1];
+				double sum = 0;
+				for (int x = 1; x <= k; x++) {
+					w[x] = Math.max(0, p[x] * (i == m - 1 ? (x == 1 ? 1 : 0) : h[i + 1][x + arrivals[i + 1]]));
+					sum += w[x];
+				}
+				double u = random.nextDouble() * sum;
+				j = k;
+				for (int x = 1; x <= k; x++) {
+					u -= w[x];
+					if (u <= 0 && w[x] > 0) {
+						j = x;
+						break;
+					}
+				}
+			}
+
+			// 2. coalescent times inside the interval given the lineage count at the end
+			double remaining = delta;
+			for (int c = k; c > j; c--) {
+				double s = sampleNextEvent(c, j, remaining, random);
+				remaining -= s;
+				times[eventCount++] = epochs[i] + delta - remaining;
+			}
+			k = j;
+		}
+		return times;
+	}
+
+	/**
+	 * time till next coalescence from c lineages, given there are j lineages left after time t.
+	 * The density is rate(c) exp(-rate(c) s) P(c-1 -> j, t-s) / P(c -> j, t), which has closed form
+	 * cumulative distribution function, inverted by bisection.
+	 */
+	private double sampleNextEvent(int c, int j, double t, MersenneTwisterFast random) {
+		double [] a = getCoefficients(c - 1, j);
+		double lambda = rate(c);
+		double target = random.nextDouble() * cdf(a, lambda, j, c, t, t);
+		double lower = 0, upper = t;
+		for (int iter = 0; iter < 100 && upper - lower > 1e-14 * t; iter++) {
+			double s = (lower + upper) / 2;
+			if (cdf(a, lambda, j, c, t, s) < target) {
+				lower = s;
+			} else {
+				upper = s;
+			}
+		}
+		return (lower + upper) / 2;
+	}
+
+	// integral from 0 to s of rate(c) exp(-rate(c) u) P(c-1 -> j, t-u) du
+	private double cdf(double [] a, double lambda, int j, int c, double t, double s) {
+		double sum = 0;
+		for (int x = j; x <= c - 1; x++) {
+			double d = lambda - rate(x);
+			sum += a[x - j] * Math.exp(-rate(x) * t) * -Math.expm1(-d * s) / d;
+		}
+		return lambda * sum;
+	}
+
+	/** transition probabilities P(k -> j, t) for j = 1...k, indexed by j **/
+	private double [] transitionProbabilities(int k, double t) {
+		double [] p = new double[k + 1];
+		double sum = 0;
+		for (int j = 1; j <= k; j++) {
+			p[j] = transitionProbability(getCoefficients(k, j), k, j, t);
+			if (p[j] < -TOLERANCE || p[j] > 1 + TOLERANCE || Double.isNaN(p[j])) {
+				valid = false;
+			}
+			p[j] = Math.min(1, Math.max(0, p[j]));
+			sum += p[j];
+		}
+		if (Math.abs(sum - 1) > TOLERANCE * k) {
+			valid = false;
+		}
+		return p;
+	}
+
+	private double [] getCoefficients(int k, int j) {
+		if (coefficients[k] == null) {
+			coefficients[k] = new double[k + 1][];
+		}
+		if (coefficients[k][j] == null) {
+			coefficients[k][j] = coefficients(k, j);
+		}
+		return coefficients[k][j];
+	}
+
+	/** probability to go from k to j lineages in time t, which is zero if j > k **/
+	public static double transitionProbability(int k, int j, double t) {
+		if (j > k || j < 1) {
+			return 0;
+		}
+		return transitionProbability(coefficients(k, j), k, j, t);
+	}
+
+	private static double transitionProbability(double [] a, int k, int j, double t) {
+		double p = 0;
+		for (int m = j; m <= k; m++) {
+			p += a[m - j] * Math.exp(-rate(m) * t);
+		}
+		return p;
+	}
+
+	/**
+	 * P(k -> j, t) = sum_{m=j..k} a_m exp(-rate(m) t) where
+	 * a_m = prod_{l=j+1..k} rate(l) / prod_{l=j..k, l != m} (rate(l) - rate(m))
+	 */
+	private static double [] coefficients(int k, int j) {
+		double [] a = new double[k - j + 1];
+		for (int m = j; m <= k; m++) {
+			double c = 1;
+			for (int l = j; l <= k; l++) {
+				if (l > j) {
+					c *= rate(l);
+				}
+				if (l != m) {
+					c /= rate(l) - rate(m);
+				}
+			}
+			a[m - j] = c;
+		}
+		return a;
+	}
+
+	private static double rate(int k) {
+		return k * (k - 1) / 2.0;
+	}
+}
@@ -7,8 +7,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -52,6 +57,20 @@ public class InfectedByCoverageCalculator extends Runnable {
 	final public Input<Boolean> includeUnsampledInput = new Input<>("includeUnsampled", "include unsampled infectors in true-vs-inferred plot", true);	
 	final public Input<OutFile> pngFileInput = new Input<>("png", "name of file to write bar-chart plot", new OutFile("[[none]]"));	
 	final public Input<Integer> binCountInput = new Input<>("bins", "number of bins=bars to use for the chart", 10);	
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to process replicate log files", Runtime.getRuntime().availableProcessors());
+
+	/** bins of the true-vs-inferred plot, one set per thread **/
+	static private class Bins {
+		int [] truebins;
+		int [] totals;
+		double [] probsPerBin;
+
+		Bins(int binCount) {
+			truebins = new int[binCount];
+			totals = new int[binCount];
+			probsPerBin = new double[binCount];
+		}
+	}
 
 	
 	@Override
@@ -104,92 +123,84 @@ public class InfectedByCoverageCalculator extends Runnable {
 			}
 		}
 		
-		for (int i = 0; i < trueTrace.getTrace(0).length - skipLogLinesInput.get(); i++) {
-			String filename = logFilePrefixInput.get().getPath() + i + ".log";
-			if (new File(filename).exists()) {
-				LogAnalyser trace = new LogAnalyser(filename, burnInPercentageInput.get(), true, false);
-				if (i % 10 == 0) {
-					Log.warning.print("|");
-				} else {
-					Log.warning.print(".");
+		// replicates are processed concurrently, each thread collecting its own bins,
+		// which are merged at the end, and rows are printed in replicate order
+		final int columnCount = n;
+		final int skip = skipLogLinesInput.get();
+		final int burnin = burnInPercentageInput.get();
+		final double coverage = coverageInput.get();
+		final int trueColumn = trueOffset;
+		List<Bins> allBins = new ArrayList<>();
+		ThreadLocal<Bins> threadBins = ThreadLocal.withInitial(() -> {
+			Bins bins = new Bins(binCount);
+			synchronized (allBins) {
+				allBins.add(bins);
+			}
+			return bins;
+		});
+		int threads = Math.max(1, threadsInput.get());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<boolean[]>> rows = new ArrayList<>();
+		for (int i = 0; i < trueTrace.getTrace(0).length - skip; i++) {
+			final int replicate = i;
+			final File file = new File(logFilePrefixInput.get().getPath() + i + ".log");
+			rows.add(pool.submit(() -> {
+				if (!file.exists()) {
+					return null;
 				}
-				
-				out.print(i + "\t");
-				int offset = 0;
+				// only the infector columns are parsed
+				List<String> labels = ColumnTraceReader.readLabels(file);
+				int first = 1;
 				if (tag != null) {
-					offset = trace.indexof(tag + ".1") - 1;
+					first = ColumnTraceReader.indexOfPrefix(labels, tag + ".");
+					if (first < 0) {
+						throw new IllegalArgumentException("Could not find " + tag + " in trace log " + file.getPath());
+					}
 				}
-				for (int j = 1; j <= n; j++) {
-					// get true source value
-					int trueSource = 0;
-					trueSource = (n + 1 + (int)(double)trueTrace.getTrace(trueOffset+j)[i + skipLogLinesInput.get()]) % n;
-					
-					// collect info from trace
-		        	double [] infectedBy = new double[n+1];
-		        	Arrays.fill(infectedBy, 0);
-		        	Double [] currenttrace = trace.getTrace(offset + j);
-		        	for (Double d : currenttrace) {
-		        		if (d < -1 || d >= n) {
-		        			infectedBy[n]++;
-		        		} else {
-		        			infectedBy[(n+1+(int)(double)d) % n]++;
-		        		}
-		        	}
-		        	
-		        	// determine 95% coverage
-		        	int[] index = new int[n+1];
-		        	for (int k = 0; k <= n; k++) {
-		        		index[k] = k;
-		        	}
-		        	HeapSort.sort(infectedBy, index);
-	
-		        	{
-//System.out.print(i*10+j + "\t");
-//int sum = 0;
-//for (int k = 0; k <= n; k++) {
-//	sum += infectedBy[index[k]];
-//	System.out.print(infectedBy[index[k]] + "\t");
-//}
-//System.out.println(sum);
+				double [][] trace = ColumnTraceReader.read(file, burnin, first, columnCount);
+				Bins bins = threadBins.get();
+				boolean [] covered = new boolean[columnCount];
+				for (int j = 1; j <= columnCount; j++) {
+					double trueValue = trueTrace.getTrace(trueColumn + j)[replicate + skip];
+					covered[j - 1] = calcCoverage(trueValue, trace[j - 1], columnCount, coverage, includeUnsampled, bins.truebins, bins.totals, bins.probsPerBin);
 				}
-	
-		        	// is true value in the 95% coverage set?
-		        	int threshold = (int)(currenttrace.length * coverageInput.get())/ 100;
-		        	int sum = 0;
-		        	int k = n;
-		        	boolean covered = false;
-		        	while (sum < threshold) {
-		        		if (index[k] == trueSource) {
-		        			covered = true;
-		        			break;
-		        		}
-		        		sum += infectedBy[index[k]];
-		        		k--;
-		        	}
-		        	
-		        	// update true vs estimated bins
-		        	for (int x = includeUnsampled ? 0 : 1; x < infectedBy.length; x++) {
-		        		if (infectedBy[x] > 0) {
-				        	int b = (int)(truebins.length*infectedBy[x]/currenttrace.length);
-				        	if (b >= truebins.length) {
-				        		b = truebins.length-1;
-				        	}
-				        	probsPerBin[b] += infectedBy[x]/currenttrace.length;
-				        	totals[b]++;
-		        		}
-		        	}
-		        	if (includeUnsampled || trueSource > 0) {
-		        		if (infectedBy[trueSource] > 0) {
-				        	int b = (int)(truebins.length*infectedBy[trueSource]/currenttrace.length);
-				        	if (b >= truebins.length) {
-				        		b = truebins.length-1;
-				        	}
-				        	truebins[b]++;
-		        		}
-		        	}
-					out.print((covered?1:0) + "\t");
+				return covered;
+			}));
+		}
+		pool.shutdown();
+
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				boolean [] covered;
+				try {
+					covered = rows.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+				if (covered != null) {
+					if (i % 10 == 0) {
+						Log.warning.print("|");
+					} else {
+						Log.warning.print(".");
+					}
+					out.print(i + "\t");
+					for (boolean c : covered) {
+						out.print((c?1:0) + "\t");
+					}
+					out.println();
 				}
-				out.println();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		for (Bins bins : allBins) {
+			for (int x = 0; x < binCount; x++) {
+				truebins[x] += bins.truebins[x];
+				totals[x] += bins.totals[x];
+				probsPerBin[x] += bins.probsPerBin[x];
 			}
 		}
 		
@@ -229,6 +240,84 @@ public class InfectedByCoverageCalculator extends Runnable {
 	}
 	
 	
+	/**
+	 * determine whether the true infector of a leaf is in the credible set of its posterior sample,
+	 * and update the bins of the true-vs-inferred plot
+	 * @param trueValue true infector as logged by InfectorOfLogger, -1 for unsampled
+	 * @param currenttrace posterior sample of infectors of the leaf
+	 * @param n number of leafs
+	 * @param coverage percentage of coverage (between 0 and 100)
+	 */
+	static public boolean calcCoverage(double trueValue, Double [] currenttrace, int n, double coverage, boolean includeUnsampled,
+			int [] truebins, int [] totals, double [] probsPerBin) {
+		double [] trace = new double[currenttrace.length];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = currenttrace[i];
+		}
+		return calcCoverage(trueValue, trace, n, coverage, includeUnsampled, truebins, totals, probsPerBin);
+	}
+
+	/** as calcCoverage, but with the posterior sample in a primitive array **/
+	static public boolean calcCoverage(double trueValue, double [] currenttrace, int n, double coverage, boolean includeUnsampled,
+			int [] truebins, int [] totals, double [] probsPerBin) {
+		// get true source value
+		int trueSource = (n + 1 + (int) trueValue) % n;
+
+		// collect info from trace
+		double [] infectedBy = new double[n+1];
+		Arrays.fill(infectedBy, 0);
+		for (double d : currenttrace) {
+			if (d < -1 || d >= n) {
+				infectedBy[n]++;
+			} else {
+				infectedBy[(n+1+(int)d) % n]++;
+			}
+		}
+		
+		// determine 95% coverage
+		int[] index = new int[n+1];
+		for (int k = 0; k <= n; k++) {
+			index[k] = k;
+		}
+		HeapSort.sort(infectedBy, index);
+
+		// is true value in the 95% coverage set?
+		int threshold = (int)(currenttrace.length * coverage)/ 100;
+		int sum = 0;
+		int k = n;
+		boolean covered = false;
+		while (sum < threshold) {
+			if (index[k] == trueSource) {
+				covered = true;
+				break;
+			}
+			sum += infectedBy[index[k]];
+			k--;
+		}
+		
+		// update true vs estimated bins
+		for (int x = includeUnsampled ? 0 : 1; x < infectedBy.length; x++) {
+			if (infectedBy[x] > 0) {
+				int b = (int)(truebins.length*infectedBy[x]/currenttrace.length);
+				if (b >= truebins.length) {
+					b = truebins.length-1;
+				}
+				probsPerBin[b] += infectedBy[x]/currenttrace.length;
+				totals[b]++;
+			}
+		}
+		if (includeUnsampled || trueSource > 0) {
+			if (infectedBy[trueSource] > 0) {
+				int b = (int)(truebins.length*infectedBy[trueSource]/currenttrace.length);
+				if (b >= truebins.length) {
+					b = truebins.length-1;
+				}
+				truebins[b]++;
+			}
+		}
+		return covered;
+	}
+
     static public void showCoveragePlot(int [] truebins, int [] totals, File pngfile, boolean includeUnsampleds) {
 		// this initialised the javafx toolkit
 		new JFXPanel();
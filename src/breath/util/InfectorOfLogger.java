@@ -46,8 +46,22 @@ public class InfectorOfLogger extends BEASTObject implements Loggable {
     	// determine who infected who
     	int n = tree.getLeafNodeCount();
     	int [] infectedBy = new int[n];
+    	int infectionCount = calcInfectors(tree, colourAtBase, likelihood.blockCountInput.get(), directOnly, infectedBy);
+    	
+    	for (int i = 0; i < n; i++) {
+    		out.print(infectedBy[i] + "\t");
+    	}
+    	out.print(infectionCount + "\t");
+	}
+
+	/**
+	 * determine who infected who: infectedBy[i] is the leaf that infected leaf i, 
+	 * or -1 if infected by an unsampled host
+	 * @return total number of infections
+	 */
+	static public int calcInfectors(TreeInterface tree, int [] colourAtBase, IntegerParameter blockCount, boolean directOnly, int [] infectedBy) {
+    	int n = tree.getLeafNodeCount();
     	Arrays.fill(infectedBy, -1);
-    	IntegerParameter blockCount = likelihood.blockCountInput.get();
     	int infectionCount = 0;
     	for (int i = 0; i < 2 * n - 2; i++) {
     		Node node = tree.getNode(i);
@@ -65,11 +79,7 @@ public class InfectorOfLogger extends BEASTObject implements Loggable {
     		}
     		infectionCount += blockCount.getValue(i) + 1;
     	}
-    	
-    	for (int i = 0; i < n; i++) {
-    		out.print(infectedBy[i] + "\t");
-    	}
-    	out.print(infectionCount + "\t");
+    	return infectionCount;
 	}
 
 	@Override
@@ -0,0 +1,203 @@
+package breath.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Histogram of a stream of non-negative values of unknown range, using a fixed number of bins.
+ * When a value falls beyond the last bin, the bin width is doubled by merging neighbouring bins,
+ * so memory does not grow with the number of values. Mean and variance are tracked exactly.
+ */
+public class OnlineHistogram {
+	private final long [] counts;
+	// bin width, or NaN until the first positive value determines it
+	private double width;
+	private long count = 0;
+	// values that are exactly zero, which are common (e.g. no lineages) and should not be interpolated
+	private long zeroCount = 0;
+	private double mean = 0, m2 = 0;
+	private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param binCount number of bins, should be even
+	 * @param width initial bin width, or NaN to base it on the first positive value
+	 */
+	public OnlineHistogram(int binCount, double width) {
+		if (binCount < 2 || binCount % 2 != 0) {
+			throw new IllegalArgumentException("binCount should be even and at least 2, not " + binCount);
+		}
+		counts = new long[binCount];
+		this.width = width;
+	}
+
+	public void add(double x) {
+		add(x, 1);
+	}
+
+	/** add n copies of x **/
+	public void add(double x, long n) {
+		if (!(x >= 0) || Double.isInfinite(x)) {
+			throw new IllegalArgumentException("Histogram values should be non-negative and finite, not " + x);
+		}
+		if (n <= 0) {
+			return;
+		}
+		if (Double.isNaN(width) && x > 0) {
+			width = x / counts.length;
+		}
+		if (x > 0) {
+			while (x >= width * counts.length) {
+				coarsen();
+			}
+		}
+		int bin = x > 0 ? (int) (x / width) : 0;
+		counts[Math.min(bin, counts.length - 1)] += n;
+		if (x == 0) {
+			zeroCount += n;
+		}
+
+		// Welford's algorithm, for n observations at once
+		long newCount = count + n;
+		double delta = x - mean;
+		mean += delta * n / newCount;
+		m2 += delta * delta * count * n / newCount;
+		count = newCount;
+		min = Math.min(min, x);
+		max = Math.max(max, x);
+	}
+
+	/**
+	 * add all values of other. Mean and variance are combined exactly, and the count of every bin of other
+	 * goes to the bin containing its midpoint, so quantiles remain accurate up to the bin width of both histograms.
+	 */
+	public void add(OnlineHistogram other) {
+		if (other.count == 0) {
+			return;
+		}
+		// parallel version of Welford's algorithm
+		long newCount = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / newCount;
+		m2 += other.m2 + delta * delta * count * other.count / newCount;
+		count = newCount;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		zeroCount += other.zeroCount;
+
+		counts[0] += other.zeroCount;
+		if (Double.isNaN(other.width)) {
+			// other only contains zeros
+			return;
+		}
+		if (Double.isNaN(width)) {
+			width = other.width;
+		}
+		while (other.max >= width * counts.length) {
+			coarsen();
+		}
+		for (int i = 0; i < other.counts.length; i++) {
+			long n = i == 0 ? other.counts[0] - other.zeroCount : other.counts[i];
+			if (n > 0) {
+				int bin = (int) ((i + 0.5) * other.width / width);
+				counts[Math.min(bin, counts.length - 1)] += n;
+			}
+		}
+	}
+
+	/** double the bin width, merging pairs of neighbouring bins **/
+	private void coarsen() {
+		int half = counts.length / 2;
+		for (int i = 0; i < half; i++) {
+			counts[i] = counts[2 * i] + counts[2 * i + 1];
+		}
+		for (int i = half; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		width *= 2;
+	}
+
+	/** quantile, interpolated linearly inside bins, except among values that are exactly zero **/
+	public double getQuantile(double p) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		double target = p * count;
+		if (target <= zeroCount && zeroCount > 0) {
+			return 0;
+		}
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (sum + counts[i] >= target && counts[i] > 0) {
+				double x = (i + (target - sum) / counts[i]) * (Double.isNaN(width) ? 0 : width);
+				return Math.max(min, Math.min(max, x));
+			}
+			sum += counts[i];
+		}
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public double getStandardDeviation() {
+		return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+	}
+
+	public double getBinWidth() {
+		return width;
+	}
+
+	public long getBinCount(int i) {
+		return counts[i];
+	}
+
+	/** write state, so that adding values can be continued after reading it back with read **/
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(counts.length);
+		out.writeDouble(width);
+		out.writeLong(count);
+		out.writeLong(zeroCount);
+		out.writeDouble(mean);
+		out.writeDouble(m2);
+		out.writeDouble(min);
+		out.writeDouble(max);
+		for (long c : counts) {
+			out.writeLong(c);
+		}
+	}
+
+	/** replace state by that written by write, for a histogram with the same number of bins **/
+	public void read(DataInputStream in) throws IOException {
+		int binCount = in.readInt();
+		if (binCount != counts.length) {
+			throw new IllegalArgumentException("Stored histogram has " + binCount + " bins instead of " + counts.length);
+		}
+		width = in.readDouble();
+		count = in.readLong();
+		zeroCount = in.readLong();
+		mean = in.readDouble();
+		m2 = in.readDouble();
+		min = in.readDouble();
+		max = in.readDouble();
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = in.readLong();
+		}
+	}
+
+	/** tab separated lines with label, lower and upper bound and count of every non-empty bin **/
+	public void print(PrintStream out, String label) {
+		double w = Double.isNaN(width) ? 0 : width;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				out.println(label + "\t" + i * w + "\t" + (i + 1) * w + "\t" + counts[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package breath.util;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.util.Randomizer;
+import beastfx.app.tools.Application;
+import beastfx.app.tools.LogAnalyser;
+import beastfx.app.util.LogFile;
+import beastfx.app.util.OutFile;
+
+@Description("Posterior predictive simulation: for every sample in a trace log, simulates outbreaks with the "
+		+ "hazard parameters, origin and end time of that sample, and collects summary statistics in histograms. "
+		+ "Simulated trees are not written, only the histograms, so thousands of samples can be checked. "
+		+ "Parameters without a label in the trace log are taken from the simulator.")
+public class PosteriorPredictiveSimulator extends Runnable {
+	final public Input<TransmissionTreeSimulator> simulatorInput = new Input<>("simulator", "simulator providing the model settings, and values of parameters not in the trace log", Validate.REQUIRED);
+	final public Input<LogFile> traceInput = new Input<>("log", "trace log with posterior samples", Validate.REQUIRED);
+	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trace log to used as burn-in (and will be ignored)", 10);
+	final public Input<String> sampleShapeInput = new Input<>("sampleShape", "label of shape parameter of the sampling intensity function in the trace log");
+	final public Input<String> sampleRateInput = new Input<>("sampleRate", "label of rate parameter of the sampling intensity function in the trace log");
+	final public Input<String> sampleConstantInput = new Input<>("sampleConstant", "label of constant multiplier of the sampling intensity function in the trace log");
+	final public Input<String> transmissionShapeInput = new Input<>("transmissionShape", "label of shape parameter of the transmission intensity function in the trace log");
+	final public Input<String> transmissionRateInput = new Input<>("transmissionRate", "label of rate parameter of the transmission intensity function in the trace log");
+	final public Input<String> transmissionConstantInput = new Input<>("transmissionConstant", "label of constant multiplier of the transmission intensity function in the trace log");
+	final public Input<String> popSizeInput = new Input<>("popSize", "label of population size in the trace log");
+	final public Input<String> growthRateInput = new Input<>("growthRate", "label of growth rate in the trace log");
+	final public Input<String> originInput = new Input<>("origin", "label of origin in the trace log. "
+			+ "Outbreaks are simulated from origin till endTime. If not specified, the endTime of the simulator is used as duration");
+	final public Input<String> endTimeInput = new Input<>("endTime", "label of end time in the trace log, assumed 0 if not specified");
+	final public Input<Integer> replicatesInput = new Input<>("replicates", "number of outbreaks simulated per posterior sample", 1);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating", 1);
+	final public Input<Long> seedInput = new Input<>("seed", "random number seed used to initialise the random number generator");
+	final public Input<Integer> binCountInput = new Input<>("bins", "number of bins in each histogram, should be even", 100);
+	final public Input<Integer> observedTaxonCountInput = new Input<>("taxonCount", "observed number of taxa. If specified, the posterior predictive p-value "
+			+ "of having at least this many taxa is reported", -1);
+	final public Input<OutFile> outputInput = new Input<>("out", "output file with histograms, or stdout if not specified", new OutFile("[[none]]"));
+
+	private final static String [] STATISTICS = {"taxonCount", "hostCount", "infectionCount", "treeHeight", "infectionTime", "timeTillSampling"};
+	private final static int TAXON_COUNT = 0, HOST_COUNT = 1, INFECTION_COUNT = 2, TREE_HEIGHT = 3, INFECTION_TIME = 4, TIME_TILL_SAMPLING = 5;
+
+	/** statistics of a single simulated outbreak, or null if it had too many taxa **/
+	static class Outbreak {
+		int taxonCount;
+		int hostCount;
+		int infectionCount;
+		double height;
+		double [] infectionTimes;
+		double [] timesTillSampling;
+	}
+
+	private TransmissionTreeSimulator simulator;
+	private int maxTaxonCount;
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		simulator = simulatorInput.get();
+		maxTaxonCount = simulator.maxTaxonCountInput.get();
+		if (maxTaxonCount <= 0) {
+			maxTaxonCount = Integer.MAX_VALUE;
+		}
+		final long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+
+		LogAnalyser trace = new LogAnalyser(traceInput.get().getPath(), burnInPercentageInput.get(), true, false);
+		final Double [] sampleShape = getTrace(trace, sampleShapeInput);
+		final Double [] sampleRate = getTrace(trace, sampleRateInput);
+		final Double [] sampleConstant = getTrace(trace, sampleConstantInput);
+		final Double [] transmissionShape = getTrace(trace, transmissionShapeInput);
+		final Double [] transmissionRate = getTrace(trace, transmissionRateInput);
+		final Double [] transmissionConstant = getTrace(trace, transmissionConstantInput);
+		final Double [] popSize = getTrace(trace, popSizeInput);
+		final Double [] growthRate = getTrace(trace, growthRateInput);
+		final Double [] origin = getTrace(trace, originInput);
+		final Double [] endTime = getTrace(trace, endTimeInput);
+		int sampleCount = trace.getTrace(0).length;
+		int replicates = replicatesInput.get();
+		int total = sampleCount * replicates;
+		Log.warning("Simulating " + total + " outbreaks for " + sampleCount + " posterior samples");
+
+		int binCount = binCountInput.get();
+		OnlineHistogram [] histograms = new OnlineHistogram[STATISTICS.length];
+		for (int i = 0; i < STATISTICS.length; i++) {
+			// counts use unit bins to start with, times get their bin width from the first value
+			histograms[i] = new OnlineHistogram(binCount, i <= INFECTION_COUNT ? 1.0 : Double.NaN);
+		}
+		int observed = observedTaxonCountInput.get();
+		long atLeastObserved = 0, tooLarge = 0;
+
+		// outbreaks are simulated by a pool of workers, and consumed in index order,
+		// so at most a few outbreaks per thread are kept in memory
+		int threads = Math.max(1, threadsInput.get());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<Outbreak>> pending = new ArrayDeque<>();
+		int submitted = 0;
+		try {
+			for (int i = 0; i < total; i++) {
+				while (submitted < total && pending.size() < threads * 4) {
+					final int index = submitted++;
+					final int s = index / replicates;
+					pending.add(pool.submit(() -> {
+						TransmissionTreeSimulator.Model model = simulator.new Model(
+								(origin != null ? origin[s] : simulator.endTimeInput.get().getArrayValue()) - (endTime != null ? endTime[s] : 0.0),
+								value(sampleShape, s, simulator.sampleShapeInput.get().getArrayValue()),
+								value(sampleRate, s, simulator.sampleRateInput.get().getArrayValue()),
+								value(sampleConstant, s, simulator.sampleConstantInput.get().getArrayValue()),
+								value(transmissionShape, s, simulator.transmissionShapeInput.get().getArrayValue()),
+								value(transmissionRate, s, simulator.transmissionRateInput.get().getArrayValue()),
+								value(transmissionConstant, s, simulator.transmissionConstantInput.get().getArrayValue()),
+								simulator.getPopFun(
+										popSize != null ? popSize[s] : (simulator.popSizeInput.get() != null ? simulator.popSizeInput.get().getArrayValue() : null),
+										growthRate != null ? growthRate[s] : (simulator.growthRateInput.get() != null ? simulator.growthRateInput.get().getArrayValue() : null)));
+						return simulate(model, TransmissionTreeSimulator.seedFor(seed, index));
+					}));
+				}
+				Outbreak outbreak;
+				try {
+					outbreak = pending.removeFirst().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+
+				if (outbreak == null) {
+					tooLarge++;
+					if (observed >= 0) {
+						atLeastObserved++;
+					}
+				} else {
+					histograms[TAXON_COUNT].add(outbreak.taxonCount);
+					histograms[HOST_COUNT].add(outbreak.hostCount);
+					histograms[INFECTION_COUNT].add(outbreak.infectionCount);
+					histograms[TREE_HEIGHT].add(outbreak.height);
+					for (double t : outbreak.infectionTimes) {
+						histograms[INFECTION_TIME].add(t);
+					}
+					for (double t : outbreak.timesTillSampling) {
+						histograms[TIME_TILL_SAMPLING].add(t);
+					}
+					if (observed >= 0 && outbreak.taxonCount >= observed) {
+						atLeastObserved++;
+					}
+				}
+				if ((i+1) % 10 == 0) {
+					if ((i+1) % 100 == 0) {
+						System.err.print("|");
+					} else {
+						System.err.print(".");
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		System.err.println();
+
+		report(histograms);
+		if (tooLarge > 0) {
+			Log.warning(tooLarge + " out of " + total + " outbreaks had more than maxTaxonCount=" + maxTaxonCount + " taxa and are not in the histograms");
+		}
+		if (observed >= 0) {
+			Log.warning("Posterior predictive p-value of at least " + observed + " taxa: " + (double) atLeastObserved / total);
+		}
+		Log.warning("Done");
+	}
+
+	private Outbreak simulate(TransmissionTreeSimulator.Model model, long seed) throws Exception {
+		Outbreak outbreak = new Outbreak();
+		TransmissionTreeSimulator.SimulatedTree tree = simulator.simulateOutbreak(model, seed, maxTaxonCount);
+		if (tree == null) {
+			// too many taxa
+			return null;
+		}
+		outbreak.taxonCount = tree.taxonCount;
+		outbreak.hostCount = tree.hostCount;
+		outbreak.infectionCount = tree.infectionCount;
+		outbreak.height = tree.height;
+		outbreak.infectionTimes = new double[tree.taxonCount];
+		outbreak.timesTillSampling = new double[tree.taxonCount];
+		tree.calcHostTimes(outbreak.infectionTimes, outbreak.timesTillSampling);
+		return outbreak;
+	}
+
+	private double value(Double [] trace, int sample, double defaultValue) {
+		return trace != null ? trace[sample] : defaultValue;
+	}
+
+	private Double [] getTrace(LogAnalyser trace, Input<String> labelInput) {
+		if (labelInput.get() == null) {
+			return null;
+		}
+		int index = trace.indexof(labelInput.get());
+		if (index < 0) {
+			throw new IllegalArgumentException("Could not find " + labelInput.get() + " in trace log " + traceInput.get().getPath());
+		}
+		return trace.getTrace(index);
+	}
+
+	private void report(OnlineHistogram [] histograms) throws Exception {
+		Log.info("statistic\tcount\tmean\tstddev\t2.5%\tmedian\t97.5%");
+		for (int i = 0; i < STATISTICS.length; i++) {
+			OnlineHistogram h = histograms[i];
+			Log.info(STATISTICS[i] + "\t" + h.getCount() + "\t" + h.getMean() + "\t" + h.getStandardDeviation() + "\t" +
+					h.getQuantile(0.025) + "\t" + h.getQuantile(0.5) + "\t" + h.getQuantile(0.975));
+		}
+
+		PrintStream out = System.out;
+		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			Log.warning("Writing to file " + outputInput.get().getPath());
+			out = new PrintStream(outputInput.get());
+		}
+		out.println("statistic\tlower\tupper\tcount");
+		for (int i = 0; i < STATISTICS.length; i++) {
+			histograms[i].print(out, STATISTICS[i]);
+		}
+		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new PosteriorPredictiveSimulator(), "Posterior predictive simulator", args);
+	}
+}
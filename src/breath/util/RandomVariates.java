@@ -0,0 +1,101 @@
+package breath.util;
+
+import org.apache.commons.math.special.Gamma;
+
+import beast.base.util.MersenneTwisterFast;
+
+/**
+ * Direct samplers and log densities for gamma and Poisson distributions,
+ * avoiding the iterative inverse cumulative distribution functions of commons-math.
+ */
+public class RandomVariates {
+	// below this mean, Poisson variates are drawn by inversion, above by PTRS
+	private final static double POISSON_INVERSION_LIMIT = 10;
+
+	/** gamma variate with given shape and rate, using Marsaglia and Tsang's method **/
+	public static double nextGamma(MersenneTwisterFast random, double shape, double rate) {
+		if (shape < 1) {
+			// boost: if X ~ Gamma(shape + 1) and U ~ Uniform(0,1) then X U^(1/shape) ~ Gamma(shape)
+			double u = random.nextDouble();
+			return nextGamma(random, shape + 1, rate) * Math.pow(u, 1.0 / shape);
+		}
+		double d = shape - 1.0 / 3.0;
+		double c = 1.0 / Math.sqrt(9 * d);
+		while (true) {
+			double x, v;
+			do {
+				x = random.nextGaussian();
+				v = 1 + c * x;
+			} while (v <= 0);
+			v = v * v * v;
+			double u = random.nextDouble();
+			double x2 = x * x;
+			if (u < 1 - 0.0331 * x2 * x2) {
+				return d * v / rate;
+			}
+			if (Math.log(u) < 0.5 * x2 + d * (1 - v + Math.log(v))) {
+				return d * v / rate;
+			}
+		}
+	}
+
+	/** Poisson variate, by inversion for small means and Hoermann's PTRS transformed rejection for large means **/
+	public static int nextPoisson(MersenneTwisterFast random, double mean) {
+		if (mean <= 0) {
+			return 0;
+		}
+		if (mean < POISSON_INVERSION_LIMIT) {
+			double p = Math.exp(-mean);
+			double u = random.nextDouble();
+			int k = 0;
+			while (u > p) {
+				u -= p;
+				k++;
+				p *= mean / k;
+				if (p == 0) {
+					// round off in the tail
+					break;
+				}
+			}
+			return k;
+		}
+
+		double slam = Math.sqrt(mean);
+		double loglam = Math.log(mean);
+		double b = 0.931 + 2.53 * slam;
+		double a = -0.059 + 0.02483 * b;
+		double invalpha = 1.1239 + 1.1328 / (b - 3.4);
+		double vr = 0.9277 - 3.6224 / (b - 2);
+		while (true) {
+			double u = random.nextDouble() - 0.5;
+			double v = random.nextDouble();
+			double us = 0.5 - Math.abs(u);
+			long k = (long) Math.floor((2 * a / us + b) * u + mean + 0.43);
+			if (us >= 0.07 && v <= vr) {
+				return (int) k;
+			}
+			if (k < 0 || (us < 0.013 && v > us)) {
+				continue;
+			}
+			if (Math.log(v) + Math.log(invalpha) - Math.log(a / (us * us) + b) <= -mean + k * loglam - Gamma.logGamma(k + 1)) {
+				return (int) k;
+			}
+		}
+	}
+
+	/** log probability of k under Poisson distribution with given mean **/
+	public static double logPoisson(int k, double mean) {
+		if (mean == 0) {
+			return k == 0 ? 0 : Double.NEGATIVE_INFINITY;
+		}
+		return k * Math.log(mean) - mean - Gamma.logGamma(k + 1);
+	}
+
+	/** log density of x under gamma distribution with given shape and rate **/
+	public static double logGammaDensity(double x, double shape, double rate) {
+		if (x < 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		return (shape - 1) * Math.log(x) - rate * x + shape * Math.log(rate) - Gamma.logGamma(shape);
+	}
+}
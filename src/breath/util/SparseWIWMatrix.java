@@ -0,0 +1,240 @@
+package breath.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Counts of who infected who over a stream of posterior samples, stored per infectee in an
+ * open addressing map from infector to count, so memory grows with the number of distinct
+ * infectors seen instead of with the square of the number of hosts.
+ *
+ * If epsilon > 0, rare infectors are pruned while streaming by lossy counting:
+ * counts are underestimated by at most epsilon times the number of samples, and any infector
+ * with a posterior probability of at least epsilon is retained.
+ * Every sample should provide an infector for every infectee.
+ */
+public class SparseWIWMatrix {
+	private final static int EMPTY = Integer.MIN_VALUE;
+
+	// number of hosts; infector n represents unsampled infectors
+	private final int n;
+	private final int bucketWidth;
+	private long sampleCount = 0;
+
+	// per infectee hash tables: keys are infectors, EMPTY if unused
+	private int [][] keys;
+	private int [][] counts;
+	// lossy counting: maximum number of counts missed before the infector was (re)inserted
+	private int [][] errors;
+	private int [] size;
+
+	/**
+	 * @param n number of infectees
+	 * @param epsilon maximum error in posterior probabilities due to pruning, 0 for exact counts
+	 */
+	public SparseWIWMatrix(int n, double epsilon) {
+		if (epsilon < 0 || epsilon >= 1) {
+			throw new IllegalArgumentException("epsilon should be in [0,1), not " + epsilon);
+		}
+		this.n = n;
+		bucketWidth = epsilon > 0 ? (int) Math.ceil(1.0 / epsilon) : Integer.MAX_VALUE;
+		keys = new int[n][];
+		counts = new int[n][];
+		errors = new int[n][];
+		size = new int[n];
+		for (int i = 0; i < n; i++) {
+			allocate(i, 4);
+		}
+	}
+
+	private void allocate(int i, int capacity) {
+		keys[i] = new int[capacity];
+		Arrays.fill(keys[i], EMPTY);
+		counts[i] = new int[capacity];
+		errors[i] = new int[capacity];
+		size[i] = 0;
+	}
+
+	/**
+	 * add one sample with infectedBy[i] the infector of i, -1 for unsampled
+	 */
+	public void add(int [] infectedBy) {
+		long bucket = sampleCount / bucketWidth;
+		for (int i = 0; i < n; i++) {
+			increment(i, infectedBy[i] < 0 ? n : infectedBy[i], (int) bucket);
+		}
+		sampleCount++;
+		if (sampleCount % bucketWidth == 0) {
+			prune((int) (sampleCount / bucketWidth));
+		}
+	}
+
+	private void increment(int i, int infector, int bucket) {
+		int [] k = keys[i];
+		int mask = k.length - 1;
+		int slot = hash(infector) & mask;
+		while (k[slot] != EMPTY) {
+			if (k[slot] == infector) {
+				counts[i][slot]++;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		k[slot] = infector;
+		counts[i][slot] = 1;
+		errors[i][slot] = bucket;
+		size[i]++;
+		if (size[i] * 2 > k.length) {
+			rehash(i, k.length * 2, -1);
+		}
+	}
+
+	/** remove infectors that cannot have posterior probability of epsilon or more **/
+	private void prune(int bucket) {
+		for (int i = 0; i < n; i++) {
+			rehash(i, keys[i].length, bucket);
+		}
+	}
+
+	/** rebuild table of infectee i with given capacity, dropping entries with count + error <= bucket **/
+	private void rehash(int i, int capacity, int bucket) {
+		int [] oldKeys = keys[i], oldCounts = counts[i], oldErrors = errors[i];
+		int kept = 0;
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldKeys[s] != EMPTY && oldCounts[s] + oldErrors[s] > bucket) {
+				kept++;
+			}
+		}
+		if (kept == size[i] && capacity == oldKeys.length) {
+			// nothing to prune
+			return;
+		}
+		while (capacity > 4 && kept * 4 < capacity) {
+			capacity /= 2;
+		}
+		allocate(i, capacity);
+		int mask = capacity - 1;
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldKeys[s] != EMPTY && oldCounts[s] + oldErrors[s] > bucket) {
+				int slot = hash(oldKeys[s]) & mask;
+				while (keys[i][slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[i][slot] = oldKeys[s];
+				counts[i][slot] = oldCounts[s];
+				errors[i][slot] = oldErrors[s];
+			}
+		}
+		size[i] = kept;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** @return posterior probability that infector infected infectee, infector -1 or n for unsampled **/
+	public double get(int infectee, int infector) {
+		if (sampleCount == 0) {
+			return 0;
+		}
+		if (infector < 0) {
+			infector = n;
+		}
+		int [] k = keys[infectee];
+		int mask = k.length - 1;
+		int slot = hash(infector) & mask;
+		while (k[slot] != EMPTY) {
+			if (k[slot] == infector) {
+				return (double) counts[infectee][slot] / sampleCount;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	/** callback for non-zero entries **/
+	public interface EntryConsumer {
+		void accept(int infector, double probability);
+	}
+
+	/** call consumer for all infectors of infectee with non-zero (estimated) probability, n for unsampled, in no particular order **/
+	public void forEach(int infectee, EntryConsumer consumer) {
+		int [] k = keys[infectee];
+		for (int s = 0; s < k.length; s++) {
+			if (k[s] != EMPTY) {
+				consumer.accept(k[s], (double) counts[infectee][s] / sampleCount);
+			}
+		}
+	}
+
+	/** fill row with probabilities of infectors of infectee, with unsampled infectors at index n **/
+	public void getRow(int infectee, double [] row) {
+		Arrays.fill(row, 0);
+		forEach(infectee, (infector, p) -> row[infector] = p);
+	}
+
+	public int getHostCount() {
+		return n;
+	}
+
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/** write counts, so that accumulation can be continued after reading them back with read **/
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(n);
+		out.writeInt(bucketWidth);
+		out.writeLong(sampleCount);
+		for (int i = 0; i < n; i++) {
+			out.writeInt(size[i]);
+			for (int s = 0; s < keys[i].length; s++) {
+				if (keys[i][s] != EMPTY) {
+					out.writeInt(keys[i][s]);
+					out.writeInt(counts[i][s]);
+					out.writeInt(errors[i][s]);
+				}
+			}
+		}
+	}
+
+	/** replace counts by those written by write, for a matrix with the same number of hosts and epsilon **/
+	public void read(DataInputStream in) throws IOException {
+		if (in.readInt() != n || in.readInt() != bucketWidth) {
+			throw new IllegalArgumentException("Stored who infected who counts are for a different number of hosts or epsilon");
+		}
+		sampleCount = in.readLong();
+		for (int i = 0; i < n; i++) {
+			int entries = in.readInt();
+			int capacity = 4;
+			while (entries * 2 > capacity) {
+				capacity *= 2;
+			}
+			allocate(i, capacity);
+			int mask = capacity - 1;
+			for (int e = 0; e < entries; e++) {
+				int key = in.readInt();
+				int slot = hash(key) & mask;
+				while (keys[i][slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[i][slot] = key;
+				counts[i][slot] = in.readInt();
+				errors[i][slot] = in.readInt();
+			}
+			size[i] = entries;
+		}
+	}
+
+	/** @return number of stored entries, a measure of memory use **/
+	public long getEntryCount() {
+		long total = 0;
+		for (int s : size) {
+			total += s;
+		}
+		return total;
+	}
+}
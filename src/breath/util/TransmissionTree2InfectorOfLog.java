@@ -1,8 +1,13 @@
 package breath.util;
 
-import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -10,14 +15,9 @@ import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Runnable;
-import beast.base.inference.parameter.IntegerParameter;
-import beast.base.inference.parameter.RealParameter;
 import beastfx.app.tools.Application;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
-import breath.distribution.ColourProvider;
 
 @Description("Convert transmission tree log into trace log with who infected who. "
 		+ "If leaf i is infected by leaf j, the log contains j at position i. "
@@ -28,6 +28,7 @@ public class TransmissionTree2InfectorOfLog extends Runnable {
 	final public Input<OutFile> outputTypeInput = new Input<>("types", "output file with type information for CoverageCalculator, ignored if not specified", new OutFile("[[none]]"));
 	final public Input<String> partitionInput = new Input<>("partition", "name of the partition appended to `blockcount, blockend and blockstart`");
 	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only, if false block counts are ignored", true);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for parsing trees", Runtime.getRuntime().availableProcessors());
 
 	
 	@Override
@@ -41,119 +42,206 @@ public class TransmissionTree2InfectorOfLog extends Runnable {
 			Log.warning("Writing to file " + outputInput.get().getPath());
 			out = new PrintStream(outputInput.get());
 		}
+		PrintStream outtype = System.out;
+		if (outputTypeInput.get() != null && !outputTypeInput.get().getName().equals("[[none]]")) {
+			Log.warning("Writing to file " + outputTypeInput.get().getPath());
+			outtype = new PrintStream(outputTypeInput.get());
+		}
 
-        // read trees one by one, adjust tip heights and write out relabeled tree in newick format
-        MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(srcInput.get().getAbsolutePath(), 0);
-        trees.reset();
-    	Tree tree = trees.next();
-    	int n = tree.getLeafNodeCount();
-    	
-    	printTypes(n, tree);
-    	
-    	out.print("Sample\t");
-    	for (int i = 0; i < n; i++) {
-    		out.print("infectorOf."+tree.getNode(i).getID() + "\t");
-    	}
-    	for (int i = 0; i < n; i++) {
-    		out.print("blockcount."+tree.getNode(i).getID() + "\t");
-    	}
-    	for (int i = 0; i < n; i++) {
-    		out.print("blockstart."+tree.getNode(i).getID() + "\t");
-    	}
-    	for (int i = 0; i < n; i++) {
-    		out.print("blockend."+tree.getNode(i).getID() + "\t");
-    	}
-    	for (int i = 0; i < n; i++) {
-    		out.print("infectionTime."+tree.getNode(i).getID() + "\t");
-    	}
-    	out.print("infectionCount\t");
-    	out.println();
-
-    	
-        trees.reset();
-        int k = 0;
-        boolean directOnly = directOnlyInput.get();
-        boolean warnedBefore = false, warnedAboutPartitionSettting = false;
-        while (trees.hasNext()) {
-        	tree = trees.next();
-        	
-        	// extract meta data from tree
-        	Double [] start = new Double[n*2-1];
-        	Double [] end = new Double[n*2-1];
-        	Integer [] count = new Integer[n*2-1];
-        	int noMatchCount = 0;
-        	for (int i = 0; i < tree.getNodeCount(); i++) {
-        		Node node = tree.getNode(i);
-        		Object o = node.getMetaData("start");
-        		if (o == null) {
-        			o = node.getMetaData("blockstart");
-        		}
-        		if (o == null) {
-        			o = node.getMetaData("blockstart.t:" + partitionInput.get());
-        		}
-        		if (o == null) {
-        			noMatchCount++;
-        			o = 0.5;
-        		}
-        		start[i] = (Double) o;
+		if (BinaryTreeLogReader.isBinaryTreeLog(srcInput.get())) {
+			// binary logs are cheap to read, so no need for parallel parsing
+			TransmissionTreeLogProcessor.process(srcInput.get(), 0, partitionInput.get(), 
+					new InfectorOfSummary(out, outtype, directOnlyInput.get()));
+		} else {
+			processParallel(out, outtype);
+		}
+		
+		if (outputTypeInput.get() != null && !outputTypeInput.get().getName().equals("[[none]]")) {
+			outtype.close();
+		}
+		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+			out.close();
+		}
+        Log.warning("Done");
+	}
 
-        		o = node.getMetaData("end");
-        		if (o == null) {
-        			o = node.getMetaData("blockend");
-        		}
-        		if (o == null) {
-        			o = node.getMetaData("blockend.t:" + partitionInput.get());
-        		}
-        		if (o == null) {
-        			noMatchCount++;
-        			o = 0.5;
-        		}
-        		end[i] = (Double) o;
-        		        		
-        		o = node.getMetaData("blockcount");
-        		if (o == null) {
-        			o = node.getMetaData("blockcount.t:" + partitionInput.get());
-        		}
-        		if (o == null) {
-        			noMatchCount++;        			
-        		}
-        		count[i] = o == null ? 0 : (int)(double) o;
-        	}
-        	if (noMatchCount > tree.getNodeCount()) {
-        		if (!warnedAboutPartitionSettting) {
-        			Log.warning("WARNING: not much metadata matched: did you specify the 'partition'?");
-        			warnedAboutPartitionSettting = true;
-        		}
-        	}
-            RealParameter blockStartFraction = new RealParameter(start);
-            RealParameter blockEndFraction = new RealParameter(end);
-            IntegerParameter blockCount = new IntegerParameter(count);
+	/** 
+	 * One reader thread splits the tree log into Newick strings (or, if the log could be indexed
+	 * by TreeLogIndex, just hands out tree numbers), a pool of workers parses and
+	 * formats them, reusing a record and row buffer per worker, and the calling thread writes
+	 * rows in the order of the log. At most a few trees per thread are kept in memory. 
+	 */
+	private void processParallel(PrintStream out, PrintStream outtype) throws Exception {
+		TreeLogReader reader = new TreeLogReader(srcInput.get());
+		String partition = partitionInput.get();
+		boolean directOnly = directOnlyInput.get();
+		String first = reader.nextTree();
+		if (first == null) {
+			reader.close();
+			Log.warning("No trees found in " + srcInput.get().getPath());
+			return;
+		}
+
+		// header is written from the first tree
+		TransmissionTreeRecord record = new TransmissionTreeRecord(partition);
+		record.set(reader.parse(first), 0);
+		if (record.isPoorlyMatched()) {
+			Log.warning("WARNING: not much metadata matched: did you specify the 'partition'?");
+		}
+		new InfectorOfSummary(out, outtype, directOnly).init(record);
+
+		int threads = Math.max(1, threadsInput.get());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ThreadLocal<TransmissionTreeRecord> records = ThreadLocal.withInitial(() -> new TransmissionTreeRecord(partition));
+		ThreadLocal<InfectorOfSummary> summaries = ThreadLocal.withInitial(() -> new InfectorOfSummary(null, null, directOnly));
+		ThreadLocal<StringBuilder> rows = ThreadLocal.withInitial(StringBuilder::new);
+		// the reader blocks when the queue is full, which bounds memory use
+		BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(threads * 4);
+		final Future<String> endOfLog = CompletableFuture.completedFuture(null);
+		final Exception [] readError = new Exception[1];
+
+		// with an index of the log, workers read their own trees, so the reader only hands out tree numbers
+		TreeLogIndex index = TreeLogIndex.get(srcInput.get());
+
+		Thread readerThread = new Thread(() -> {
+			try {
+				String newick = first;
+				for (int sample = 0; index.size() > 0 ? sample < index.size() : newick != null; sample++) {
+					final String tree = newick;
+					final int k = sample;
+					pending.put(pool.submit(() -> {
+						TransmissionTreeRecord r = records.get();
+						r.set(reader.parse(tree != null ? tree : index.getNewick(k)), k);
+						StringBuilder b = rows.get();
+						b.setLength(0);
+						summaries.get().appendRow(r, b);
+						return b.toString();
+					}));
+					newick = index.size() > 0 ? null : reader.nextTree();
+				}
+			} catch (InterruptedException e) {
+				// writer gave up
+				return;
+			} catch (Exception e) {
+				readError[0] = e;
+			}
+			try {
+				pending.put(endOfLog);
+			} catch (InterruptedException e) {
+				// writer gave up
+			}
+		}, "TreeLogReader");
+		readerThread.start();
+
+		int sample = 0;
+		try {
+			while (true) {
+				Future<String> row = pending.take();
+				if (row == endOfLog) {
+					break;
+				}
+				try {
+					out.print(row.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+				sample++;
+				if (sample % 1000 == 0) {
+					System.err.print(".");
+				}
+			}
+		} finally {
+			readerThread.interrupt();
+			pool.shutdownNow();
+			reader.close();
+			index.close();
+		}
+		if (readError[0] != null) {
+			throw readError[0];
+		}
+		out.flush();
+		System.err.println();
+		Log.warning("Processed " + sample + " trees");
+	}
+
+	/** trace log with who infected who, block parameters and infection times of leafs **/
+	public static class InfectorOfSummary implements TransmissionTreeSummary {
+		private PrintStream out;
+		private PrintStream outtype;
+		private boolean directOnly;
+		private int [] infectedBy;
+		private double [] infectionTime;
+		private boolean warnedBefore = false;
+
+		/**
+		 * @param outtype stream for table of types for use in CoverageCalculator, or null if not required
+		 */
+		public InfectorOfSummary(PrintStream out, PrintStream outtype, boolean directOnly) {
+			this.out = out;
+			this.outtype = outtype;
+			this.directOnly = directOnly;
+		}
+
+		@Override
+		public void init(TransmissionTreeRecord first) {
+			Tree tree = first.tree;
+			int n = first.leafCount;
+			infectedBy = new int[n];
+			infectionTime = new double[n];
+			if (outtype != null) {
+				printTypes(n, tree, outtype);
+			}
+
+	    	out.print("Sample\t");
+	    	for (int i = 0; i < n; i++) {
+	    		out.print("infectorOf."+tree.getNode(i).getID() + "\t");
+	    	}
+	    	for (int i = 0; i < n; i++) {
+	    		out.print("blockcount."+tree.getNode(i).getID() + "\t");
+	    	}
+	    	for (int i = 0; i < n; i++) {
+	    		out.print("blockstart."+tree.getNode(i).getID() + "\t");
+	    	}
+	    	for (int i = 0; i < n; i++) {
+	    		out.print("blockend."+tree.getNode(i).getID() + "\t");
+	    	}
+	    	for (int i = 0; i < n; i++) {
+	    		out.print("infectionTime."+tree.getNode(i).getID() + "\t");
+	    	}
+	    	out.print("infectionCount\t");
+	    	out.println();
+		}
+
+		@Override
+		public void process(TransmissionTreeRecord record) {
+			StringBuilder b = new StringBuilder();
+			appendRow(record, b);
+			out.print(b);
+		}
+
+		/** append line of trace log for record to b, so it can be formatted outside the thread that writes it **/
+		void appendRow(TransmissionTreeRecord record, StringBuilder b) {
+			Tree tree = record.tree;
+			int n = record.leafCount;
+			int [] count = record.blockCount;
+			if (infectedBy == null || infectedBy.length != n) {
+				infectedBy = new int[n];
+				infectionTime = new double[n];
+			}
 
-            // calculate colouring
-        	int [] colourAtBase = new int[n*2-1];
-        	ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-        	
         	// determine who infected who
-        	int [] infectedBy = new int[tree.getLeafNodeCount()];
-        	Arrays.fill(infectedBy, -1);
-        	for (int i = 0; i < 2 * n - 2; i++) {
-        		Node node = tree.getNode(i);
-        		Node parent = node.getParent();
-        		if (colourAtBase[node.getNr()] < n && colourAtBase[parent.getNr()] < n && 
-        				colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
-        			if (!directOnly || blockCount.getValue(node.getNr()) == 0) {
-        				infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
-        			}
-        		}
-        	}
-        	double [] infectionTime = new double[tree.getLeafNodeCount()];
-        	for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+			record.calcInfectedBy(directOnly, infectedBy);
+
+        	for (int i = 0; i < n; i++) {
         		Node node = tree.getNode(i);
         		while (!node.isRoot() && count[node.getNr()] < 0) {
         			node = node.getParent();
         		}
         		if (count[node.getNr()] >=0) {
-        			infectionTime[i] = node.getHeight() + node.getLength() * start[node.getNr()];
+        			infectionTime[i] = node.getHeight() + node.getLength() * record.blockStart[node.getNr()];
         		} else if (node.isRoot()) {
         			infectionTime[i] = node.getHeight();
         		} else {
@@ -162,53 +250,43 @@ public class TransmissionTree2InfectorOfLog extends Runnable {
         				warnedBefore = true;
         			}
         		}
-        		
         	}
         	
         	// log the result
-        	out.print(k + "\t");
+        	b.append(record.sample).append('\t');
         	for (int i = 0; i < n; i++) {
-        		out.print(infectedBy[i] + "\t");
+        		b.append(infectedBy[i]).append('\t');
         	}
         	for (int i = 0; i < n; i++) {
-        		out.print(blockCount.getValue(i) + "\t");
+        		b.append(count[i]).append('\t');
         	}
         	for (int i = 0; i < n; i++) {
-        		out.print(blockStartFraction.getValue(i) + "\t");
+        		b.append(record.blockStart[i]).append('\t');
         	}
         	for (int i = 0; i < n; i++) {
-        		out.print(blockEndFraction.getValue(i) + "\t");
+        		b.append(record.blockEnd[i]).append('\t');
         	}
         	for (int i = 0; i < n; i++) {
-        		out.print(infectionTime[i] + "\t");
+        		b.append(infectionTime[i]).append('\t');
         	}
         	int infectionCount = 0;
         	for (int i = 0; i < 2*n-2; i++) {
-        		infectionCount += blockCount.getValue(i) + 1;
+        		infectionCount += count[i] + 1;
         	}
-        	out.print(infectionCount + "\t");
-        	out.println();
+        	b.append(infectionCount).append('\t');
+        	b.append(System.lineSeparator());
+		}
 
-        	k++;
-        }
-		
-		
-		
-		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
-			out.close();
+		@Override
+		public void close() {
+			out.flush();
 		}
-        Log.warning("Done");
 	}
 
 	/*
 	 * print table of types for use in CoverageCalculator from the beast-validation package.
 	 */
-	private void printTypes(int n, Tree tree) throws FileNotFoundException {
-    	PrintStream outtype = System.out;
-		if (outputTypeInput.get() != null && !outputTypeInput.get().getName().equals("[[none]]")) {
-			Log.warning("Writing to file " + outputTypeInput.get().getPath());
-			outtype = new PrintStream(outputTypeInput.get());
-		}
+	static private void printTypes(int n, Tree tree, PrintStream outtype) {
 		outtype.println("variable\ttype");
     	for (int i = 0; i < n; i++) {
     		outtype.print("infectorOf."+tree.getNode(i).getID() + "\tc\n");
@@ -226,9 +304,6 @@ public class TransmissionTree2InfectorOfLog extends Runnable {
     		outtype.print("infectionTime."+tree.getNode(i).getID() + "\td\n");
     	}
 		outtype.print("infectionCount\td\n");
-		if (outputTypeInput.get() != null && !outputTypeInput.get().getName().equals("[[none]]")) {
-			outtype.close();
-		}
 	}
 
 	public static void main(String[] args) throws Exception {
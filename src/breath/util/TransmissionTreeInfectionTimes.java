@@ -1,6 +1,7 @@
 package breath.util;
 
 
+import java.io.PrintStream;
 import java.util.Arrays;
 
 import beast.base.core.Description;
@@ -12,8 +13,6 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Runnable;
 import beastfx.app.tools.Application;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
 
@@ -29,56 +28,35 @@ public class TransmissionTreeInfectionTimes extends Runnable {
 	public void initAndValidate() {
 	}
 
-	double endTime;
 	@Override
 	public void run() throws Exception {
-		endTime = endTimeInput.get().getArrayValue();
-		double [] bins = new double[100];
-		
+		TransmissionTreeLogProcessor.process(srcInput.get(), 0, partitionInput.get(), 
+				new InfectionTimesSummary(endTimeInput.get().getArrayValue(), System.out));
+        Log.warning("Done");
+	}
 
-        // read trees one by one, adjust tip heights and write out relabeled tree in newick format
-        MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(srcInput.get().getAbsolutePath(), 0);
-        trees.reset();
-    	Tree tree = trees.next();
-    	int n = tree.getLeafNodeCount();
-    	
-    	
-    	
-        trees.reset();
-        while (trees.hasNext()) {
-        	tree = trees.next();
-        	
-        	// extract meta data from tree
-        	Double [] start = new Double[n*2-1];
-        	Double [] end = new Double[n*2-1];
-        	Integer [] count = new Integer[n*2-1];
-        	for (int i = 0; i < tree.getNodeCount(); i++) {
-        		Node node = tree.getNode(i);
-        		Object o = node.getMetaData("start");
-        		if (o == null) {
-        			o = node.getMetaData("blockstart");
-        		}
-        		if (o == null) {
-        			o = node.getMetaData("blockstart.t:" + partitionInput.get());
-        		}
-        		start[i] = (Double) o;
+	/** distribution of transmission times over 100 bins between 0 and end time **/
+	public static class InfectionTimesSummary implements TransmissionTreeSummary {
+		private double endTime;
+		private double [] bins = new double[100];
+		private PrintStream out;
 
-        		o = node.getMetaData("end");
-        		if (o == null) {
-        			o = node.getMetaData("blockend");
-        		}
-        		if (o == null) {
-        			o = node.getMetaData("blockend.t:" + partitionInput.get());
-        		}
-        		end[i] = (Double) o;
-        		        		
-        		o = node.getMetaData("blockcount");
-        		if (o == null) {
-        			o = node.getMetaData("blockcount.t:" + partitionInput.get());
-        		}
-        		count[i] = o == null ? 0 : (int)(double) o;
-        	}
-        	
+		public InfectionTimesSummary(double endTime, PrintStream out) {
+			this.endTime = endTime;
+			this.out = out;
+		}
+
+		@Override
+		public void init(TransmissionTreeRecord first) {
+		}
+
+		@Override
+		public void process(TransmissionTreeRecord record) {
+			Tree tree = record.tree;
+			int n = record.leafCount;
+			int [] count = record.blockCount;
+			double [] start = record.blockStart;
+			double [] end = record.blockEnd;
         	for (int i = 0; i < n*2-1; i++) {
         		int c = count[i];
         		Node node = tree.getNode(i);
@@ -90,26 +68,25 @@ public class TransmissionTreeInfectionTimes extends Runnable {
         			}	
         		}
         	}
-        }
-        
-        double sum = 0;
-        for (double d : bins) {
-        	sum += d;
-        }
-        for (int i = 0; i < bins.length; i++) {
-        	bins[i] /= sum;
-        }
-        
-        System.out.println(Arrays.toString(bins));
-        
-        
-        Log.warning("Done");
-	}
+		}
 
+		@Override
+		public void close() {
+	        double sum = 0;
+	        for (double d : bins) {
+	        	sum += d;
+	        }
+	        for (int i = 0; i < bins.length; i++) {
+	        	bins[i] /= sum;
+	        }
+	        
+	        out.println(Arrays.toString(bins));
+		}
 
-    private void add(double d, double[] bins) {
-		int i = (int)(bins.length * d / endTime);
-		bins[i]++;
+	    private void add(double d, double[] bins) {
+			int i = (int)(bins.length * d / endTime);
+			bins[i]++;
+		}
 	}
 
 	public static void main(String[] args) throws Exception {
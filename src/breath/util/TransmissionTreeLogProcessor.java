@@ -0,0 +1,123 @@
+package breath.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beastfx.app.treeannotator.TreeAnnotator;
+import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+
+/**
+ * Reads a transmission tree log once, extracting meta data and colouring of every tree
+ * once, and passes the result on to any number of summaries.
+ * Tree logs can be in Nexus or Newick format, or in the binary format written by BinaryTreeLogWriter.
+ * For Nexus files, a TreeLogIndex is used to skip burn-in and thin without parsing skipped trees.
+ */
+public class TransmissionTreeLogProcessor {
+
+	/** source of trees, filling in the record and returning false when there are no more trees **/
+	private interface TreeSource {
+		boolean next(TransmissionTreeRecord record, int sample) throws IOException;
+	}
+
+	public static int process(File treeFile, int burnInPercentage, String partition, TransmissionTreeSummary... summaries) throws IOException {
+		return process(treeFile, burnInPercentage, 1, partition, Arrays.asList(summaries));
+	}
+
+	public static int process(File treeFile, int burnInPercentage, String partition, List<TransmissionTreeSummary> summaries) throws IOException {
+		return process(treeFile, burnInPercentage, 1, partition, summaries);
+	}
+
+	/**
+	 * @param thin only process every thin-th tree after burn-in
+	 * @return number of trees processed
+	 */
+	public static int process(File treeFile, int burnInPercentage, int thin, String partition, List<TransmissionTreeSummary> summaries) throws IOException {
+		if (thin < 1) {
+			throw new IllegalArgumentException("thin should be at least 1, not " + thin);
+		}
+		if (BinaryTreeLogReader.isBinaryTreeLog(treeFile)) {
+			int burnin = burnInPercentage > 0 ? BinaryTreeLogReader.countRecords(treeFile) * burnInPercentage / 100 : 0;
+			try (BinaryTreeLogReader reader = new BinaryTreeLogReader(treeFile)) {
+				for (int i = 0; i < burnin && reader.next(); i++) {
+					// skip burn-in
+				}
+				return process(partition, summaries, (record, sample) -> {
+					for (int i = 1; i < thin && sample > 0; i++) {
+						if (!reader.next()) {
+							return false;
+						}
+					}
+					if (!reader.next()) {
+						return false;
+					}
+					reader.fill(record, sample);
+					return true;
+				});
+			}
+		}
+
+		try (TreeLogIndex index = TreeLogIndex.get(treeFile)) {
+			if (index.size() > 0) {
+				// only the header is read, for the translate block used when parsing
+				TreeLogReader reader = new TreeLogReader(treeFile);
+				reader.close();
+				int burnin = index.getBurnin(burnInPercentage);
+				return process(partition, summaries, (record, sample) -> {
+					int i = burnin + sample * thin;
+					if (i >= index.size()) {
+						return false;
+					}
+					record.set(reader.parse(index.getNewick(i)), sample);
+					return true;
+				});
+			}
+		}
+
+		// no tree lines, so not a Nexus file: fall back on TreeAnnotator's tree set
+		MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), burnInPercentage);
+		trees.reset();
+		return process(partition, summaries, (record, sample) -> {
+			for (int i = 1; i < thin && sample > 0 && trees.hasNext(); i++) {
+				trees.next();
+			}
+			if (!trees.hasNext()) {
+				return false;
+			}
+			Tree tree = trees.next();
+			record.set(tree, sample);
+			return true;
+		});
+	}
+
+	private static int process(String partition, List<TransmissionTreeSummary> summaries, TreeSource trees) throws IOException {
+		TransmissionTreeRecord record = new TransmissionTreeRecord(partition);
+		boolean warnedAboutPartitionSetting = false;
+		int sample = 0;
+		while (trees.next(record, sample)) {
+			if (record.isPoorlyMatched() && !warnedAboutPartitionSetting) {
+				Log.warning("WARNING: not much metadata matched: did you specify the 'partition'?");
+				warnedAboutPartitionSetting = true;
+			}
+			if (sample == 0) {
+				for (TransmissionTreeSummary summary : summaries) {
+					summary.init(record);
+				}
+			}
+			for (TransmissionTreeSummary summary : summaries) {
+				summary.process(record);
+			}
+			sample++;
+			if (sample % 1000 == 0) {
+				System.err.print(".");
+			}
+		}
+		for (TransmissionTreeSummary summary : summaries) {
+			summary.close();
+		}
+		return sample;
+	}
+}
@@ -0,0 +1,129 @@
+package breath.util;
+
+import java.util.Arrays;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import breath.distribution.ColourProvider;
+
+/**
+ * Transmission tree from a tree log with block counts, block starts and block ends
+ * taken from the meta data of its nodes, and the colouring derived from these.
+ * Meta data is extracted and the colouring calculated once per tree, so all summaries
+ * of a tree log can share them. Buffers are reused between trees of the same size.
+ */
+public class TransmissionTreeRecord {
+	private final String partition;
+
+	public Tree tree;
+	// index of the tree in the log, after burn-in
+	public int sample;
+	public int leafCount;
+	// indexed by node number; the root has block count -1
+	public int [] blockCount;
+	public double [] blockStart;
+	public double [] blockEnd;
+	public int [] colourAtBase;
+	// number of meta data items that could not be found
+	private int noMatchCount;
+
+	/**
+	 * @param partition name of the partition appended to `blockcount, blockend and blockstart`, may be null
+	 */
+	public TransmissionTreeRecord(String partition) {
+		this.partition = partition;
+	}
+
+	/** extract meta data from tree and calculate colouring **/
+	public void set(Tree tree, int sample) {
+		this.tree = tree;
+		this.sample = sample;
+		leafCount = tree.getLeafNodeCount();
+		int nodeCount = tree.getNodeCount();
+		if (blockCount == null || blockCount.length != nodeCount) {
+			blockCount = new int[nodeCount];
+			blockStart = new double[nodeCount];
+			blockEnd = new double[nodeCount];
+			colourAtBase = new int[nodeCount];
+		}
+
+		noMatchCount = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			Node node = tree.getNode(i);
+			blockStart[i] = getMetaData(node, "start", "blockstart", 0.5);
+			blockEnd[i] = getMetaData(node, "end", "blockend", 0.5);
+			Object o = node.getMetaData("blockcount");
+			if (o == null) {
+				o = node.getMetaData("blockcount.t:" + partition);
+			}
+			if (o == null) {
+				noMatchCount++;
+			}
+			blockCount[i] = o == null ? 0 : (int)(double) o;
+		}
+		blockCount[tree.getRoot().getNr()] = -1;
+
+		ColourProvider.getColour(tree.getRoot(), blockCount, leafCount, colourAtBase);
+	}
+
+	/** as set(tree, sample), but with block counts, starts and ends given as arrays indexed by node number, e.g. from a binary tree log **/
+	public void set(Tree tree, int sample, int [] blockCount, double [] blockStart, double [] blockEnd) {
+		this.tree = tree;
+		this.sample = sample;
+		leafCount = tree.getLeafNodeCount();
+		int nodeCount = tree.getNodeCount();
+		if (this.blockCount == null || this.blockCount.length != nodeCount) {
+			this.blockCount = new int[nodeCount];
+			this.blockStart = new double[nodeCount];
+			this.blockEnd = new double[nodeCount];
+			colourAtBase = new int[nodeCount];
+		}
+		System.arraycopy(blockCount, 0, this.blockCount, 0, nodeCount);
+		System.arraycopy(blockStart, 0, this.blockStart, 0, nodeCount);
+		System.arraycopy(blockEnd, 0, this.blockEnd, 0, nodeCount);
+		noMatchCount = 0;
+		this.blockCount[tree.getRoot().getNr()] = -1;
+
+		ColourProvider.getColour(tree.getRoot(), this.blockCount, leafCount, colourAtBase);
+	}
+
+	private double getMetaData(Node node, String shortName, String name, double defaultValue) {
+		Object o = node.getMetaData(shortName);
+		if (o == null) {
+			o = node.getMetaData(name);
+		}
+		if (o == null) {
+			o = node.getMetaData(name + ".t:" + partition);
+		}
+		if (o == null) {
+			noMatchCount++;
+			return defaultValue;
+		}
+		return (Double) o;
+	}
+
+	/** true if so little meta data was found that the partition is probably not set right **/
+	public boolean isPoorlyMatched() {
+		return noMatchCount > tree.getNodeCount();
+	}
+
+	/**
+	 * determine who infected who: infectedBy[i] is the leaf that infected leaf i,
+	 * or -1 if infected by an unsampled host
+	 * @param directOnly consider direct infections only, if false block counts are ignored
+	 */
+	public void calcInfectedBy(boolean directOnly, int [] infectedBy) {
+		int n = leafCount;
+		Arrays.fill(infectedBy, -1);
+		for (int i = 0; i < 2 * n - 2; i++) {
+			Node node = tree.getNode(i);
+			Node parent = node.getParent();
+			if (colourAtBase[node.getNr()] < n && colourAtBase[parent.getNr()] < n &&
+					colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
+				if (!directOnly || blockCount[node.getNr()] == 0) {
+					infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
+				}
+			}
+		}
+	}
+}
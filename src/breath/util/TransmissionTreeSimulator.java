@@ -1,15 +1,23 @@
 package breath.util;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.GammaDistribution;
@@ -23,6 +31,7 @@ import beast.base.core.Function.Constant;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import beast.base.evolution.tree.coalescent.ConstantPopulation;
 import beast.base.evolution.tree.coalescent.ExponentialGrowth;
@@ -33,12 +42,12 @@ import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Binomial;
 import beast.base.util.HeapSort;
+import beast.base.util.MersenneTwisterFast;
 import beast.base.util.Randomizer;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import breath.distribution.ColourProvider;
 import breath.distribution.GammaHazardFunction;
-import breath.distribution.TransmissionTreeLikelihood;
 import breath.distribution.TransmissionTreeLikelihood1;
 import breath.evolution.LinearGrowth;
 
@@ -79,14 +88,25 @@ public class TransmissionTreeSimulator extends Runnable {
 	final public Input<Boolean> calcLogPInput = new Input<>("calcLogP", "calculate transmission likelihood for generated trees", false);
 
 	final public Input<Double> incubationProportionInput = new Input<>("incubationProportion", "proportion of transmission hazard that should be considered incubation time", 0.0);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating trees. "
+			+ "Every tree gets its own random number stream derived from the seed, so the output does not depend on the number of threads", 1);
+	final public Input<Boolean> conditionedCoalescentInput = new Input<>("conditionedCoalescent", "sample within-host coalescent trees conditioned on "
+			+ "all lineages coalescing before the host got infected. If false, or not possible for the population model, "
+			+ "coalescent trees are sampled until one is found that coalesces in time (up to maxAttempts)", true);
+	final public Input<Boolean> largeEpidemicInput = new Input<>("largeEpidemic", "keep infected hosts in primitive arrays and discard hosts without sampled descendants "
+			+ "as soon as they are resolved, so large epidemics with low sampling proportions fit in memory. "
+			+ "Trees have the same distribution as in the default mode, but are simulated from a different random number stream", false);
+	final public Input<Boolean> directSamplingInput = new Input<>("directSampling", "draw gamma and Poisson distributed variates with direct samplers. "
+			+ "If false, variates are drawn by inverting the cumulative distribution function, which is much slower", true);
+
+	final public Input<Boolean> importanceSamplingInput = new Input<>("importanceSampling", "when conditioning on taxonCount, simulate with a sampling proportion "
+			+ "tuned to give trees with about taxonCount taxa instead of the sampleConstant, and correct with importance weights, "
+			+ "which are logged as logWeight in the trace. Simulations stop as soon as there are more than taxonCount taxa", false);
+	final public Input<Double> tiltedSampleConstantInput = new Input<>("tiltedSampleConstant", "sampling proportion used for simulation with importanceSampling. "
+			+ "If not specified, it is tuned in pilot runs");
 
-	private Node root;
-	private Map<Node, Integer> colourMap;
-	private int nodeCount;
-	private double logP;
-	
 	private final boolean debug = false;
-	private String newick0;
+	private int maxBlockCount = -1;
 	
 	@Override
 	public void initAndValidate() {
@@ -111,6 +131,7 @@ public class TransmissionTreeSimulator extends Runnable {
 		if (seedInput.get() != null) {
 			Randomizer.setSeed(seedInput.get());
 		}
+		final long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
 		PrintStream out = System.out;
 		if (outputInput.get() != null) {
 			out = new PrintStream(outputInput.get());
@@ -127,7 +148,8 @@ public class TransmissionTreeSimulator extends Runnable {
     			traceout.print("t" + format(i+1) + "\t");
     		}
     	}
-    	traceout.println("endTime\tTree.height\tTree.treeLength\torigin\tlogP" + (calcLogPInput.get()? "\tlogP2" : ""));
+		boolean importanceSampling = importanceSamplingInput.get() && taxonCount > 0;
+    	traceout.println("endTime\tTree.height\tTree.treeLength\torigin\tlogP" + (calcLogPInput.get()? "\tlogP2" : "") + (importanceSampling ? "\tlogWeight" : ""));
 		
 Log.warning(sampleConstantInput.get().getArrayValue() + "");    	
 Log.warning(transmissionConstantInput.get().getArrayValue() + "");    	
@@ -136,45 +158,59 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 		
 		PrintStream out0 = debug? new PrintStream("/tmp/out0.nwk") : null;
 
-    	
-    	long attempts = 0;
+		// trees are simulated by a pool of workers, but consumed in index order.
+		// At most a few trees per thread are kept in memory.
+		final Model model = new Model();
+		if (importanceSampling) {
+			if (tiltedSampleConstantInput.get() != null) {
+				model.setTiltedSampleConstant(tiltedSampleConstantInput.get());
+			} else {
+				tuneSampleConstant(model, seed, taxonCount);
+			}
+			// trees with more taxa are rejected anyway, so stop simulating as soon as that happens
+			maxTaxonCount = Math.min(maxTaxonCount, taxonCount);
+		}
+		List<Double> logWeights = new ArrayList<>();
+		final int maxTaxa = maxTaxonCount;
+		int threads = Math.max(1, threadsInput.get());
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		Deque<Future<SimulatedTree>> pending = new ArrayDeque<>();
+		int submitted = 0;
+		try {
 		for (int i = 0; i < treeCountInput.get(); i++) {
-			int k;
-			double logP;
-			do {
-				this.logP = 0;
-				logP = runOnce(maxTaxonCount);
-				k = root.getAllLeafNodes().size();
-				if (!taxonCounts.containsKey(k)) {
-					taxonCounts.put(k, 0);
+			SimulatedTree result;
+			if (pool == null) {
+				result = simulate(model, i, seed, maxTaxa);
+			} else {
+				while (submitted < treeCountInput.get() && pending.size() < threads * 4) {
+					final int index = submitted++;
+					pending.add(pool.submit(() -> simulate(model, index, seed, maxTaxa)));
 				}
-				taxonCounts.put(k, taxonCounts.get(k) + 1);
-				attempts++;
-				if (attempts % 100000 == 0) {
-					// reportAttempts(taxonCounts, );
+				try {
+					result = pending.removeFirst().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
 				}
-			} while (Double.isInfinite(logP) || taxonCount > 0 && taxonCount != k);
+			}
 
-			System.out.println(i+"\t" + nodeCount + "\t" + logP);
-			
-			// convert to binary tree
-			while (root.getChildCount() == 1) {
-				root = root.getChild(0);
+			for (int k : result.attempts.keySet()) {
+				if (!taxonCounts.containsKey(k)) {
+					taxonCounts.put(k, 0);
+				}
+				taxonCounts.put(k, taxonCounts.get(k) + result.attempts.get(k));
 			}
-			root.setParent(null);
-			String newick = toNewick(root);
+
+			System.out.println(i+"\t" + result.nodeCount + "\t" + result.logP);
 			
-			int infectionCount = infectionCount(root);
+			int k = result.taxonCount;
 			if (!infectionCounts.containsKey(k)) {
 				infectionCounts.put(k, 0);
 			}
-			infectionCounts.put(k, infectionCounts.get(k) + infectionCount);
+			infectionCounts.put(k, infectionCounts.get(k) + result.infectionCount);
 
-			// for debugging
-			double h = root.getHeight();
-			for (Node node : root.getAllLeafNodes()) {
-				h = Math.min(h,  node.getHeight());
-			}
 			// System.err.println(toShortNewick(root, colourMap));
 		
 			if ((i+1) % 10 == 0) {
@@ -184,12 +220,14 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 					System.err.print(".");
 				}
 			}
-			out.println(newick);
+			result.writeNewick(out);
+			out.println();
+			maxBlockCount = Math.max(maxBlockCount, result.simulation.maxBlockCount);
 	    	traceout.print(i +"\t");
 	    	
 
 			if (printTaxaInTrace && taxonCount > 0) {
-				TreeParser tree = new TreeParser(newick);
+				TreeParser tree = new TreeParser(result.getNewick());
 				IntegerParameter blockCount = new IntegerParameter();
 				blockCount.initByName("dimension", taxonCount*2+1, "value", "-1");
 				for (int j = 0; j < tree.getNodeCount(); j++) {
@@ -204,22 +242,27 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 				
 				int [] infectedBy = new int[taxonCount];
 				Arrays.fill(infectedBy, -1);
-				collectInfectedBy(root, infectedBy, taxonCount, colourAtBase, blockCount);
+				collectInfectedBy(tree.getRoot(), infectedBy, taxonCount, colourAtBase, blockCount);
 	    	
 	    		for (int j = 0; j < taxonCount; j++) {
 	    			traceout.printf(infectedBy[j] + "\t");
 	    		}
 			}
-			double height = (root.getHeight() - h);
-			double origin = endTimeInput.get().getArrayValue() - root.getHeight() + height;
-			double logP2 = calcLogPInput.get() ? calcLogP(newick, h, origin) : 0;
-	    	traceout.println((-h) + "\t" + height + "\t" + length(root) + "\t" + (endTimeInput.get().getArrayValue()-h) + "\t" + logP +
-	    			(calcLogPInput.get() ? "\t" + logP2 : "" ));
+			double h = result.h;
+	    	traceout.println((-h) + "\t" + result.height + "\t" + result.length + "\t" + (endTimeInput.get().getArrayValue()-h) + "\t" + result.logP +
+	    			(calcLogPInput.get() ? "\t" + result.logP2 : "" ) +
+	    			(importanceSampling ? "\t" + result.logWeight : ""));
+	    	logWeights.add(result.logWeight);
 			
-	    	if (debug && Math.abs(logP-logP2) > 0.01) {
-	    		out0.println(newick0);
+	    	if (debug && Math.abs(result.logP-result.logP2) > 0.01) {
+	    		out0.println(result.newick0);
 	    	}
 	    	
+		}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
 		}
 		if (debug) {
 			out0.close();
@@ -227,6 +270,9 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 		
 		System.err.println();
 		reportAttempts(taxonCounts, infectionCounts);
+		if (importanceSampling) {
+			Log.warning("Effective sample size of importance weights: " + effectiveSampleSize(logWeights) + " out of " + logWeights.size() + " trees");
+		}
 		
 		if (traceOutputInput.get() != null && !traceOutputInput.get().getName().equals("[[none]]")) {
 			traceout.close();
@@ -236,8 +282,286 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 		}		
 		Log.warning("Done");
 	}
+
+	/**
+	 * tune sampling proportion used for simulation with importance sampling, so that the mean
+	 * taxon count in pilot runs gets close to taxonCount. Pilot runs use their own random
+	 * number streams, so the result only depends on the seed.
+	 */
+	private void tuneSampleConstant(Model model, long seed, int taxonCount) throws MathException {
+		final int rounds = 10, pilotCount = 100;
+		// outbreaks with many more taxa are cut short
+		int cap = taxonCount * 10;
+		double q = model.sampleConstant;
+		for (int round = 0; round < rounds; round++) {
+			model.setTiltedSampleConstant(q);
+			double mean = 0;
+			for (int j = 0; j < pilotCount; j++) {
+				Simulation simulation = new Simulation(model, seedFor(~seed, round * pilotCount + j));
+				double logP = simulation.runOnce(cap);
+				mean += Double.isInfinite(logP) ? cap : getSampledCount(simulation.root);
+			}
+			mean /= pilotCount;
+			q = Math.min(0.99, Math.max(1e-6, q * taxonCount / Math.max(mean, 0.5)));
+		}
+		model.setTiltedSampleConstant(q);
+		Log.warning("Simulating with sampling proportion " + q + " instead of " + model.sampleConstant + ", logWeight in trace contains importance weights");
+	}
+
+	/** (sum w)^2 / sum w^2 for importance weights w **/
+	static double effectiveSampleSize(List<Double> logWeights) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double w : logWeights) {
+			max = Math.max(max, w);
+		}
+		double sum = 0, sum2 = 0;
+		for (double w : logWeights) {
+			double x = Math.exp(w - max);
+			sum += x;
+			sum2 += x * x;
+		}
+		return sum * sum / sum2;
+	}
+
+	/** tree simulated by a worker, with everything needed to write its output **/
+	public static class SimulatedTree {
+		Simulation simulation;
+		Node root;
+		private String newick;
+		public double logP;
+		public double logP2;
+		// log importance weight, 0 unless simulated with a tilted sampling proportion
+		public double logWeight;
+		// height of the youngest leaf below the end time
+		public double h;
+		public double height;
+		public double length;
+		public double origin;
+		public int nodeCount;
+		public int taxonCount;
+		public int infectionCount;
+		// number of infected hosts in the outbreak, including unsampled ones
+		public int hostCount;
+		// number of attempts per taxon count, including the rejected ones
+		Map<Integer, Integer> attempts = new HashMap<>();
+		String newick0;
+
+		/** write tree in Newick format with block counts, block starts, block ends and colours as meta data **/
+		public void writeNewick(Appendable out) throws IOException {
+			if (newick != null) {
+				out.append(newick);
+			} else {
+				simulation.writeNewick(root, out);
+			}
+		}
+
+		public String getNewick() {
+			if (newick == null) {
+				newick = simulation.toNewick(root);
+			}
+			return newick;
+		}
+
+		/**
+		 * infection time of the host of every leaf, and time between its infection and sampling.
+		 * Times are heights above the youngest leaf; the index case is infected at the origin.
+		 */
+		public void calcHostTimes(double [] infectionTime, double [] timeTillSampling) {
+			if (taxonCount == 0) {
+				return;
+			}
+			int [] blockCount = new int[taxonCount * 2 - 1];
+			double [] blockStart = new double[taxonCount * 2 - 1];
+			double [] blockEnd = new double[taxonCount * 2 - 1];
+			Node tree = simulation.toBEASTTree(root, h, taxonCount, blockCount, blockStart, blockEnd);
+			for (Node leaf : getLeafNodes(tree)) {
+				Node node = leaf;
+				while (!node.isRoot() && blockCount[node.getNr()] < 0) {
+					node = node.getParent();
+				}
+				int i = leaf.getNr();
+				if (blockCount[node.getNr()] >= 0) {
+					infectionTime[i] = node.getHeight() + node.getLength() * blockStart[node.getNr()];
+				} else {
+					infectionTime[i] = origin;
+				}
+				timeTillSampling[i] = infectionTime[i] - leaf.getHeight();
+			}
+		}
+	}
+	
+	/**
+	 * simulate tree with index i, retrying until the taxon count matches.
+	 * Only the random number stream of this tree is used, so the result
+	 * does not depend on which thread runs it, or on the other trees.
+	 */
+	public SimulatedTree simulate(Model model, int i, long seed, int maxTaxonCount) throws MathException {
+		int taxonCount = taxonCountInput.get();
+		Simulation simulation = new Simulation(model, seedFor(seed, i));
+		SimulatedTree result = new SimulatedTree();
+		int k;
+		double logP;
+		do {
+			logP = simulation.runOnce(maxTaxonCount);
+			k = getSampledCount(simulation.root);
+			if (!result.attempts.containsKey(k)) {
+				result.attempts.put(k, 0);
+			}
+			result.attempts.put(k, result.attempts.get(k) + 1);
+		} while (Double.isInfinite(logP) || taxonCount > 0 && taxonCount != k);
+		return summarise(simulation, result, i, k, logP);
+	}
+
+	/**
+	 * simulate a single outbreak from the given seed, without conditioning on the taxon count
+	 * @return simulated tree, which is empty if no host was sampled, or null if the outbreak has more than maxTaxonCount taxa
+	 */
+	public SimulatedTree simulateOutbreak(Model model, long seed, int maxTaxonCount) throws MathException {
+		Simulation simulation = new Simulation(model, seed);
+		double logP = simulation.runOnce(maxTaxonCount);
+		if (Double.isInfinite(logP)) {
+			return null;
+		}
+		if (simulation.root.getChildCount() == 0) {
+			SimulatedTree result = new SimulatedTree();
+			result.simulation = simulation;
+			result.hostCount = simulation.hostCount;
+			result.logP = logP;
+			return result;
+		}
+		int k = getSampledCount(simulation.root);
+		return summarise(simulation, new SimulatedTree(), 0, k, logP);
+	}
+
+	private SimulatedTree summarise(Simulation simulation, SimulatedTree result, int i, int k, double logP) throws MathException {
+		Model model = simulation.model;
+		// convert to binary tree
+		Node root = simulation.root;
+		while (root.getChildCount() == 1) {
+			root = root.getChild(0);
+		}
+		root.setParent(null);
+		result.simulation = simulation;
+		result.root = root;
+		result.infectionCount = simulation.infectionCount(root);
+		result.hostCount = simulation.hostCount;
+		result.nodeCount = simulation.nodeCount;
+		result.taxonCount = k;
+		result.logP = logP;
+		result.logWeight = simulation.logWeight;
+		result.newick0 = simulation.newick0;
+
+		// for debugging
+		double h = root.getHeight();
+		for (Node node : getLeafNodes(root)) {
+			h = Math.min(h,  node.getHeight());
+		}
+		result.h = h;
+		result.height = (root.getHeight() - h);
+		result.origin = model.endTime - root.getHeight() + result.height;
+		result.length = length(root);
+		result.logP2 = calcLogPInput.get() ? calcLogP(simulation, root, k, h, result.origin) : 0;
+		if (debug && calcLogPInput.get()) {
+			double logP2 = calcLogPFromNewick(result.getNewick(), h, result.origin);
+			if (Math.abs(logP2 - result.logP2) > 1e-6) {
+				Log.warning("Likelihood of tree " + i + " differs: " + result.logP2 + " != " + logP2 + " from Newick");
+			}
+		}
+		return result;
+	}
+
+	/** seed of the random number stream for tree i, mixed with SplitMix64 so neighbouring streams are unrelated **/
+	static long seedFor(long seed, int i) {
+		long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
 		
-	private double calcLogP(String newick, double h, double origin) {
+	/**
+	 * transmission tree likelihood set up once for a given taxon count, and reused for
+	 * every simulated tree by copying the tree and block parameters into it
+	 */
+	class LikelihoodEvaluator {
+		private final int taxonCount;
+		private Tree tree;
+		private final IntegerParameter blockCount;
+		private final RealParameter blockStart;
+		private final RealParameter blockEnd;
+		private final RealParameter endTime;
+		private final RealParameter origin;
+		private TransmissionTreeLikelihood1 likelihood;
+
+		LikelihoodEvaluator(int taxonCount) {
+			this.taxonCount = taxonCount;
+			blockCount = new IntegerParameter();
+			blockStart = new RealParameter();
+			blockEnd = new RealParameter();
+			blockCount.initByName("dimension", taxonCount*2-1, "value", "-1", "lower", -1, "upper", 1000);
+			blockStart.initByName("dimension", taxonCount*2-2, "value", "0.5", "lower", 0.0, "upper", 1.0);
+			blockEnd.initByName(  "dimension", taxonCount*2-2, "value", "0.5", "lower", 0.0, "upper", 1.0);
+			endTime = new RealParameter("0.0");
+			origin = new RealParameter("0.0");
+		}
+
+		double calculateLogP(Simulation simulation, Node root, double h, double originValue) {
+			int [] counts = new int[taxonCount*2-1];
+			double [] starts = new double[taxonCount*2-2];
+			double [] ends = new double[taxonCount*2-2];
+			Node newRoot = simulation.toBEASTTree(root, h, taxonCount, counts, starts, ends);
+			for (int i = 0; i < counts.length; i++) {
+				blockCount.setValue(i, counts[i]);
+			}
+			for (int i = 0; i < starts.length; i++) {
+				blockStart.setValue(i, starts[i]);
+				blockEnd.setValue(i, ends[i]);
+			}
+			endTime.setValue(0, h - endTimeInput.get().getArrayValue());
+			origin.setValue(0, originValue);
+
+			if (likelihood == null) {
+				tree = new Tree(newRoot);
+				likelihood = new TransmissionTreeLikelihood1();
+				likelihood.initByName("tree", tree,
+						"blockstart", blockStart,
+						"blockend", blockEnd,
+						"blockcount", blockCount,
+						"populationModel", getPopFun(),
+						"endTime", endTime,
+						"origin", origin,
+						"samplingHazard", newHazard(sampleShapeInput, sampleRateInput, sampleConstantInput),
+						"transmissionHazard", newHazard(transmissionShapeInput, transmissionRateInput, transmissionConstantInput),
+						"includeCoalescent", true
+						);
+			} else {
+				tree.assignFromFragile(new Tree(newRoot));
+			}
+			return likelihood.calculateLogP();
+		}
+	}
+
+	private GammaHazardFunction newHazard(Input<Function> shape, Input<Function> rate, Input<Function> constant) {
+		GammaHazardFunction hazard = new GammaHazardFunction();
+		hazard.initByName("shape", shape.get().getArrayValue() + "",
+				"rate", rate.get().getArrayValue() + "",
+				"C", constant.get().getArrayValue() + "");
+		return hazard;
+	}
+
+	// likelihood evaluators per taxon count, one set for every thread
+	private ThreadLocal<Map<Integer, LikelihoodEvaluator>> evaluators = ThreadLocal.withInitial(HashMap::new);
+
+	/** likelihood of simulated tree, calculated without going through Newick **/
+	private double calcLogP(Simulation simulation, Node root, int taxonCount, double h, double origin) {
+		Map<Integer, LikelihoodEvaluator> map = evaluators.get();
+		if (!map.containsKey(taxonCount)) {
+			map.put(taxonCount, new LikelihoodEvaluator(taxonCount));
+		}
+		return map.get(taxonCount).calculateLogP(simulation, root, h, origin);
+	}
+
+	/** likelihood of simulated tree, calculated from its Newick representation. Much slower than calcLogP, used for debugging **/
+	private double calcLogPFromNewick(String newick, double h, double origin) {
 		TreeParser tree = new TreeParser(newick);
 
 		int taxonCount = tree.getLeafNodeCount();
@@ -276,21 +600,6 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 				"rate", sampleRateInput.get().getArrayValue() + "",
 				"C", sampleConstantInput.get().getArrayValue() + "");
 		
-		TransmissionTreeLikelihood tl = new TransmissionTreeLikelihood();
-		tl.initByName("tree", tree, 
-				"blockstart", blockStart,
-				"blockend", blockEnd,
-				"blockcount", blockCount,
-				"populationModel", popFun, 
-				"endTime", h-endTimeInput.get().getArrayValue() + "",
-				"origin", origin + "",
-				"samplingHazard", sampleHazard,
-				"transmissionHazard", transmissionHazard,
-				"includeCoalescent", true
-				);
-		
-		double logP = tl.calculateLogP();
-
 		TransmissionTreeLikelihood1 tl1 = new TransmissionTreeLikelihood1();
 		tl1.initByName("tree", tree, 
 				"blockstart", blockStart,
@@ -304,22 +613,27 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 				"includeCoalescent", true
 				);
 		
-		logP = tl1.calculateLogP();
-		return logP;
+		return tl1.calculateLogP();
 	}
 
 	private Abstract getPopFun() {
+		return getPopFun(popSizeInput.get() != null ? popSizeInput.get().getArrayValue() : null,
+				growthRateInput.get() != null ? growthRateInput.get().getArrayValue() : null);
+	}
+
+	/** population function for given population size and growth rate, either of which may be null **/
+	Abstract getPopFun(Double popSize, Double growthRate) {
 		Abstract popFun;
-		if (growthRateInput.get() != null && popSizeInput.get() != null) {
+		if (growthRate != null && popSize != null) {
 			popFun = new ExponentialGrowth();
-			popFun.initByName("popSize", popSizeInput.get().getArrayValue() + "",
-					"growthRate", growthRateInput.get().getArrayValue() + "");
-		} else if (growthRateInput.get() != null) {
+			popFun.initByName("popSize", popSize + "",
+					"growthRate", growthRate + "");
+		} else if (growthRate != null) {
 			popFun = new LinearGrowth();
-			popFun.initByName("rate", growthRateInput.get().getArrayValue() + "");
+			popFun.initByName("rate", growthRate + "");
 		} else {
 			popFun = new ConstantPopulation();
-			popFun.initByName("popSize", popSizeInput.get().getArrayValue() + "");
+			popFun.initByName("popSize", popSize + "");
 		}
 		return popFun;
 	}
@@ -386,183 +700,51 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 
 	private double length(Node node) {
 		double length = 0;
-		for (Node child : node.getChildren()) {
-			length += length(child);
-		}
-		if (!node.isRoot()) {
-			length += node.getLength();
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			Node n = stack.remove(stack.size() - 1);
+			if (n != node) {
+				length += n.getLength();
+			}
+			stack.addAll(n.getChildren());
 		}
 		return length;
 	}
 
-	private double runOnce(int maxTaxonCount) throws MathException {	
-		double endTime = endTimeInput.get().getArrayValue();
-		double popSize = popSizeInput.get().getArrayValue();
-
-		double sampleShape = sampleShapeInput.get().getArrayValue();
-		double sampleRate = sampleRateInput.get().getArrayValue();
-		double sampleConstant = sampleConstantInput.get().getArrayValue();
-
-		double transmissionShape = transmissionShapeInput.get().getArrayValue();
-		double transmissionRate = transmissionRateInput.get().getArrayValue();
-		double transmissionConstant = transmissionConstantInput.get().getArrayValue();
-
-		root = new ColouredNode();
-		root.setHeight(endTime);
-		List<Node> nodes = new ArrayList<>();
-		nodes.add(root);
+	private int getNodeCount(Node node) {
+		int nodeCount = 0;
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			Node n = stack.remove(stack.size() - 1);
+			nodeCount++;
+			stack.addAll(n.getChildren());
+		}
+		return nodeCount;
+	}
 
-		PoissonDistribution poisson = new PoissonDistributionImpl(transmissionConstant);
-		GammaDistribution sampleIntensity = new GammaDistributionImpl(sampleShape, 1.0 / sampleRate);
-		GammaDistribution transmissionIntensity = new GammaDistributionImpl(transmissionShape, 1.0 / transmissionRate);
-		
-		PopulationFunction popFun = getPopFun();
+	/** number of sampled hosts below the root of a simulated outbreak, 0 if the root has no children (as Node.getAllLeafNodes) **/
+	static int getSampledCount(Node root) {
+		return root.getChildCount() == 0 ? 0 : getLeafNodes(root).size();
+	}
 
+	/** leaf nodes in the subtree below node, without recursion so that deep trees are no problem **/
+	static List<Node> getLeafNodes(Node node) {
 		List<Node> leafs = new ArrayList<>();
-		int colour = 0;
-		colourMap = new HashMap<>();
-		colourMap.put(root, colour);
-		((ColouredNode)root).setColour(colour);
-		
-		this.logP = 0;
-		while (nodes.size() > 0) {
-			// continue with last node
-			Node node = nodes.remove(nodes.size() - 1);
-
-			// 1. draw number of events
-			double r = Randomizer.nextDouble();
-			int n = poisson.inverseCumulativeProbability(r);
-			addToLogP("#events", Math.log(poisson.probability(n)));
-					
-			// 2. draw whether colour will be sampled
-			boolean sample = (Randomizer.nextDouble() < sampleConstant);
-			if (sample) {
-				addToLogP("SampleP", Math.log(sampleConstant));
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			Node n = stack.remove(stack.size() - 1);
+			if (n.isLeaf()) {
+				leafs.add(n);
 			} else {
-				addToLogP("SampleP", Math.log(1.0 - sampleConstant));
-			}
-			
-			
-			// 3. simulate the time of sampling:
-			// Note: do not need multiply by sampleConstant
-			r = Randomizer.nextDouble();
-			double sampletime = !sample ? 0
-					: node.getHeight() - sampleIntensity.inverseCumulativeProbability(r);
-			addToLogP("SampleTime", !sample ? 0 : sampleIntensity.logDensity(node.getHeight() - sampletime));
-			if (sampletime < 0) {
-				sample = false;
-			}
-
-			// 4. Simulate the times when node infects the new infectees
-			//double [] times = new double[n];
-			Double[] times = new Double[n];
-			double threshold = incubationProportionInput.get();
-			for (int i = 0; i < n; i++) {
-				// Note: do not need multiply by transmissionConstant
-				r = threshold + Randomizer.nextDouble() * (1.0 - threshold);
-				double delta = transmissionIntensity.inverseCumulativeProbability(r);
-				times[i] = node.getHeight()
-						- delta;
-				//addToLogP("TransTime", transmissionIntensity.logDensity(node.getHeight()-times[i]));
-				addToLogP("TransTime", delta);
-			}
-			
-			// remove times that are invalid: after study time, or after sample time (if any)
-			Arrays.sort(times, new Comparator<Double>() {
-				@Override
-				public int compare(Double a, Double b) {
-						 if (a > b) return -1;
-						 if (b > a) return 1;
-						 return 0;
-			}});
-			// remove times that are invalid: after study time, or after sample time (if any)
-			while (n > 0 && (times[n - 1] < 0 || times[n - 1] < sampletime)) {
-				n--;
-			}
-			
-						
-			List<Node> current = new ArrayList<>();
-			// create leaf node
-			if (sample) {
-				ColouredNode leaf = new ColouredNode();
-				leaf.setColour(colour);
-				colourMap.put(leaf, colour);
-				leaf.setHeight(sampletime);
-				leafs.add(leaf);
-				current.add(leaf);
-				leaf.setID("t" + format(leafs.size()));
-				if (leafs.size() > maxTaxonCount) {
-					if (!quietInput.get()) {
-						System.err.print("x");
-					}
-					logP = Double.NEGATIVE_INFINITY;
-					//runOnce(maxTaxonCount);
-					addToLogP("\nrunOnce(too many taxa)", logP);
-					return logP;
+				for (int i = n.getChildCount() - 1; i >= 0; i--) {
+					stack.add(n.getChild(i));
 				}
 			}
-			// create internal (infection) nodes
-			for (int i = 0; i < n; i++) {
-				ColouredNode infectee = new ColouredNode();
-				infectee.setColour(colour);
-				colourMap.put(infectee, colour);
-				infectee.setHeight(times[i]);
-				nodes.add(infectee);
-				current.add(infectee);
-			}
-
-			
-			// 5. Sampling a within-host phylogeny
-			double currentHeight = sample ? sampletime : (n > 0 ? times[n-1] : 0);
-			
-			double [] logPCoalescent = new double[1];
-			Node fragment = simulateCoalescent(current, popFun, currentHeight, node.getHeight(), maxAttemptsInput.get(), logPCoalescent, colour);
-			addToLogP("Coalescent:", logPCoalescent[0]);
-			if (fragment == null) {
-				if (!quietInput.get()) {
-					System.err.print("c");
-				}
-				addToLogP("runOnce2", runOnce(maxTaxonCount));
-				return logP;
-			}
-			// connect to node
-			node.addChild(fragment);
-
-			colourFragment(fragment, colour, colourMap);
-			
-			colour++;
 		}
-		
-		
-		// find all nodes to include in tree
-		Set<Node> includedNodes = new HashSet<>();
-		for (Node node : leafs) {
-			while (node != root) {
-				includedNodes.add(node);
-				node = node.getParent();
-			}
-		}
-		
-		if (debug) {
-			newick0 = root.toNewick();
-		}
-		// remove nodes not included from tree
-		traverse(root, includedNodes);
-		nodeCount = getNodeCount(root);
-		return logP;
-	}
-
-	private void addToLogP(String caller, double log) {
-		// if (caller.startsWith("TransTime"))System.err.println(caller + " " + log);
-		logP += log;
-	}
-
-	private int getNodeCount(Node node) {
-		int nodeCount = 1;
-		for (Node child : node.getChildren()) {
-			nodeCount += getNodeCount(child);
-		}
-		return nodeCount;
+		return leafs;
 	}
 
 	private String format(int i) {
@@ -574,36 +756,28 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 			return "00"+i;
 		}
 	}
-	
-	private Node simulateCoalescent(List<Node> current, PopulationFunction popFun, double currentHeight,
-			double height, int maxAttemptCount, double [] logPCoalescent, int colour) {
-		if (current.size() == 0) {
-			ColouredNode node =  new ColouredNode();
-			node.setColour(colour);
-			node.setHeight(currentHeight);
-			return node;
+
+	private void colourFragment(Node node, int colour, Map<Node, Integer> colourMap) {
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			Node n = stack.remove(stack.size() - 1);
+			colourMap.put(n,  colour);
+			stack.addAll(n.getChildren());
 		}
-		
-		List<Node> fragment;
-		int attempt = 0;
-		do {
-			List<Node> currentCopy = new ArrayList<>(current);
-			fragment = simulateCoalescent(currentCopy, popFun, currentHeight, height, logPCoalescent, colour);
-			if (fragment.size() == 1) {
-				return fragment.get(0);
-			}
-			attempt++;
-			logPCoalescent[0] = 0;
-		} while (attempt < maxAttemptCount);
-		Log.warning("Could not find a proper coalescent tree after " + maxAttemptCount + " attempts. "
-				+ "Consider decreasing the population size or increasing maxAttempts.");
-		return null;
 	}
 
-	private void colourFragment(Node node, int colour, Map<Node, Integer> colourMap) {
-		colourMap.put(node,  colour);
-		for (Node child : node.getChildren()) {
-			colourFragment(child, colour, colourMap);
+	/** colour nodes of a within-host genealogy, but not the lineages it was simulated for, nor anything below them **/
+	private void colourFragment(Node node, int colour, Map<Node, Integer> colourMap, List<Node> lineages) {
+		Set<Node> stop = new HashSet<>(lineages);
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			Node n = stack.remove(stack.size() - 1);
+			if (!stop.contains(n)) {
+				colourMap.put(n,  colour);
+				stack.addAll(n.getChildren());
+			}
 		}
 	}
 
@@ -623,266 +797,1002 @@ Log.warning(transmissionConstantInput.get().getArrayValue() + "");
 			return newick + ")";
 		}
 	}
-	
-	private int infectionCount(Node node) {
-		switch(node.getChildCount()) {
-		case 0: {// leaf
-			Node p = node.getParent();
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
+
+	private void traverse(Node node, Set<Node> includedNodes) {
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			node = stack.remove(stack.size() - 1);
+			List<Node> children = node.getChildren();
+			for (int i = children.size()-1; i >= 0; i--) {
+				Node child = children.get(i);
+				if (!includedNodes.contains(child)) {
+					node.removeChild(child);
 				}
 			}
-			return blockCount+1;
+			stack.addAll(node.getChildren());
 		}
-		case 1:
-			return infectionCount(node.getChild(0));
-		case 2:
-			Node left = node.getLeft();
-			int infectionCount = infectionCount(left);
-			Node right = node.getRight();
-			infectionCount += infectionCount(right);
+	}
 
-			Node p = node.getParent();
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
-				}
+    private double getMinimumInactiveHeight(int activeNodeCount, List<Node> nodeList) {
+        if (activeNodeCount < nodeList.size()) {
+            return (nodeList.get(activeNodeCount)).getHeight();
+        } else
+            return Double.POSITIVE_INFINITY;
+    }
+
+	/**
+	 * parameters and distributions of the simulation, set up once per run and shared by all trees.
+	 * With direct sampling, gamma and Poisson variates are drawn by RandomVariates, otherwise
+	 * by inverting the cumulative distribution functions.
+	 */
+	public class Model {
+		final double endTime;
+		final double sampleShape, sampleRate, sampleConstant;
+		final double transmissionShape, transmissionRate, transmissionConstant;
+		final double threshold;
+		// transmissions that take less than this time fall in the incubation period, and are not allowed
+		final double incubationTime;
+		final boolean direct;
+		final PopulationFunction popFun;
+		final PoissonDistribution poisson;
+		final GammaDistribution sampleIntensity;
+		final GammaDistribution transmissionIntensity;
+		// sampling proportion used for simulation, and log importance weights for sampled and unsampled hosts
+		double tiltedSampleConstant;
+		double logWeightSampled = 0, logWeightUnsampled = 0;
+
+		Model() throws MathException {
+			this(endTimeInput.get().getArrayValue(),
+					sampleShapeInput.get().getArrayValue(), sampleRateInput.get().getArrayValue(), sampleConstantInput.get().getArrayValue(),
+					transmissionShapeInput.get().getArrayValue(), transmissionRateInput.get().getArrayValue(), transmissionConstantInput.get().getArrayValue(),
+					getPopFun());
+		}
+
+		/** model with given parameter values, using the other settings of the simulator **/
+		Model(double endTime, double sampleShape, double sampleRate, double sampleConstant,
+				double transmissionShape, double transmissionRate, double transmissionConstant,
+				PopulationFunction popFun) throws MathException {
+			this.endTime = endTime;
+			this.sampleShape = sampleShape;
+			this.sampleRate = sampleRate;
+			this.sampleConstant = sampleConstant;
+			this.transmissionShape = transmissionShape;
+			this.transmissionRate = transmissionRate;
+			this.transmissionConstant = transmissionConstant;
+			this.popFun = popFun;
+			threshold = incubationProportionInput.get();
+			direct = directSamplingInput.get();
+
+			poisson = new PoissonDistributionImpl(transmissionConstant);
+			sampleIntensity = new GammaDistributionImpl(sampleShape, 1.0 / sampleRate);
+			transmissionIntensity = new GammaDistributionImpl(transmissionShape, 1.0 / transmissionRate);
+			incubationTime = threshold > 0 ? transmissionIntensity.inverseCumulativeProbability(threshold) : 0;
+			tiltedSampleConstant = sampleConstant;
+		}
+
+		void setTiltedSampleConstant(double q) {
+			if (q <= 0 || q >= 1) {
+				throw new IllegalArgumentException("tiltedSampleConstant should be between 0 and 1, not " + q);
 			}
-			return infectionCount + blockCount + 1;
+			tiltedSampleConstant = q;
+			logWeightSampled = Math.log(sampleConstant / q);
+			logWeightUnsampled = Math.log((1.0 - sampleConstant) / (1.0 - q));
+		}
+
+		int nextEventCount(MersenneTwisterFast random) throws MathException {
+			if (direct) {
+				return RandomVariates.nextPoisson(random, transmissionConstant);
+			}
+			return poisson.inverseCumulativeProbability(random.nextDouble());
+		}
+
+		double logEventCount(int n) {
+			if (direct) {
+				return RandomVariates.logPoisson(n, transmissionConstant);
+			}
+			return Math.log(poisson.probability(n));
+		}
+
+		/** time from infection to sampling **/
+		double nextSampleTime(MersenneTwisterFast random) throws MathException {
+			if (direct) {
+				return RandomVariates.nextGamma(random, sampleShape, sampleRate);
+			}
+			return sampleIntensity.inverseCumulativeProbability(random.nextDouble());
+		}
+
+		double logSampleTime(double delta) {
+			if (direct) {
+				return RandomVariates.logGammaDensity(delta, sampleShape, sampleRate);
+			}
+			return sampleIntensity.logDensity(delta);
+		}
+
+		/**
+		 * time from infection to transmission, restricted to the part of the distribution after
+		 * the incubation period. Direct sampling rejects draws inside the incubation period,
+		 * unless the incubation period covers most of the distribution.
+		 */
+		double nextTransmissionTime(MersenneTwisterFast random) throws MathException {
+			if (direct && threshold < 0.9) {
+				double delta;
+				do {
+					delta = RandomVariates.nextGamma(random, transmissionShape, transmissionRate);
+				} while (delta < incubationTime);
+				return delta;
+			}
+			double r = threshold + random.nextDouble() * (1.0 - threshold);
+			return transmissionIntensity.inverseCumulativeProbability(r);
 		}
-		return 0;		
 	}
-	
-	int maxBlockCount = -1;
-	
-	private String toNewick(Node node) {
-		switch(node.getChildCount()) {
-		case 0: {// leaf
-			double length = node.getLength();
-			Node p = node.getParent();
-			double blockStart = length;
-			double blockEnd = length;
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				if (colourMap.get(p.getChild(0)) != colourMap.get(p)) {
-					if (blockCount == -1) {
-						blockStart = length;
+
+	/** state of a single simulation, so that trees can be simulated concurrently **/
+	class Simulation {
+		private final Model model;
+		private final MersenneTwisterFast random;
+		private Node root;
+		private Map<Node, Integer> colourMap;
+		private int nodeCount;
+		private double logP;
+		private double logWeight;
+		// number of infected hosts, including unsampled ones
+		private int hostCount;
+		private int maxBlockCount = -1;
+		private String newick0;
+
+		Simulation(Model model, long seed) {
+			this.model = model;
+			random = new MersenneTwisterFast(seed);
+		}
+
+		private double runOnce(int maxTaxonCount) throws MathException {	
+			// start again when no within-host genealogy could be found
+			double logP;
+			do {
+				logP = largeEpidemicInput.get() ? runAttemptLarge(maxTaxonCount) : runAttempt(maxTaxonCount);
+			} while (Double.isNaN(logP));
+			return logP;
+		}
+
+		/** simulate outbreak, returns NaN if a within-host genealogy could not be found **/
+		private double runAttempt(int maxTaxonCount) throws MathException {	
+			double sampleConstant = model.sampleConstant;
+
+			root = new ColouredNode();
+			root.setHeight(model.endTime);
+			List<Node> nodes = new ArrayList<>();
+			nodes.add(root);
+
+			PopulationFunction popFun = model.popFun;
+
+			List<Node> leafs = new ArrayList<>();
+			int colour = 0;
+			colourMap = new HashMap<>();
+			colourMap.put(root, colour);
+			((ColouredNode)root).setColour(colour);
+		
+			this.logP = 0;
+			logWeight = 0;
+			while (nodes.size() > 0) {
+				// continue with last node
+				Node node = nodes.remove(nodes.size() - 1);
+
+				// 1. draw number of events
+				int n = model.nextEventCount(random);
+				addToLogP("#events", model.logEventCount(n));
+					
+				// 2. draw whether colour will be sampled
+				boolean sample = (random.nextDouble() < model.tiltedSampleConstant);
+				if (sample) {
+					addToLogP("SampleP", Math.log(sampleConstant));
+					logWeight += model.logWeightSampled;
+				} else {
+					addToLogP("SampleP", Math.log(1.0 - sampleConstant));
+					logWeight += model.logWeightUnsampled;
+				}
+			
+			
+				// 3. simulate the time of sampling:
+				// Note: do not need multiply by sampleConstant
+				double sampletime = !sample ? 0
+						: node.getHeight() - model.nextSampleTime(random);
+				addToLogP("SampleTime", !sample ? 0 : model.logSampleTime(node.getHeight() - sampletime));
+				if (sampletime < 0) {
+					sample = false;
+				}
+
+				// 4. Simulate the times when node infects the new infectees
+				//double [] times = new double[n];
+				Double[] times = new Double[n];
+				for (int i = 0; i < n; i++) {
+					// Note: do not need multiply by transmissionConstant
+					double delta = model.nextTransmissionTime(random);
+					times[i] = node.getHeight()
+							- delta;
+					//addToLogP("TransTime", transmissionIntensity.logDensity(node.getHeight()-times[i]));
+					addToLogP("TransTime", delta);
+				}
+			
+				// remove times that are invalid: after study time, or after sample time (if any)
+				Arrays.sort(times, new Comparator<Double>() {
+					@Override
+					public int compare(Double a, Double b) {
+							 if (a > b) return -1;
+							 if (b > a) return 1;
+							 return 0;
+				}});
+				// remove times that are invalid: after study time, or after sample time (if any)
+				while (n > 0 && (times[n - 1] < 0 || times[n - 1] < sampletime)) {
+					n--;
+				}
+			
+						
+				List<Node> current = new ArrayList<>();
+				// create leaf node
+				if (sample) {
+					ColouredNode leaf = new ColouredNode();
+					leaf.setColour(colour);
+					colourMap.put(leaf, colour);
+					leaf.setHeight(sampletime);
+					leafs.add(leaf);
+					current.add(leaf);
+					leaf.setID("t" + format(leafs.size()));
+					if (leafs.size() > maxTaxonCount) {
+						if (!quietInput.get()) {
+							System.err.print("x");
+						}
+						logP = Double.NEGATIVE_INFINITY;
+						//runOnce(maxTaxonCount);
+						addToLogP("\nrunOnce(too many taxa)", logP);
+						return logP;
 					}
-					blockEnd = length;
-					blockCount++;
 				}
-				length += p.getLength();
-				if (colourMap.get(p) != ((ColouredNode)p).colour) {
-					System.err.println("Error in colour map in leaf");
+				// create internal (infection) nodes
+				for (int i = 0; i < n; i++) {
+					ColouredNode infectee = new ColouredNode();
+					infectee.setColour(colour);
+					colourMap.put(infectee, colour);
+					infectee.setHeight(times[i]);
+					nodes.add(infectee);
+					current.add(infectee);
 				}
 
-				p = p.getParent();
+			
+				// 5. Sampling a within-host phylogeny
+				double currentHeight = sample ? sampletime : (n > 0 ? times[n-1] : 0);
+			
+				double [] logPCoalescent = new double[1];
+				Node fragment = simulateCoalescent(current, popFun, currentHeight, node.getHeight(), maxAttemptsInput.get(), logPCoalescent, colour);
+				addToLogP("Coalescent:", logPCoalescent[0]);
+				if (fragment == null) {
+					if (!quietInput.get()) {
+						System.err.print("c");
+					}
+					return Double.NaN;
+				}
+				// connect to node
+				node.addChild(fragment);
+
+				colourFragment(fragment, colour, colourMap);
+			
+				colour++;
 			}
-			maxBlockCount = Math.max(maxBlockCount, blockCount);
-			return node.getID() + "[&blockcount=" + blockCount + (blockCount >= 0 ? ",blockstart=" + (blockStart/length) + ",blockend=" + (blockEnd/length): "") +",color=" + colourMap.get(node) + "]:" + length;
+		
+		
+			// find all nodes to include in tree
+			Set<Node> includedNodes = new HashSet<>();
+			for (Node node : leafs) {
+				while (node != root) {
+					includedNodes.add(node);
+					node = node.getParent();
+				}
+			}
+		
+			if (debug) {
+				newick0 = root.toNewick();
+			}
+			// remove nodes not included from tree
+			traverse(root, includedNodes);
+			hostCount = colour;
+			nodeCount = getNodeCount(root);
+			return logP;
 		}
-		case 1:
-			return toNewick(node.getChild(0));
-		case 2:
-			Node left = node.getLeft();
-			String leftNewick = toNewick(left);
-			Node right = node.getRight();
-			String rightNewick = toNewick(right);
 
-			double length = node.getLength();
+		// host records for the large epidemic mode, indexed by slot. Slots of resolved hosts are reused.
+		private double [] hostHeight = new double[16];
+		private int [] hostParent = new int[16];
+		private int [] hostColour = new int[16];
+		private int [] hostPending = new int[16];
+		// lineages with sampled descendants inside the host: its leaf and infection nodes of retained infectees
+		private Object [] hostLineages = new Object[16];
+		// infection times of discarded infectees, which take part in the within-host coalescent of the host
+		private double [][] hostDiscarded = new double[16][];
+		private int [] hostDiscardedCount = new int[16];
+		private int [] freeSlots = new int[16];
+		private int freeCount = 0;
+		private int slotCount = 0;
+
+		/**
+		 * Simulation for large epidemics with low sampling proportions. Hosts are kept in primitive arrays,
+		 * and as soon as all infectees of a host are resolved, the host is resolved: its within-host genealogy
+		 * is simulated for all its lineages, like in runAttempt, after which lineages without sampled descendants
+		 * are pruned. If none are left, the host is discarded and only its infection time is kept by its infector,
+		 * otherwise the genealogy is connected to the infection node in its infector. So, only the part of
+		 * the infection forest that ends up in the tree is kept as Node objects.
+		 * Returns NaN if a within-host genealogy could not be found.
+		 */
+		private double runAttemptLarge(int maxTaxonCount) throws MathException {
+			double sampleConstant = model.sampleConstant;
+			PopulationFunction popFun = model.popFun;
+
+			// replaced once the root host is resolved
+			root = new ColouredNode();
+			root.setHeight(model.endTime);
+			colourMap = new HashMap<>();
+			freeCount = 0;
+			slotCount = 0;
+			int leafCount = 0;
+			int colour = 0;
+			this.logP = 0;
+			logWeight = 0;
+
+			int [] stack = new int[16];
+			int stackSize = 0;
+			stack[stackSize++] = allocateHost(model.endTime, -1);
+
+			while (stackSize > 0) {
+				// continue with last host
+				int host = stack[--stackSize];
+				double height = hostHeight[host];
+				hostColour[host] = colour;
+
+				// 1. draw number of events
+				int n = model.nextEventCount(random);
+				addToLogP("#events", model.logEventCount(n));
+
+				// 2. draw whether colour will be sampled
+				boolean sample = (random.nextDouble() < model.tiltedSampleConstant);
+				addToLogP("SampleP", Math.log(sample ? sampleConstant : 1.0 - sampleConstant));
+				logWeight += sample ? model.logWeightSampled : model.logWeightUnsampled;
+
+				// 3. simulate the time of sampling
+				double sampletime = !sample ? 0 : height - model.nextSampleTime(random);
+				addToLogP("SampleTime", !sample ? 0 : model.logSampleTime(height - sampletime));
+				if (sampletime < 0) {
+					sample = false;
+				}
+
+				// 4. Simulate the times when host infects the new infectees
+				double [] times = new double[n];
+				for (int i = 0; i < n; i++) {
+					double delta = model.nextTransmissionTime(random);
+					times[i] = height - delta;
+					addToLogP("TransTime", delta);
+				}
+				// ascending order, so invalid times (after study time, or after sample time) come first
+				Arrays.sort(times);
+				int first = 0;
+				while (first < n && (times[first] < 0 || times[first] < sampletime)) {
+					first++;
+				}
+
+				if (sample) {
+					ColouredNode leaf = new ColouredNode();
+					leaf.setColour(colour);
+					colourMap.put(leaf, colour);
+					leaf.setHeight(sampletime);
+					leafCount++;
+					leaf.setID("t" + format(leafCount));
+					lineages(host).add(leaf);
+					if (leafCount > maxTaxonCount) {
+						// abort as soon as there are too many taxa
+						if (!quietInput.get()) {
+							System.err.print("x");
+						}
+						logP = Double.NEGATIVE_INFINITY;
+						return logP;
+					}
+				}
+
+				// infectees are pushed from earliest to latest infection, like in runOnce
+				hostPending[host] = n - first;
+				for (int i = n - 1; i >= first; i--) {
+					if (stackSize == stack.length) {
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					}
+					stack[stackSize++] = allocateHost(times[i], host);
+				}
+				colour++;
+
+				if (hostPending[host] == 0) {
+					if (!resolveHost(host, popFun)) {
+						return Double.NaN;
+					}
+				}
+			}
+			hostCount = colour;
+			nodeCount = getNodeCount(root);
+			return logP;
+		}
+
+		/**
+		 * resolve host and, recursively, its infectors that have no unresolved infectees left.
+		 * Returns false if no within-host genealogy could be found
+		 */
+		private boolean resolveHost(int host, PopulationFunction popFun) {
+			while (true) {
+				@SuppressWarnings("unchecked")
+				List<Node> retained = (List<Node>) hostLineages[host];
+				int colour = hostColour[host];
+
+				// all lineages take part in the within-host coalescent, as in runAttempt,
+				// so discarded infectees get temporary infection nodes
+				List<Node> current = retained == null ? new ArrayList<>() : new ArrayList<>(retained);
+				List<Node> discarded = new ArrayList<>();
+				for (int i = 0; i < hostDiscardedCount[host]; i++) {
+					ColouredNode infectee = new ColouredNode();
+					infectee.setColour(colour);
+					infectee.setHeight(hostDiscarded[host][i]);
+					discarded.add(infectee);
+				}
+				current.addAll(discarded);
+				double currentHeight = current.size() > 0 ? Double.POSITIVE_INFINITY : 0;
+				for (Node node : current) {
+					currentHeight = Math.min(currentHeight, node.getHeight());
+				}
+				double [] logPCoalescent = new double[1];
+				Node fragment = simulateCoalescent(current, popFun, currentHeight, hostHeight[host], maxAttemptsInput.get(), logPCoalescent, colour);
+				addToLogP("Coalescent:", logPCoalescent[0]);
+				if (fragment == null) {
+					if (!quietInput.get()) {
+						System.err.print("c");
+					}
+					return false;
+				}
+				if (retained == null) {
+					fragment = null;
+				} else {
+					for (Node node : discarded) {
+						fragment = removeLineage(fragment, node);
+					}
+					// retained lineages are coloured already, and may have infectees of their own below them
+					colourFragment(fragment, colour, colourMap, retained);
+				}
+
+				int parent = hostParent[host];
+				if (parent < 0) {
+					root = new ColouredNode();
+					root.setHeight(hostHeight[host]);
+					((ColouredNode) root).setColour(colour);
+					colourMap.put(root, colour);
+					if (fragment != null) {
+						root.addChild(fragment);
+					}
+					releaseHost(host);
+					return true;
+				}
+				if (fragment != null) {
+					// infection node in the infector
+					ColouredNode infectee = new ColouredNode();
+					infectee.setColour(hostColour[parent]);
+					colourMap.put(infectee, hostColour[parent]);
+					infectee.setHeight(hostHeight[host]);
+					infectee.addChild(fragment);
+					lineages(parent).add(infectee);
+				} else {
+					addDiscarded(parent, hostHeight[host]);
+				}
+				releaseHost(host);
+				hostPending[parent]--;
+				if (hostPending[parent] > 0) {
+					return true;
+				}
+				host = parent;
+			}
+		}
+
+		/** remove lineage from the binary genealogy below root, joining its sibling to its grandparent, and return the new root **/
+		private Node removeLineage(Node root, Node lineage) {
+			Node parent = lineage.getParent();
+			Node sibling = parent.getLeft() == lineage ? parent.getRight() : parent.getLeft();
+			Node grandParent = parent.getParent();
+			parent.removeChild(lineage);
+			parent.removeChild(sibling);
+			if (grandParent == null) {
+				sibling.setParent(null);
+				return sibling;
+			}
+			grandParent.removeChild(parent);
+			grandParent.addChild(sibling);
+			return root;
+		}
+
+		private void addDiscarded(int host, double height) {
+			if (hostDiscarded[host] == null) {
+				hostDiscarded[host] = new double[2];
+			} else if (hostDiscardedCount[host] == hostDiscarded[host].length) {
+				hostDiscarded[host] = Arrays.copyOf(hostDiscarded[host], hostDiscarded[host].length * 2);
+			}
+			hostDiscarded[host][hostDiscardedCount[host]++] = height;
+		}
+
+		@SuppressWarnings("unchecked")
+		private List<Node> lineages(int host) {
+			if (hostLineages[host] == null) {
+				hostLineages[host] = new ArrayList<Node>(2);
+			}
+			return (List<Node>) hostLineages[host];
+		}
+
+		private int allocateHost(double height, int parent) {
+			int slot;
+			if (freeCount > 0) {
+				slot = freeSlots[--freeCount];
+			} else {
+				if (slotCount == hostHeight.length) {
+					int size = slotCount * 2;
+					hostHeight = Arrays.copyOf(hostHeight, size);
+					hostParent = Arrays.copyOf(hostParent, size);
+					hostColour = Arrays.copyOf(hostColour, size);
+					hostPending = Arrays.copyOf(hostPending, size);
+					hostLineages = Arrays.copyOf(hostLineages, size);
+					hostDiscarded = Arrays.copyOf(hostDiscarded, size);
+					hostDiscardedCount = Arrays.copyOf(hostDiscardedCount, size);
+					freeSlots = Arrays.copyOf(freeSlots, size);
+				}
+				slot = slotCount++;
+			}
+			hostHeight[slot] = height;
+			hostParent[slot] = parent;
+			hostPending[slot] = 0;
+			hostLineages[slot] = null;
+			// the array of discarded infection times is reused
+			hostDiscardedCount[slot] = 0;
+			return slot;
+		}
+
+		private void releaseHost(int slot) {
+			hostLineages[slot] = null;
+			freeSlots[freeCount++] = slot;
+		}
+
+		private void addToLogP(String caller, double log) {
+			// if (caller.startsWith("TransTime"))System.err.println(caller + " " + log);
+			logP += log;
+		}
+
+		private Node simulateCoalescent(List<Node> current, PopulationFunction popFun, double currentHeight,
+				double height, int maxAttemptCount, double [] logPCoalescent, int colour) {
+			if (current.size() == 0) {
+				ColouredNode node =  new ColouredNode();
+				node.setColour(colour);
+				node.setHeight(currentHeight);
+				return node;
+			}
+		
+			if (conditionedCoalescentInput.get() && current.size() > 1 && !(popFun instanceof LinearGrowth)) {
+				Node fragment = simulateConditionedCoalescent(current, popFun, height, logPCoalescent, colour);
+				if (fragment != null) {
+					return fragment;
+				}
+			}
+		
+			List<Node> fragment;
+			int attempt = 0;
+			do {
+				List<Node> currentCopy = new ArrayList<>(current);
+				fragment = simulateCoalescent(currentCopy, popFun, currentHeight, height, logPCoalescent, colour);
+				if (fragment.size() == 1) {
+					return fragment.get(0);
+				}
+				attempt++;
+				logPCoalescent[0] = 0;
+			} while (attempt < maxAttemptCount);
+			Log.warning("Could not find a proper coalescent tree after " + maxAttemptCount + " attempts. "
+					+ "Consider decreasing the population size or increasing maxAttempts.");
+			return null;
+		}
+
+		/**
+		 * Sample within-host genealogy from the coalescent conditioned on all lineages
+		 * coalescing before the host got infected at maxHeight, without rejection.
+		 * The log density is that of the conditioned process.
+		 * Returns null if the conditioning event has numerically zero probability,
+		 * or too many lineages are involved for accurate transition probabilities.
+		 */
+		private Node simulateConditionedCoalescent(List<Node> nodes, PopulationFunction demographic, double maxHeight,
+				double [] logPCoalescent, int colour) {
+			final double[] heights = new double[nodes.size()];
+			for (int i = 0; i < nodes.size(); i++) {
+				heights[i] = nodes.get(i).getHeight();
+			}
+			final int[] indices = new int[nodes.size()];
+			HeapSort.sort(heights, indices);
+
+			// arrival times in intensity units
+			double [] arrivals = new double[nodes.size()];
+			for (int i = 0; i < nodes.size(); i++) {
+				arrivals[i] = demographic.getIntensity(heights[indices[i]]);
+			}
+			double end = demographic.getIntensity(maxHeight);
+			ConditionedCoalescent coalescent = new ConditionedCoalescent(arrivals, end);
+			if (!coalescent.isValid()) {
+				return null;
+			}
+			double [] times = coalescent.sample(random);
+
+			double logP = 0;
+			List<Node> active = new ArrayList<>();
+			int next = 0;
+			double current = arrivals[0];
+			for (double time : times) {
+				while (next < arrivals.length && arrivals[next] <= time) {
+					logP -= Binomial.choose2(active.size()) * (arrivals[next] - current);
+					current = arrivals[next];
+					active.add(nodes.get(indices[next]));
+					next++;
+				}
+				int k = active.size();
+				logP -= Binomial.choose2(k) * (time - current);
+				current = time;
+
+				final int node1 = random.nextInt(k);
+				int node2 = random.nextInt(k - 1);
+				if (node2 >= node1) {
+					node2++;
+				}
+				logP -= Math.log(Binomial.choose2(k));
+				final Node left = active.get(node1);
+				final Node right = active.get(node2);
+
+				double height = demographic.getInverseIntensity(time);
+				// guard against round off in the intensity transform
+				height = Math.max(height, Math.max(left.getHeight(), right.getHeight()));
+				height = Math.min(height, maxHeight);
+				logP -= Math.log(demographic.getPopSize(height));
+
+				final ColouredNode newNode = new ColouredNode();
+				newNode.setColour(colour);
+				newNode.setHeight(height);
+				newNode.setLeft(left);
+				left.setParent(newNode);
+				newNode.setRight(right);
+				right.setParent(newNode);
+				active.remove(left);
+				active.remove(right);
+				active.add(newNode);
+			}
+			logPCoalescent[0] += logP - coalescent.getLogProbabilityOfCoalescence();
+			return active.get(0);
+		}
+
+		private int infectionCount(Node node) {
+			int infectionCount = 0;
+			List<Node> stack = new ArrayList<>();
+			stack.add(node);
+			while (stack.size() > 0) {
+				node = stack.remove(stack.size() - 1);
+				switch(node.getChildCount()) {
+				case 0: // leaf
+					infectionCount += infectionsAbove(node);
+					break;
+				case 1:
+					stack.add(node.getChild(0));
+					break;
+				case 2:
+					infectionCount += infectionsAbove(node);
+					stack.add(node.getRight());
+					stack.add(node.getLeft());
+					break;
+				}
+			}
+			return infectionCount;
+		}
+
+		// number of infections on the branch above node in the binary tree
+		private int infectionsAbove(Node node) {
 			Node p = node.getParent();
-			double blockStart = length;
-			double blockEnd = length;
 			int blockCount = -1;
 			while (p != null && p.getChildCount() == 1) {
-				if (colourMap.get(p.getChild(0)) != colourMap.get(p)) {
-					if (blockCount == -1) {
-						blockStart = length;
-					}
-					blockEnd = length;
+				p = p.getParent();
+				if (!Objects.equals(colourMap.get(node), colourMap.get(p))) {
 					blockCount++;
 				}
-				length += p.getLength();
-				if (colourMap.get(p) != ((ColouredNode)p).colour) {
-					System.err.println("Error in colour map");
+			}
+			return blockCount+1;
+		}
+
+		private String toNewick(Node node) {
+			StringBuilder b = new StringBuilder();
+			try {
+				writeNewick(node, b);
+			} catch (IOException e) {
+				// cannot happen when writing to a StringBuilder
+				throw new RuntimeException(e);
+			}
+			return b.toString();
+		}
+
+		/**
+		 * write Newick representation of the binary tree below node straight to out, 
+		 * without recursion, so that large trees do not need deep stacks or large strings
+		 */
+		private void writeNewick(Node node, Appendable out) throws IOException {
+			// nodes still to be written, and strings closing clades
+			List<Object> stack = new ArrayList<>();
+			stack.add(node);
+			while (stack.size() > 0) {
+				Object o = stack.remove(stack.size() - 1);
+				if (o instanceof String) {
+					out.append((String) o);
+					continue;
+				}
+				node = (Node) o;
+				switch(node.getChildCount()) {
+				case 0: // leaf
+					out.append(node.getID());
+					out.append(metaData(node, true));
+					break;
+				case 1:
+					stack.add(node.getChild(0));
+					break;
+				case 2:
+					out.append('(');
+					stack.add(")" + metaData(node, false));
+					stack.add(node.getRight());
+					stack.add(",");
+					stack.add(node.getLeft());
+					break;
 				}
-				p = p.getParent();
 			}
-			maxBlockCount = Math.max(maxBlockCount, blockCount);
-			if (p == null) {
-				return "(" + leftNewick + "," + rightNewick + ")";
+		}
+
+		// meta data and length of the branch above node in the binary tree, empty at the root
+		private String metaData(Node node, boolean isLeaf) {
+			Block block = new Block(node, isLeaf);
+			maxBlockCount = Math.max(maxBlockCount, block.count);
+			if (block.atRoot && !isLeaf) {
+				return "";
 			}
-			
-			return "(" + leftNewick + "," + rightNewick + ")" + "[&blockcount=" + blockCount + (blockCount >= 0 ? ",blockstart=" + (blockStart/length) + ",blockend=" + (blockEnd/length): "") +",color=" + colourMap.get(node) + "]:" + length; 
+			return "[&blockcount=" + block.count + (block.count >= 0 ? ",blockstart=" + block.getStart() + ",blockend=" + block.getEnd(): "") +",color=" + colourMap.get(node) + "]:" + block.length;
 		}
-		return null;
-	}
 
-	private void traverse(Node node, Set<Node> includedNodes) {
-		List<Node> children = node.getChildren();
-		for (int i = children.size()-1; i >= 0; i--) {
-			Node child = children.get(i);
-			if (!includedNodes.contains(child)) {
-				node.removeChild(child);
+		/** block of infections on the branch above a node in the binary tree, with start and end as distance from the node **/
+		class Block {
+			int count = -1;
+			double start, end, length;
+			// whether the branch reaches the root, so the node is the root of the binary tree
+			boolean atRoot;
+
+			Block(Node node, boolean isLeaf) {
+				length = node.getLength();
+				Node p = node.getParent();
+				start = length;
+				end = length;
+				while (p != null && p.getChildCount() == 1) {
+					if (!Objects.equals(colourMap.get(p.getChild(0)), colourMap.get(p))) {
+						if (count == -1) {
+							start = length;
+						}
+						end = length;
+						count++;
+					}
+					length += p.getLength();
+					if (colourMap.get(p) != ((ColouredNode)p).colour) {
+						System.err.println(isLeaf ? "Error in colour map in leaf" : "Error in colour map");
+					}
+					p = p.getParent();
+				}
+				atRoot = p == null;
+			}
+
+			/** block start as fraction of branch length **/
+			double getStart() {
+				return start / length;
+			}
+
+			/** block end as fraction of branch length **/
+			double getEnd() {
+				return end / length;
 			}
 		}
-		for (int i = node.getChildren().size()-1; i >= 0; i--) {
-			Node child = children.get(i);
-			traverse(child, includedNodes);
-		}		
-	}
-	
-	public List<Node> simulateCoalescent(final List<Node> nodes, final PopulationFunction demographic,
-			double currentHeight, final double maxHeight, double [] logPCoalescent, int colour) {
-		// If only one node, return it
-		// continuing results in an infinite loop
-		if (nodes.size() == 1)
-			return nodes;
-
-		final double[] heights = new double[nodes.size()];
-		for (int i = 0; i < nodes.size(); i++) {
-			heights[i] = nodes.get(i).getHeight();
-		}
-		final int[] indices = new int[nodes.size()];
-		HeapSort.sort(heights, indices);
-
-		// node list
-		List<Node> nodeList = new ArrayList<>();
-		int activeNodeCount = 0;
-		for (int i = 0; i < nodes.size(); i++) {
-			nodeList.add(nodes.get(indices[i]));
-		}
-        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
-            activeNodeCount += 1;
-        }
-
-		// get at least two tips
-		while (activeNodeCount < 2) {
-			currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
-	        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
-	            activeNodeCount += 1;
-	        }
+
+		/**
+		 * copy binary tree below node to BEAST nodes, with leafs numbered 0...n-1 and internal nodes
+		 * numbered such that the root is last. Heights are shifted down by h.
+		 * Block counts, starts and ends are filled in by node number.
+		 */
+		private Node toBEASTTree(Node node, double h, int leafCount, int [] blockCount, double [] blockStart, double [] blockEnd) {
+			// pre-order, so in reverse every node comes after its children
+			List<Node> order = new ArrayList<>();
+			List<Node> stack = new ArrayList<>();
+			stack.add(node);
+			while (stack.size() > 0) {
+				Node n = stack.remove(stack.size() - 1);
+				while (n.getChildCount() == 1) {
+					n = n.getChild(0);
+				}
+				order.add(n);
+				stack.addAll(n.getChildren());
+			}
+
+			Map<Node, Node> copies = new HashMap<>();
+			int leafNr = 0;
+			int internalNr = leafCount;
+			Node copy = null;
+			for (int i = order.size() - 1; i >= 0; i--) {
+				Node n = order.get(i);
+				copy = new Node();
+				copy.setHeight(n.getHeight() - h);
+				if (n.isLeaf()) {
+					copy.setNr(leafNr++);
+					copy.setID(n.getID());
+				} else {
+					copy.setNr(internalNr++);
+					for (Node child : n.getChildren()) {
+						while (child.getChildCount() == 1) {
+							child = child.getChild(0);
+						}
+						copy.addChild(copies.get(child));
+					}
+				}
+				copies.put(n, copy);
+				int nr = copy.getNr();
+				if (n == node) {
+					blockCount[nr] = -1;
+				} else {
+					Block block = new Block(n, n.isLeaf());
+					blockCount[nr] = block.count;
+					blockStart[nr] = block.count >= 0 ? block.getStart() : 0.5;
+					blockEnd[nr] = block.count >= 0 ? block.getEnd() : 0.5;
+				}
+			}
+			// last one copied is the root
+			return copy;
 		}
 
-		// simulate coalescent events
-		double r = Randomizer.nextDouble();
-		double lambda = demographic instanceof LinearGrowth ? ((LinearGrowth)demographic).getRate() : 0;
-		double nextCoalescentHeight = currentHeight
-				+ ( demographic instanceof LinearGrowth ?
-//					+ (1.0/lambda)*(Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * lambda * (maxHeight - currentHeight);
-					+ (Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * (maxHeight - currentHeight)
-				: PopulationFunction.Utils.getSimulatedInterval(demographic, activeNodeCount, currentHeight));
-        
-        double kChoose2 = Binomial.choose2(activeNodeCount);
-		double intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
-		logPCoalescent[0] += -kChoose2 * intervalArea;
+		public List<Node> simulateCoalescent(final List<Node> nodes, final PopulationFunction demographic,
+				double currentHeight, final double maxHeight, double [] logPCoalescent, int colour) {
+			// If only one node, return it
+			// continuing results in an infinite loop
+			if (nodes.size() == 1)
+				return nodes;
 
-		// while (nextCoalescentHeight < maxHeight && (getNodeCount() > 1)) {
-		while (nextCoalescentHeight < maxHeight && (nodeList.size() > 1)) {
+			final double[] heights = new double[nodes.size()];
+			for (int i = 0; i < nodes.size(); i++) {
+				heights[i] = nodes.get(i).getHeight();
+			}
+			final int[] indices = new int[nodes.size()];
+			HeapSort.sort(heights, indices);
 
-			if (nextCoalescentHeight >= getMinimumInactiveHeight(activeNodeCount, nodeList)) {
+			// node list
+			List<Node> nodeList = new ArrayList<>();
+			int activeNodeCount = 0;
+			for (int i = 0; i < nodes.size(); i++) {
+				nodeList.add(nodes.get(indices[i]));
+			}
+	        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+	            activeNodeCount += 1;
+	        }
+
+			// get at least two tips
+			while (activeNodeCount < 2) {
 				currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
 		        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
 		            activeNodeCount += 1;
 		        }
-			} else {
-				currentHeight = coalesceTwoActiveNodes(currentHeight, nextCoalescentHeight, nodeList, activeNodeCount, logPCoalescent, colour);
-				activeNodeCount--;
 			}
 
-			
-			if (!(demographic instanceof LinearGrowth)) {
-				final double demographicAtCoalPoint = demographic.getPopSize(currentHeight);
-				logPCoalescent[0] -= Math.log(demographicAtCoalPoint);
-			}
+			// simulate coalescent events
+			double r = random.nextDouble();
+			double lambda = demographic instanceof LinearGrowth ? ((LinearGrowth)demographic).getRate() : 0;
+			double nextCoalescentHeight = currentHeight
+					+ ( demographic instanceof LinearGrowth ?
+	//					+ (1.0/lambda)*(Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * lambda * (maxHeight - currentHeight);
+						+ (Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * (maxHeight - currentHeight)
+					: PopulationFunction.Utils.getInterval(r, demographic, activeNodeCount, currentHeight));
+        
+	        double kChoose2 = Binomial.choose2(activeNodeCount);
+			double intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
+			logPCoalescent[0] += -kChoose2 * intervalArea;
 
-                // if (getNodeCount() > 1) {
-			if (nodeList.size() > 1) {
-				// get at least two tips
-				while (activeNodeCount < 2) {
+			// while (nextCoalescentHeight < maxHeight && (getNodeCount() > 1)) {
+			while (nextCoalescentHeight < maxHeight && (nodeList.size() > 1)) {
+
+				if (nextCoalescentHeight >= getMinimumInactiveHeight(activeNodeCount, nodeList)) {
 					currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
 			        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
 			            activeNodeCount += 1;
 			        }
+				} else {
+					currentHeight = coalesceTwoActiveNodes(currentHeight, nextCoalescentHeight, nodeList, activeNodeCount, logPCoalescent, colour);
+					activeNodeCount--;
+				}
+
+			
+				if (!(demographic instanceof LinearGrowth)) {
+					final double demographicAtCoalPoint = demographic.getPopSize(currentHeight);
+					logPCoalescent[0] -= Math.log(demographicAtCoalPoint);
 				}
 
-				// nextCoalescentHeight = currentHeight +
-				// DemographicFunction.Utils.getMedianInterval(demographic,
-				// getActiveNodeCount(), currentHeight);
-				r = Randomizer.nextDouble();
-				nextCoalescentHeight = currentHeight
-						+ (demographic instanceof LinearGrowth ?
-//							+ (1.0/lambda)*(Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * lambda * (maxHeight - currentHeight);
-							+ (Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * (maxHeight - currentHeight)
-						: PopulationFunction.Utils.getSimulatedInterval(demographic, activeNodeCount, currentHeight));
+	                // if (getNodeCount() > 1) {
+				if (nodeList.size() > 1) {
+					// get at least two tips
+					while (activeNodeCount < 2) {
+						currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
+				        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+				            activeNodeCount += 1;
+				        }
+					}
+
+					// nextCoalescentHeight = currentHeight +
+					// DemographicFunction.Utils.getMedianInterval(demographic,
+					// getActiveNodeCount(), currentHeight);
+					r = random.nextDouble();
+					nextCoalescentHeight = currentHeight
+							+ (demographic instanceof LinearGrowth ?
+	//							+ (1.0/lambda)*(Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * lambda * (maxHeight - currentHeight);
+								+ (Math.pow(1-r, lambda/(activeNodeCount * (activeNodeCount-1)/2))) * (maxHeight - currentHeight)
+							: PopulationFunction.Utils.getInterval(r, demographic, activeNodeCount, currentHeight));
 
-				kChoose2 = Binomial.choose2(activeNodeCount);
-				intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
-				logPCoalescent[0] += -kChoose2 * intervalArea;
+					kChoose2 = Binomial.choose2(activeNodeCount);
+					intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
+					logPCoalescent[0] += -kChoose2 * intervalArea;
+				}
 			}
+
+			return nodeList;
 		}
 
-		return nodeList;
-	}
-	
-    /**
-     * Coalesce two nodes in the active list. This method removes the two
-     * (randomly selected) active nodes and replaces them with the new node at
-     * the top of the active list.
-     * @param minHeight
-     * @param height
-     * @return
-     */
-    private double coalesceTwoActiveNodes(final double minHeight, double height, List<Node> nodeList, int activeNodeCount, double[]logPCoalescent, int colour){
-        final int node1 = Randomizer.nextInt(activeNodeCount);
-        int node2 = node1;
-        while (node2 == node1) {
-            node2 = Randomizer.nextInt(activeNodeCount);
-        }
-        logPCoalescent[0] += -Math.log(activeNodeCount * (activeNodeCount-1)/2);
-
-        final Node left = nodeList.get(node1);
-        final Node right = nodeList.get(node2);
-
-        final ColouredNode newNode = new ColouredNode();
-        newNode.setColour(colour);
-//		System.err.println(2 * m_taxa.get().getNrTaxa() - nodeList.size());
-//        newNode.setNr(nextNodeNr++);   // multiple tries may generate an excess of nodes assert(nextNodeNr <= nrOfTaxa*2-1);
-        newNode.setHeight(height);
-        newNode.setLeft(left);
-        left.setParent(newNode);
-        newNode.setRight(right);
-        right.setParent(newNode);
-
-        nodeList.remove(left);
-        nodeList.remove(right);
-
-        activeNodeCount -= 2;
-
-        nodeList.add(activeNodeCount, newNode);
-
-        activeNodeCount += 1;
+	    /**
+	     * Coalesce two nodes in the active list. This method removes the two
+	     * (randomly selected) active nodes and replaces them with the new node at
+	     * the top of the active list.
+	     * @param minHeight
+	     * @param height
+	     * @return
+	     */
+	    private double coalesceTwoActiveNodes(final double minHeight, double height, List<Node> nodeList, int activeNodeCount, double[]logPCoalescent, int colour){
+	        final int node1 = random.nextInt(activeNodeCount);
+	        int node2 = node1;
+	        while (node2 == node1) {
+	            node2 = random.nextInt(activeNodeCount);
+	        }
+	        logPCoalescent[0] += -Math.log(activeNodeCount * (activeNodeCount-1)/2);
+
+	        final Node left = nodeList.get(node1);
+	        final Node right = nodeList.get(node2);
+
+	        final ColouredNode newNode = new ColouredNode();
+	        newNode.setColour(colour);
+	//		System.err.println(2 * m_taxa.get().getNrTaxa() - nodeList.size());
+	//        newNode.setNr(nextNodeNr++);   // multiple tries may generate an excess of nodes assert(nextNodeNr <= nrOfTaxa*2-1);
+	        newNode.setHeight(height);
+	        newNode.setLeft(left);
+	        left.setParent(newNode);
+	        newNode.setRight(right);
+	        right.setParent(newNode);
+
+	        nodeList.remove(left);
+	        nodeList.remove(right);
+
+	        activeNodeCount -= 2;
+
+	        nodeList.add(activeNodeCount, newNode);
+
+	        activeNodeCount += 1;
 
         
-        if (getMinimumInactiveHeight(activeNodeCount, nodeList) < height) {
-            throw new RuntimeException(
-                    "This should never happen! Somehow the current active node is older than the next inactive node!\n"
-            		+ "One possible solution you can try is to increase the population size of the population model.");
-        }
-        return height;
-    }
-    
-    private double getMinimumInactiveHeight(int activeNodeCount, List<Node> nodeList) {
-        if (activeNodeCount < nodeList.size()) {
-            return (nodeList.get(activeNodeCount)).getHeight();
-        } else
-            return Double.POSITIVE_INFINITY;
-    }
+	        if (getMinimumInactiveHeight(activeNodeCount, nodeList) < height) {
+	            throw new RuntimeException(
+	                    "This should never happen! Somehow the current active node is older than the next inactive node!\n"
+	            		+ "One possible solution you can try is to increase the population size of the population model.");
+	        }
+	        return height;
+	    }
+
+	}
 
 
 	public static void main(String[] args) throws Exception {
@@ -1,5 +1,6 @@
 package breath.util;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.Arrays;
@@ -10,12 +11,8 @@ import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Runnable;
-import beast.base.inference.parameter.IntegerParameter;
 import beastfx.app.tools.Application;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 import beastfx.app.util.TreeFile;
-import breath.distribution.ColourProvider;
 
 @Description("Provide statistics of set of transmission trees")
 public class TransmissionTreeStats extends Runnable {
@@ -34,107 +31,82 @@ public class TransmissionTreeStats extends Runnable {
 
 	@Override
 	public void run() throws Exception {
-		MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.get().getAbsolutePath(),
-				burnInPercentageInput.get());
-		trees.reset();
-		Tree tree = trees.next();
-		int leafNodeCount = tree.getLeafNodeCount();
-		
-		PrintStream timeTillSampledHostTransmission = new PrintStream(outputDirInput.get()+ "/timeTillSampledHostTransmission.dat");
-		timeTillSampledHostTransmission.print("Sample\t");
-		for (int i = 0; i < leafNodeCount; i++) {
-			timeTillSampledHostTransmission.print(tree.getNode(i).getID() + "\t");
-		}
-		for (int i = 0; i < leafNodeCount; i++) {
-			timeTillSampledHostTransmission.print("2nd" + tree.getNode(i).getID() + "\t");
-		}
-		timeTillSampledHostTransmission.print("\n");
-		PrintStream outTimeTillSampling = new PrintStream(outputDirInput.get()+ "/timeTillSampling.dat");
-		outTimeTillSampling.print("Sample\t");
-		for (int i = 0; i < leafNodeCount; i++) {
-			outTimeTillSampling.print(tree.getNode(i).getID() + "\t");
+		TransmissionTreeLogProcessor.process(treeFile.get(), burnInPercentageInput.get(), partitionInput.get(),
+				new StatsSummary(outputDirInput.get()));
+		Log.warning("Done");
+	}
+
+	/** files with tranmsision & sampling time stats, and averages of branch lengths and transmission counts **/
+	public static class StatsSummary implements TransmissionTreeSummary {
+		private String outputDir;
+		private PrintStream timeTillSampledHostTransmission;
+		private PrintStream outTimeTillSampling;
+		private PrintStream outTimeTillAllTransmissions;
+		private int sampleOutTimeTillAllTransmissions = 0;
+
+		private int sampleCount = 0;
+		private int leafNodeCount;
+		private double[] infectionTimeHost;
+		private double[] firstInfecteeTimeByHost;
+		private double[] secondInfecteeTimeByHost;
+
+		private double leafBranchLength = 0;
+		private double internalBranchLength = 0;
+		private double leafTransmissionCount = 0;
+		private double internalTransmissionCount = 0;
+		private double maxBlockCount = 0;
+
+		public StatsSummary(String outputDir) {
+			this.outputDir = outputDir;
 		}
-		outTimeTillSampling.print("\n");
-
-		PrintStream outTimeTillAllTransmissions = new PrintStream(outputDirInput.get()+ "/timeTillAllTransmissions.dat");
-		outTimeTillAllTransmissions.print("Sample\ttimeTillAllTransmissions\n");
-		int sampleOutTimeTillAllTransmissions = 0;
-		
-		
-		trees.reset();
-
-		int sampleCount = 0;
-		Integer[] count = new Integer[leafNodeCount * 2 - 1];
-		Double[] blockStart = new Double[leafNodeCount * 2 - 1];
-		Double[] blockEnd = new Double[leafNodeCount * 2 - 1];
-		double[] infectionTimeHost = new double[leafNodeCount * 2 - 1];
-		double[] firstInfecteeTimeByHost = new double[leafNodeCount * 2 - 1];
-		double[] secondInfecteeTimeByHost = new double[leafNodeCount * 2 - 1];
-		
-		double leafBranchLength = 0;
-		double internalBranchLength = 0;
-		double leafTransmissionCount = 0;
-		double internalTransmissionCount = 0;
-		double maxBlockCount = 0;
-		
-		DecimalFormat f = new DecimalFormat("#.##");
-		while (trees.hasNext()) {
-			tree = trees.next();
-
-			// extract meta data from tree
-			for (int i = 0; i < tree.getNodeCount(); i++) {
-				beast.base.evolution.tree.Node node = tree.getNode(i);
-				Object o = node.getMetaData("blockcount");
-				if (o == null) {
-					o = node.getMetaData("blockcount.t:" + partitionInput.get());
-				}
-				count[i] = o == null ? 0 : (int) (double) o;
-				
-				o = node.getMetaData("blockstart");
-				if (o == null) {
-					o = node.getMetaData("blockstart.t:" + partitionInput.get());
-				}
-				blockStart[i] = o == null ? 1.0 : (double) o;
 
-				o = node.getMetaData("blockend");
-				if (o == null) {
-					o = node.getMetaData("blockend.t:" + partitionInput.get());
-				}
-				blockEnd[i] = o == null ? 1.0 : (double) o;
+		@Override
+		public void init(TransmissionTreeRecord first) throws IOException {
+			Tree tree = first.tree;
+			leafNodeCount = first.leafCount;
+
+			timeTillSampledHostTransmission = new PrintStream(outputDir + "/timeTillSampledHostTransmission.dat");
+			timeTillSampledHostTransmission.print("Sample\t");
+			for (int i = 0; i < leafNodeCount; i++) {
+				timeTillSampledHostTransmission.print(tree.getNode(i).getID() + "\t");
+			}
+			for (int i = 0; i < leafNodeCount; i++) {
+				timeTillSampledHostTransmission.print("2nd" + tree.getNode(i).getID() + "\t");
 			}
-			// root count = -1
-			count[count.length-1] = -1;
-			IntegerParameter blockCount = new IntegerParameter(count);
+			timeTillSampledHostTransmission.print("\n");
+			outTimeTillSampling = new PrintStream(outputDir + "/timeTillSampling.dat");
+			outTimeTillSampling.print("Sample\t");
+			for (int i = 0; i < leafNodeCount; i++) {
+				outTimeTillSampling.print(tree.getNode(i).getID() + "\t");
+			}
+			outTimeTillSampling.print("\n");
 
-			// calculate colouring
-			int[] colourAtBase = new int[leafNodeCount * 2 - 1];
-			ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
+			outTimeTillAllTransmissions = new PrintStream(outputDir + "/timeTillAllTransmissions.dat");
+			outTimeTillAllTransmissions.print("Sample\ttimeTillAllTransmissions\n");
 
-			// determine who infected who
-			int[] infectedBy = new int[tree.getLeafNodeCount()];
-			Arrays.fill(infectedBy, -1);
-			
-			for (int i = 0; i < 2 * leafNodeCount - 2; i++) {
-				beast.base.evolution.tree.Node node = tree.getNode(i);
-				beast.base.evolution.tree.Node parent = node.getParent();
-				if (colourAtBase[node.getNr()] < leafNodeCount && colourAtBase[parent.getNr()] < leafNodeCount
-						&& colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
-					if (blockCount.getValue(node.getNr()) == 0) {
-						infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
-					}
-				}
-			}
+			infectionTimeHost = new double[leafNodeCount * 2 - 1];
+			firstInfecteeTimeByHost = new double[leafNodeCount * 2 - 1];
+			secondInfecteeTimeByHost = new double[leafNodeCount * 2 - 1];
+		}
+
+		@Override
+		public void process(TransmissionTreeRecord record) {
+			Tree tree = record.tree;
+			int [] blockCount = record.blockCount;
+			double [] blockStart = record.blockStart;
+			double [] blockEnd = record.blockEnd;
+			int [] colourAtBase = record.colourAtBase;
 
 			// calc stats
 			Node[] nodes = tree.getNodesAsArray();
 			outTimeTillSampling.print(sampleCount + "\t");
 			for (int i = 0; i < leafNodeCount; i++) {
 				leafBranchLength += nodes[i].getLength();
-				leafTransmissionCount += blockCount.getValue(i) + 1;
+				leafTransmissionCount += blockCount[i] + 1;
 				
 				Node node = nodes[i];
 				double timeToSampling = 0;
-				while (!node.isRoot() && blockCount.getValue(node.getNr()) < 0) {
+				while (!node.isRoot() && blockCount[node.getNr()] < 0) {
 					timeToSampling += node.getLength();
 					node = node.getParent();
 				}
@@ -151,7 +123,7 @@ public class TransmissionTreeStats extends Runnable {
 			for (int i = 0; i < 2 * leafNodeCount - 2; i++) {
 				Node node = nodes[i];
 				int host = colourAtBase[node.getParent().getNr()];
-				if (blockCount.getValue(i) >= 0 && host < leafNodeCount) {
+				if (blockCount[i] >= 0 && host < leafNodeCount) {
 					double infectionTime = node.getHeight() + node.getLength() * blockEnd[i];
 					if (firstInfecteeTimeByHost[host] < 0) {
 						firstInfecteeTimeByHost[host] = infectionTime; 
@@ -210,29 +182,35 @@ public class TransmissionTreeStats extends Runnable {
 			int maxBlockCountInTree = 0;
 			for (int i = leafNodeCount; i < leafNodeCount * 2 - 1; i++) {
 				internalBranchLength += nodes[i].getLength();
-				internalTransmissionCount += blockCount.getValue(i) + 1;
-				maxBlockCountInTree = Math.max(maxBlockCountInTree,  blockCount.getValue(i) + 1);
+				internalTransmissionCount += blockCount[i] + 1;
+				maxBlockCountInTree = Math.max(maxBlockCountInTree,  blockCount[i] + 1);
 			}
 			maxBlockCount += maxBlockCountInTree;
 
 			sampleCount++;
-			if (sampleCount % 1000 == 0) {
-				System.err.print(".");
+		}
+
+		@Override
+		public void close() {
+			if (sampleCount == 0) {
+				// init() was never called, so there are no streams to close
+				Log.warning("No trees processed, no stats produced");
+				return;
 			}
+			DecimalFormat f = new DecimalFormat("#.##");
+			Log.info("average leaf Branch Length = " + f.format(leafBranchLength / (sampleCount * leafNodeCount)));
+			Log.info("average internal Branch Length = " + f.format(internalBranchLength / (sampleCount * (leafNodeCount-2))));
+			Log.info("average leaf transmission count = " + f.format(leafTransmissionCount / (sampleCount * leafNodeCount)));
+			Log.info("average internal transmission count = " + f.format(internalTransmissionCount / (sampleCount * (leafNodeCount-2))));
+			Log.info("average transmission count per tree = " + f.format((leafTransmissionCount+internalTransmissionCount) / sampleCount));
+
+			Log.info("average unsampled hosts per tree = " + f.format((leafTransmissionCount+internalTransmissionCount) / sampleCount - (leafNodeCount-1)));
+			Log.info("average maximum block count = " + f.format(maxBlockCount / sampleCount));
+			
+			timeTillSampledHostTransmission.close();
+			outTimeTillSampling.close();
+			outTimeTillAllTransmissions.close();
 		}
-		Log.info("average leaf Branch Length = " + f.format(leafBranchLength / (sampleCount * leafNodeCount)));
-		Log.info("average internal Branch Length = " + f.format(internalBranchLength / (sampleCount * (leafNodeCount-2))));
-		Log.info("average leaf transmission count = " + f.format(leafTransmissionCount / (sampleCount * leafNodeCount)));
-		Log.info("average internal transmission count = " + f.format(internalTransmissionCount / (sampleCount * (leafNodeCount-2))));
-		Log.info("average transmission count per tree = " + f.format((leafTransmissionCount+internalTransmissionCount) / sampleCount));
-
-		Log.info("average unsampled hosts per tree = " + f.format((leafTransmissionCount+internalTransmissionCount) / sampleCount - (leafNodeCount-1)));
-		Log.info("average maximum block count = " + f.format(maxBlockCount / sampleCount));
-		
-		timeTillSampledHostTransmission.close();
-		outTimeTillSampling.close();
-		outTimeTillAllTransmissions.close();
-		Log.warning("Done");
 	}
 
 	public static void main(String[] args) throws Exception {
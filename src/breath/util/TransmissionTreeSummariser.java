@@ -0,0 +1,97 @@
+package breath.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Function.Constant;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beastfx.app.tools.Application;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+
+@Description("Produce outputs of TransmissionTree2InfectorOfLog, TransmissionTreeStats, TransmissionTreeInfectionTimes, "
+		+ "WIWVisualiser and UnsampledLTTCounter in a single pass through a transmission tree log. "
+		+ "Only outputs that are specified are produced.")
+public class TransmissionTreeSummariser extends Runnable {
+	final public Input<TreeFile> treesInput = new Input<>("trees", "tree file file with transmission trees", Validate.REQUIRED);
+	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored). NB default 0", 0);
+	final public Input<Integer> thinInput = new Input<>("thin", "only use every thin-th tree after burn-in", 1);
+	final public Input<String> partitionInput = new Input<>("partition", "name of the partition appended to `blockcount, blockend and blockstart`");
+	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only in infector-of log, if false block counts are ignored", true);
+
+	final public Input<OutFile> infectorOfInput = new Input<>("infectorOf", "trace log with who infected who, as produced by TransmissionTree2InfectorOfLog");
+	final public Input<OutFile> typesInput = new Input<>("types", "output file with type information for CoverageCalculator, ignored if infectorOf is not specified");
+	final public Input<String> statsDirInput = new Input<>("stats", "directory where to put files with tranmsision & sampling time stats, as produced by TransmissionTreeStats");
+	final public Input<OutFile> infectionTimesInput = new Input<>("infectionTimes", "output file for distribution of transmission times, as produced by TransmissionTreeInfectionTimes");
+	final public Input<Function> endTimeInput = new Input<>("endTime", "end time of the study, used for distribution of transmission times", new Constant("1.0"));
+	final public Input<OutFile> wiwInput = new Input<>("wiw", "SVG file for who infected who network, as produced by WIWVisualiser");
+	final public Input<OutFile> wiwMatrixInput = new Input<>("matrix", "who infected who transition probability matrix output file");
+	final public Input<OutFile> lttInput = new Input<>("ltt", "output file for lineages through time table of unsampled hosts, as produced by UnsampledLTTCounter");
+	final public Input<Integer> resolutionInput = new Input<>("resolution", "number of steps in lineages through time table", 1000);
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		List<TransmissionTreeSummary> summaries = new ArrayList<>();
+		List<PrintStream> streams = new ArrayList<>();
+
+		if (infectorOfInput.get() != null) {
+			PrintStream out = open(infectorOfInput.get(), streams);
+			PrintStream outtype = typesInput.get() != null ? open(typesInput.get(), streams) : null;
+			summaries.add(new TransmissionTree2InfectorOfLog.InfectorOfSummary(out, outtype, directOnlyInput.get()));
+		}
+		if (statsDirInput.get() != null) {
+			summaries.add(new TransmissionTreeStats.StatsSummary(statsDirInput.get()));
+		}
+		if (infectionTimesInput.get() != null) {
+			summaries.add(new TransmissionTreeInfectionTimes.InfectionTimesSummary(endTimeInput.get().getArrayValue(), open(infectionTimesInput.get(), streams)));
+		}
+		WIWVisualiser.WIWSummary wiw = null;
+		if (wiwInput.get() != null || wiwMatrixInput.get() != null) {
+			wiw = new WIWVisualiser.WIWSummary(true, null, null);
+			summaries.add(wiw);
+		}
+		if (lttInput.get() != null) {
+			summaries.add(new UnsampledLTTCounter.LTTSummary(open(lttInput.get(), streams), resolutionInput.get(), true, -1));
+		}
+		if (summaries.size() == 0) {
+			throw new IllegalArgumentException("No output specified: specify at least one of infectorOf, stats, infectionTimes, wiw, matrix or ltt");
+		}
+
+		int treeCount = TransmissionTreeLogProcessor.process(treesInput.get(), burnInPercentageInput.get(), thinInput.get(), partitionInput.get(), summaries);
+		System.err.println();
+		Log.warning("Processed " + treeCount + " trees");
+
+		for (PrintStream out : streams) {
+			out.close();
+		}
+		if (wiw != null) {
+			WIWVisualiser visualiser = new WIWVisualiser();
+			// skip the SVG layout when only the matrix is requested
+			visualiser.outputInput.setValue(wiwInput.get() != null ? wiwInput.get() : new OutFile("[[none]]"), visualiser);
+			visualiser.matrixOutputInput.setValue(wiwMatrixInput.get(), visualiser);
+			visualiser.visualise(wiw.nodeLabels, wiw.age, wiw.upper, wiw.matrix);
+		}
+		Log.warning("Done");
+	}
+
+	private PrintStream open(OutFile file, List<PrintStream> streams) throws Exception {
+		Log.warning("Writing to file " + file.getPath());
+		PrintStream out = new PrintStream(file);
+		streams.add(out);
+		return out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new TransmissionTreeSummariser(), "Transmission Tree Summariser", args);
+	}
+}
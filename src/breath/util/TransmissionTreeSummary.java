@@ -0,0 +1,18 @@
+package breath.util;
+
+import java.io.IOException;
+
+/**
+ * Summary of a transmission tree log, computed in a single pass by TransmissionTreeLogProcessor.
+ * Trees passed in are only valid during the call, so should not be kept.
+ */
+public interface TransmissionTreeSummary {
+
+	/** called once with the first tree after burn-in, before it is processed **/
+	void init(TransmissionTreeRecord first) throws IOException;
+
+	void process(TransmissionTreeRecord tree) throws IOException;
+
+	/** called once after the last tree **/
+	void close() throws IOException;
+}
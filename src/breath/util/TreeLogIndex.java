@@ -0,0 +1,170 @@
+package breath.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import beast.base.core.Log;
+
+/**
+ * Index of byte offsets of `tree STATE_` lines in a Nexus tree log, so that trees can be
+ * read directly after burn-in, thinned, or split over threads without scanning the file.
+ * The index is built by memory mapping the log, and stored in a sidecar file with extension
+ * .idx next to the log, which is reused as long as the log is not modified.
+ * Reading trees is thread safe.
+ */
+public class TreeLogIndex implements AutoCloseable {
+	final static long MAGIC = 0x425245415448494EL; // "BREATHIN"
+	final static String EXTENSION = ".idx";
+	// size of memory mapped segments while building the index
+	final static long SEGMENT_SIZE = 1L << 30;
+
+	private FileChannel channel;
+	private long fileLength;
+	// byte offsets of tree lines, with file length appended
+	private long [] offsets;
+	private int treeCount;
+
+	private TreeLogIndex(File treeFile) throws IOException {
+		channel = FileChannel.open(treeFile.toPath(), StandardOpenOption.READ);
+		fileLength = channel.size();
+	}
+
+	/** load index of tree log from its sidecar file if it is up to date, otherwise build it and try to store the sidecar file **/
+	public static TreeLogIndex get(File treeFile) throws IOException {
+		TreeLogIndex index = new TreeLogIndex(treeFile);
+		File indexFile = new File(treeFile.getPath() + EXTENSION);
+		if (indexFile.exists() && indexFile.lastModified() >= treeFile.lastModified() && index.load(indexFile, treeFile)) {
+			return index;
+		}
+		index.build();
+		try {
+			index.save(indexFile, treeFile);
+		} catch (IOException e) {
+			Log.warning("Could not write tree log index " + indexFile.getPath() + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	private void build() throws IOException {
+		long [] found = new long[1024];
+		int count = 0;
+		final byte [] pattern = "tree ".getBytes(StandardCharsets.US_ASCII);
+		// position in pattern matched so far on the current line, or -1 if the line does not match
+		int m = 0;
+		long lineStart = 0;
+		for (long segmentStart = 0; segmentStart < fileLength; segmentStart += SEGMENT_SIZE) {
+			long size = Math.min(SEGMENT_SIZE, fileLength - segmentStart);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+			for (int k = 0; k < size; k++) {
+				byte c = buf.get(k);
+				if (c == '\n') {
+					m = 0;
+					lineStart = segmentStart + k + 1;
+				} else if (m >= 0) {
+					if (m == 0 && (c == ' ' || c == '\t' || c == '\r')) {
+						// skip leading white space
+					} else if (Character.toLowerCase(c) == pattern[m]) {
+						m++;
+						if (m == pattern.length) {
+							if (count == found.length) {
+								found = Arrays.copyOf(found, found.length * 2);
+							}
+							found[count++] = lineStart;
+							m = -1;
+						}
+					} else {
+						m = -1;
+					}
+				}
+			}
+		}
+		treeCount = count;
+		offsets = Arrays.copyOf(found, count + 1);
+		offsets[count] = fileLength;
+	}
+
+	private boolean load(File indexFile, File treeFile) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readLong() != MAGIC || in.readLong() != fileLength || in.readLong() != treeFile.lastModified()) {
+				return false;
+			}
+			treeCount = in.readInt();
+			offsets = new long[treeCount + 1];
+			for (int i = 0; i < treeCount; i++) {
+				offsets[i] = in.readLong();
+			}
+			offsets[treeCount] = fileLength;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void save(File indexFile, File treeFile) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeLong(MAGIC);
+			out.writeLong(fileLength);
+			out.writeLong(treeFile.lastModified());
+			out.writeInt(treeCount);
+			for (int i = 0; i < treeCount; i++) {
+				out.writeLong(offsets[i]);
+			}
+		}
+	}
+
+	/** @return number of trees in the log **/
+	public int size() {
+		return treeCount;
+	}
+
+	/** @return number of trees to skip for given burn-in percentage, as in TreeAnnotator **/
+	public int getBurnin(int burnInPercentage) {
+		return treeCount * burnInPercentage / 100;
+	}
+
+	/** @return complete line of tree i in the log, e.g. `tree STATE_1000 = (...);` **/
+	public String getLine(int i) throws IOException {
+		long start = offsets[i];
+		int length = (int) Math.min(offsets[i + 1] - start, Integer.MAX_VALUE);
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			// positional reads do not change the channel position, so are thread safe
+			if (channel.read(buf, start + buf.position()) < 0) {
+				break;
+			}
+		}
+		byte [] bytes = buf.array();
+		int end = 0;
+		while (end < buf.position() && bytes[end] != '\n') {
+			end++;
+		}
+		return new String(bytes, 0, end, StandardCharsets.UTF_8).trim();
+	}
+
+	/** @return Newick string of tree i in the log, which can be parsed by TreeLogReader.parse() **/
+	public String getNewick(int i) throws IOException {
+		String line = getLine(i);
+		int k = line.indexOf('(');
+		if (k < 0) {
+			throw new IllegalArgumentException("Tree log index is out of date: no tree at offset " + offsets[i]);
+		}
+		return line.substring(k);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
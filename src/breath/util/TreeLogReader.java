@@ -0,0 +1,149 @@
+package breath.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+
+/**
+ * Splits a tree log into the Newick strings of its trees, without parsing them,
+ * so that parsing can be done elsewhere, e.g. by a pool of worker threads.
+ * Handles BEAST Nexus tree logs (with or without translate block) and files
+ * with one Newick tree per line.
+ */
+public class TreeLogReader implements AutoCloseable {
+	private BufferedReader fin;
+	// taxa names from translate block, index is translate number - 1, or null if there is no translate block
+	private List<String> taxa;
+	private boolean isNexus;
+	// line read ahead while processing the header, still to be processed by nextTree()
+	private String pending;
+	// sample number of last tree returned by nextTree()
+	private long sampleNr = -1;
+
+	public TreeLogReader(File treeFile) throws IOException {
+		fin = new BufferedReader(new FileReader(treeFile));
+		String str = fin.readLine();
+		isNexus = str != null && str.trim().toLowerCase().startsWith("#nexus");
+		if (!isNexus) {
+			pending = str;
+			return;
+		}
+		// skip to trees block
+		while ((str = fin.readLine()) != null) {
+			if (str.trim().toLowerCase().startsWith("begin trees")) {
+				break;
+			}
+		}
+		str = fin.readLine();
+		while (str != null && str.trim().isEmpty()) {
+			str = fin.readLine();
+		}
+		if (str != null && str.trim().toLowerCase().startsWith("translate")) {
+			readTranslateBlock();
+		} else {
+			pending = str;
+		}
+	}
+
+	private void readTranslateBlock() throws IOException {
+		List<String> names = new ArrayList<>();
+		String str;
+		while ((str = fin.readLine()) != null) {
+			str = str.trim();
+			if (str.equals(";")) {
+				break;
+			}
+			boolean done = str.endsWith(";");
+			if (str.endsWith(",") || str.endsWith(";")) {
+				str = str.substring(0, str.length() - 1).trim();
+			}
+			if (str.length() > 0) {
+				String [] strs = str.split("\\s+", 2);
+				int nr = Integer.parseInt(strs[0]);
+				String name = strs[1].trim();
+				if (name.length() > 1 && (name.charAt(0) == '\'' || name.charAt(0) == '"')) {
+					name = name.substring(1, name.length() - 1);
+				}
+				while (names.size() < nr) {
+					names.add(null);
+				}
+				names.set(nr - 1, name);
+			}
+			if (done) {
+				break;
+			}
+		}
+		taxa = names;
+	}
+
+	/**
+	 * @return Newick string of next tree in the log, or null if there are no more trees
+	 */
+	public String nextTree() throws IOException {
+		String str = pending;
+		pending = null;
+		if (str == null) {
+			str = fin.readLine();
+		}
+		for (; str != null; str = fin.readLine()) {
+			String trimmed = str.trim();
+			if (isNexus) {
+				if (trimmed.toLowerCase().startsWith("end;")) {
+					return null;
+				}
+				if (trimmed.toLowerCase().startsWith("tree ")) {
+					int i = trimmed.indexOf('(');
+					if (i >= 0) {
+						sampleNr = parseSampleNr(trimmed);
+						return trimmed.substring(i);
+					}
+				}
+			} else if (trimmed.startsWith("(")) {
+				sampleNr++;
+				return trimmed;
+			}
+		}
+		return null;
+	}
+
+	private long parseSampleNr(String str) {
+		int i = str.indexOf("STATE_");
+		if (i >= 0) {
+			int j = i + 6;
+			while (j < str.length() && Character.isDigit(str.charAt(j))) {
+				j++;
+			}
+			if (j > i + 6) {
+				return Long.parseLong(str.substring(i + 6, j));
+			}
+		}
+		return sampleNr + 1;
+	}
+
+	/** @return sample number of the last tree returned by nextTree(), taken from its STATE_ label if present **/
+	public long getSampleNr() {
+		return sampleNr;
+	}
+
+	/**
+	 * Parse a Newick string obtained from nextTree() into a tree, with node meta data.
+	 * Does not change state of this reader, so can be called from any thread.
+	 */
+	public Tree parse(String newick) {
+		if (taxa != null) {
+			return new TreeParser(taxa, newick, 1, false);
+		}
+		return new TreeParser(newick, false, false, true, 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		fin.close();
+	}
+}
@@ -4,19 +4,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.FastTreeSet;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
-import breath.distribution.ColourProvider;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.Runnable;
-import beast.base.inference.parameter.IntegerParameter;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
@@ -31,7 +27,10 @@ public class UnsampledLTTCounter extends Runnable {
 			"percentage of trees to used as burn-in (and will be ignored)", 10);
 	final public Input<String> partitionInput = new Input<>("partition",
 			"name of the partition appended to `blockcount, blockend and blockstart`");
-	final public Input<Integer> resolutionInput = new Input<>("resolution", "number of steps in table", 1000);
+	final public Input<Integer> resolutionInput = new Input<>("resolution", "number of steps in table covering maxX if specified, otherwise the height of "
+			+ "the first tree after burn-in. The step size is doubled whenever a tree needs more than twice this number of steps, so memory does not depend on the trees", 1000);
+	final public Input<Integer> binCountInput = new Input<>("bins", "number of bins used for the distribution of lineage counts at each step. "
+			+ "Memory does not depend on the number of trees, and HPD bounds are accurate up to range of counts / bins", 500);
 	final public Input<Boolean> reverseSVGAxisInput = new Input<>("reverseSVGAxis",
 			"reverse x-axis, that is go forward in time instead of backward", true);
 	final public Input<Double> maxXInput = new Input<>("maxX", "maximum value for x-axis. Automaticlly deduced if < 0", -1.0);
@@ -62,7 +61,7 @@ public class UnsampledLTTCounter extends Runnable {
 			dataX[n] = processFile(treeFile);
 			
 			out.println("age\tmean\t95%HPD_low\t95%HPD_high");
-			for (int i = 0; i < N; i++) {
+			for (int i = 0; i < dataX[n].length; i++) {
 				out.println(dataX[n][i][0] + "\t" + dataX[n][i][1] + "\t" + dataX[n][i][2] + "\t" + dataX[n][i][3]);
 			}
 			
@@ -95,17 +94,17 @@ public class UnsampledLTTCounter extends Runnable {
 
 				// 95% hpd polygon
 				svg.print("<polygon class=\"intervals\" points=\"");
-				for (int i = 0; i < N; i++) {
+				for (int i = 0; i < dataX[k].length; i++) {
 					svg.print(dataX[k][i][0] * fx + "," + (y - dataX[k][i][2] * fy) + " ");
 				}
-				for (int i = N - 1; i >= 0; i--) {
+				for (int i = dataX[k].length - 1; i >= 0; i--) {
 					svg.print(dataX[k][i][0] * fx + "," + (y - dataX[k][i][3] * fy) + " ");
 				}
 				svg.println("\"/>");
 
 				// mean polyline
 				svg.print("<polyline class=\"mean\" points=\"");
-				for (int i = 0; i < N; i++) {
+				for (int i = 0; i < dataX[k].length; i++) {
 					svg.print(dataX[k][i][0] * fx + "," + (y - dataX[k][i][1] * fy) + " ");
 				}
 				svg.println("\"/>");
@@ -117,150 +116,237 @@ public class UnsampledLTTCounter extends Runnable {
 	}
 
 	private double[][] processFile(File treeFile) throws IOException {
-		FastTreeSet trees = new TreeAnnotator().new FastTreeSet(treeFile.getAbsolutePath(),
-				burnInPercentageInput.get());
-		trees.reset();
+		LTTSummary summary = new LTTSummary(null, N, reverseSVGAxisInput.get(), maxXInput.get(), binCountInput.get());
+		TransmissionTreeLogProcessor.process(treeFile, burnInPercentageInput.get(), partitionInput.get(), summary);
+		System.err.println();
+		maxX = maxXInput.get() > 0 ? maxXInput.get() : summary.getMaxX();
+		Log.warning("Maximum height = " + summary.getMaxX());
+		return summary.getData();
+	}
 
-		List<Double>[] distrs = new List[N + 1];
-		for (int i = 0; i < distrs.length; i++) {
-			distrs[i] = new ArrayList<>();
+	/**
+	 * add number of lineages of unsampled hosts in tree to linCount, averaged over intervals of length stepSize.
+	 * linCount should be long enough to cover the root of the tree.
+	 * Takes O(nodes + linCount.length) time.
+	 */
+	static void addUnsampledLineages(TransmissionTreeRecord record, double stepSize, double [] linCount) {
+		Tree tree = record.tree;
+		int leafNodeCount = record.leafCount;
+		int [] count = record.blockCount;
+		double [] blockStart = record.blockStart;
+		double [] blockEnd = record.blockEnd;
+		int [] colourAtBase = record.colourAtBase;
+		// lineageDelta[j] is the change in number of lineages covering whole steps at step j,
+		// so each branch costs constant time instead of time proportional to its length
+		int [] lineageDelta = new int[linCount.length + 1];
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isRoot()) {
+				// select relevant part of the branch:
+				int i = node.getNr();
+				int start = -1;
+				int end = -1;
+				double startTime = -1, endTime = -1;
+				if (count[i] < 0) {
+					if (colourAtBase[node.getNr()] >= leafNodeCount) {
+						// whole branch is unsampled
+						startTime = node.getHeight();
+						endTime = node.getParent().getHeight();
+					} else {
+						// whole branch is sampled
+					}
+				} else if (count[i] == 0) {
+					if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
+						endTime = node.getParent().getHeight();
+					} else {
+						endTime = node.getHeight() + node.getLength() * blockEnd[i];
+					}
+					if (colourAtBase[node.getNr()] >= leafNodeCount) {
+						startTime = node.getHeight();
+					} else {
+						startTime = node.getHeight() + node.getLength() * blockStart[i];
+					}
+					if (colourAtBase[node.getParent().getNr()] < leafNodeCount &&
+							colourAtBase[node.getNr()] < leafNodeCount) {
+						start = -1;
+						end = -1;
+					}
+				} else { // count[i] > 0
+					if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
+						endTime = node.getParent().getHeight();
+					} else {
+						endTime = node.getHeight() + node.getLength() * blockEnd[i];
+					}
+					if (colourAtBase[node.getNr()] >= leafNodeCount) {
+						startTime = node.getHeight();
+					} else {
+						startTime = node.getHeight() + node.getLength() * blockStart[i];
+					}
+				}
+				if (startTime >= 0) {
+					start = (int) (startTime / stepSize + 0.5);
+					end = (int) (endTime / stepSize + 0.5);
+					if (start == end) {
+						linCount[start] += (endTime - startTime)/stepSize;
+					} else {
+						linCount[start] += ((start+1) * stepSize  - startTime)/stepSize;
+						// whole steps in between are added in the sweep below
+						lineageDelta[start+1]++;
+						lineageDelta[end]--;
+						linCount[end] += (endTime - end * stepSize) / stepSize;
+					}
+				}
+			}
 		}
 
-		trees.reset();
-		maxX = 0;
-		int leafNodeCount = 0;
-		while (trees.hasNext()) {
-			Tree tree = trees.next();
-			maxX = Math.max(tree.getRoot().getHeight(), maxX);
-			leafNodeCount = tree.getLeafNodeCount();
+		// sweep over steps, keeping track of number of lineages covering whole steps
+		int lineages = 0;
+		for (int j = 0; j < linCount.length; j++) {
+			lineages += lineageDelta[j];
+			linCount[j] += lineages;
 		}
-		Log.warning("Maximum height = " + maxX);
+	}
 
-		trees.reset();
+	/**
+	 * lineages through time table of unsampled hosts, calculated in a single pass.
+	 * Since the maximum tree height is not known in advance, the step size is based on
+	 * maxX if given, otherwise on the height of the first tree, and steps are added for trees
+	 * that are higher. Once there are more than twice resolution steps, the step size is doubled
+	 * and neighbouring steps are merged, like bins in OnlineHistogram, so there are never
+	 * more than 2 * resolution + 2 steps.
+	 * Lineage counts at every step are kept in a fixed size OnlineHistogram, so memory
+	 * does not grow with the number of trees or their heights, and quantiles are accurate up to the bin width.
+	 */
+	public static class LTTSummary implements TransmissionTreeSummary {
+		private PrintStream out;
+		private int resolution;
+		private boolean reverse;
+		private double maxXOverride;
+		private int binCount;
+		private double stepSize;
+		// number of times a lineage count is added to the histogram of a step for every tree,
+		// which doubles when steps are merged, so that every tree has the same weight
+		private long weight = 1;
+		private double maxX = 0;
+		private List<OnlineHistogram> distrs = new ArrayList<>();
+		private double [] linCount = new double[0];
+		private int sampleCount = 0;
+		private double [][] data;
 
-		Integer[] count = new Integer[leafNodeCount * 2 - 1];
-		Double[] blockStart = new Double[leafNodeCount * 2 - 1];
-		Double[] blockEnd = new Double[leafNodeCount * 2 - 1];
-		while (trees.hasNext()) {
-			double [] linCount = new double[N + 1];
-			double stepSize = maxX / N;
-			Tree tree = trees.next();
-			for (int i = 0; i < tree.getNodeCount(); i++) {
-				beast.base.evolution.tree.Node node = tree.getNode(i);
-				Object o = node.getMetaData("blockcount");
-				if (o == null) {
-					o = node.getMetaData("blockcount.t:" + partitionInput.get());
-				}
-				count[i] = o == null ? 0 : (int) (double) o;
-				
-				o = node.getMetaData("blockstart");
-				if (o == null) {
-					o = node.getMetaData("blockstart.t:" + partitionInput.get());
-				}
-				blockStart[i] = o == null ? 1.0 : (double) o;
+		/**
+		 * @param out stream to print table to when done, or null if not required
+		 * @param resolution number of steps covering maxXOverride if positive, otherwise the height of the first tree
+		 * @param reverse go forward in time instead of backward
+		 * @param maxXOverride maximum age used for the step size and when reversing, ignored if not positive
+		 */
+		public LTTSummary(PrintStream out, int resolution, boolean reverse, double maxXOverride) {
+			this(out, resolution, reverse, maxXOverride, 500);
+		}
+
+		/**
+		 * @param binCount number of bins in the histogram of lineage counts at each step, should be even
+		 */
+		public LTTSummary(PrintStream out, int resolution, boolean reverse, double maxXOverride, int binCount) {
+			this.out = out;
+			this.resolution = resolution;
+			this.reverse = reverse;
+			this.maxXOverride = maxXOverride;
+			this.binCount = binCount;
+		}
+
+		@Override
+		public void init(TransmissionTreeRecord first) {
+			stepSize = (maxXOverride > 0 ? maxXOverride : first.tree.getRoot().getHeight()) / resolution;
+		}
 
-				o = node.getMetaData("blockend");
-				if (o == null) {
-					o = node.getMetaData("blockend.t:" + partitionInput.get());
+		@Override
+		public void process(TransmissionTreeRecord record) {
+			double height = record.tree.getRoot().getHeight();
+			maxX = Math.max(maxX, height);
+			int n = (int) (height / stepSize + 0.5) + 2;
+			while (n > 2 * resolution + 2) {
+				mergeSteps();
+				n = (int) (height / stepSize + 0.5) + 2;
+			}
+			if (linCount.length < n) {
+				linCount = new double[n];
+			} else {
+				Arrays.fill(linCount, 0.0);
+			}
+			addUnsampledLineages(record, stepSize, linCount);
+			while (distrs.size() < linCount.length) {
+				// earlier trees have no lineages here
+				OnlineHistogram distr = new OnlineHistogram(binCount, Double.NaN);
+				distr.add(0.0, sampleCount * weight);
+				distrs.add(distr);
+			}
+			for (int i = 0; i < distrs.size(); i++) {
+				distrs.get(i).add(i < linCount.length ? linCount[i] : 0.0, weight);
+			}
+			sampleCount++;
+		}
+
+		/** double the step size, merging the histograms of pairs of neighbouring steps **/
+		private void mergeSteps() {
+			List<OnlineHistogram> merged = new ArrayList<>();
+			for (int i = 0; i < distrs.size(); i += 2) {
+				OnlineHistogram distr = distrs.get(i);
+				if (i + 1 < distrs.size()) {
+					distr.add(distrs.get(i + 1));
+				} else {
+					// no tree reached the second step
+					distr.add(0.0, sampleCount * weight);
 				}
-				blockEnd[i] = o == null ? 1.0 : (double) o;
+				merged.add(distr);
 			}
-			// root count = -1
-			count[count.length-1] = -1;
-			IntegerParameter blockCount = new IntegerParameter(count);
-			// calculate colouring
-			int[] colourAtBase = new int[leafNodeCount * 2 - 1];
-			ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
+			distrs = merged;
+			// reallocated for the new number of steps
+			linCount = new double[0];
+			stepSize *= 2;
+			weight *= 2;
+		}
 
-			for (Node node : tree.getNodesAsArray()) {
-				if (!node.isRoot()) {
-					// select relevant part of the branch:
-					int i = node.getNr();
-					int start = -1;
-					int end = -1;
-					double startTime = -1, endTime = -1;
-					if (count[i] < 0) {
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							// whole branch is unsampled
-							startTime = node.getHeight();
-							endTime = node.getParent().getHeight();
-						} else {
-							// whole branch is sampled
-						}
-					} else if (count[i] == 0) {
-						if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
-							endTime = node.getParent().getHeight();
-						} else {
-							endTime = node.getHeight() + node.getLength() * blockEnd[i];
-						}
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							startTime = node.getHeight();
-						} else {
-							startTime = node.getHeight() + node.getLength() * blockStart[i];
-						}
-						if (colourAtBase[node.getParent().getNr()] < leafNodeCount &&
-								colourAtBase[node.getNr()] < leafNodeCount) {
-							start = -1;
-							end = -1;
-						}
-					} else { // count[i] > 0
-						if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
-							endTime = node.getParent().getHeight();
-						} else {
-							endTime = node.getHeight() + node.getLength() * blockEnd[i];
-						}
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							startTime = node.getHeight();
-						} else {
-							startTime = node.getHeight() + node.getLength() * blockStart[i];
-						}
-					}
-					if (startTime >= 0) {
-						start = (int) (startTime * N / maxX + 0.5);
-						end = (int) (endTime * N / maxX + 0.5);
-						if (start == end) {
-							linCount[start] += (endTime - startTime)/stepSize;
-						} else {
-							linCount[start] += ((start+1) * stepSize  - startTime)/stepSize;
-							for (int j = start+1; j < end; j++) {
-								linCount[j]++;
-							}
-							linCount[end] += (endTime - end * stepSize) / stepSize;
-						}
-					}
+		@Override
+		public void close() {
+			int n = Math.min(distrs.size(), (int) Math.ceil(maxX / stepSize));
+			data = new double[n][4];
+			for (int i = 0; i < n; i++) {
+				data[i][0] = i * stepSize;
+				OnlineHistogram counts = distrs.get(i);
+				data[i][1] = counts.getMean();
+				data[i][2] = counts.getQuantile(0.025);
+				data[i][3] = counts.getQuantile(0.975);
+			}
+
+			smooth(data, 1);
+			smooth(data, 2);
+			smooth(data, 3);
+
+			double max = maxXOverride > 0 ? maxXOverride : maxX;
+			if (reverse) {
+				for (int i = 0; i < n; i++) {
+					data[i][0] = max - data[i][0];
 				}
 			}
-			for (int i = 0; i < N; i++) {
-				distrs[i].add(linCount[i]);
+			if (out != null) {
+				out.println("age\tmean\t95%HPD_low\t95%HPD_high");
+				for (int i = 0; i < n; i++) {
+					out.println(data[i][0] + "\t" + data[i][1] + "\t" + data[i][2] + "\t" + data[i][3]);
+				}
 			}
 		}
 
-		double[][] data = new double[N][4];
-		for (int i = 0; i < N; i++) {
-			data[i][0] = i * maxX / N;
-			List<Double> counts = distrs[i];
-			data[i][1] = mean(counts);
-			double[] bounds = bounds(counts);
-			data[i][2] = bounds[0];
-			data[i][3] = bounds[1];
+		/** @return rows with age, mean, lower and upper bound, available after close() **/
+		public double [][] getData() {
+			return data;
 		}
 
-		smooth(data, 1);
-		smooth(data, 2);
-		smooth(data, 3);
-
-		if (maxXInput.get() > 0) {
-			maxX = maxXInput.get();
-		}
-		if (reverseSVGAxisInput.get()) {
-			for (int i = 0; i < N; i++) {
-				data[i][0] = maxX - data[i][0];
-			}
+		/** @return maximum tree height **/
+		public double getMaxX() {
+			return maxX;
 		}
-		return data;
 	}
 
-	private void smooth(double[][] data, int column) {
+	static void smooth(double[][] data, int column) {
 		int window = 5;
 		int N = data.length;
 		double[] smoothed = new double[N];
@@ -277,21 +363,6 @@ public class UnsampledLTTCounter extends Runnable {
 		}
 	}
 
-	private double[] bounds(List<Double> counts) {
-		Collections.sort(counts);
-		int lower = counts.size() * 25 / 1000;
-		int upper = counts.size() * 975 / 1000;
-		return new double[] { counts.get(lower), counts.get(upper) };
-	}
-
-	private double mean(List<Double> counts) {
-		double sum = 0;
-		for (double i : counts) {
-			sum += i;
-		}
-		return sum / counts.size();
-	}
-
 	public static void main(String[] args) throws Exception {
 		new Application(new UnsampledLTTCounter(), "UnsampledLTTCounter", args);
 
@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -26,16 +25,11 @@ import beastfx.app.util.LogFile;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
 import beastfx.app.util.Utils;
-import breath.distribution.ColourProvider;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Tree;
-import beast.base.inference.parameter.IntegerParameter;
 import beast.base.util.HeapSort;
-import beastfx.app.tools.LogAnalyser;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 
 @Description("Create SVG files to visualise who infected who")
 public class WIWVisualiser extends beast.base.inference.Runnable {
@@ -55,6 +49,10 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 	final public Input<Float> saturationInput = new Input<>("saturation", "saturation used when colouring nodes.", 0.7f);
 	final public Input<Float> brightnessInput = new Input<>("brightness", "brightness used when colouring nodes.", 0.7f);
 	final public Input<String> filterInput = new Input<>("filter", "search/replace regular expression for filtering labels. Should be of the form '/searchRegExp/replaceString/'. Ignored if not specified");
+	final public Input<Double> epsilonInput = new Input<>("epsilon", "maximum error in who infected who probabilities due to pruning rare infectors while reading, "
+			+ "which bounds memory for large outbreaks. If negative, threshold/10 is used. Use 0 for exact probabilities", -1.0);
+	final public Input<OutFile> dotOutputInput = new Input<>("dot", "if specified, write network in DOT format, streamed without layout. "
+			+ "For very large outbreaks, set out to [[none]] to skip the SVG layout");
 
 	final static String DIR_SEPARATOR = (Utils.isWindows() ? "\\\\" : "/");
 
@@ -78,82 +76,20 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 			replace = filter.substring(sep + 1, filter.length() - 1);
 		}
 
-		double [][] transitions;
+		double epsilon = epsilonInput.get() >= 0 ? epsilonInput.get() : thresholdInput.get() / 10;
+		SparseWIWMatrix matrix;
 		if (treeFile.get() != null && !treeFile.get().getName().equals("[[none]]")) {
-	        MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.get().getAbsolutePath(), burnInPercentageInput.get());
-	        trees.reset();
-	    	Tree tree = trees.next();
-	    	n = tree.getLeafNodeCount();
-	    	
-			if (colourByAgeInput.get()) {
-				age = new double[n];
-				for (int i = 0; i < n; i++) {
-					age[i] = tree.getNode(i).getHeight();
-					upper = Math.max(upper, age[i]);
-				}
-			}
-
-			nodeLabels = new String[n];
-			for (int i = 0; i < n; i++) {
-				nodeLabels[i] = tree.getNode(i).getID();
-				if (search != null) {
-					nodeLabels[i] = nodeLabels[i].replaceAll(search, replace);
-				}
-			}
-			
-	        trees.reset();
-			transitions = new double[n][n+1];
-			int sampleCount = 0;
-	        while (trees.hasNext()) {
-	        	tree = trees.next();
-	        	
-	        	// extract meta data from tree
-	        	Integer [] count = new Integer[n*2-1];
-	        	for (int i = 0; i < tree.getNodeCount(); i++) {
-	        		beast.base.evolution.tree.Node node = tree.getNode(i);
-	        		Object o = node.getMetaData("blockcount");
-	        		if (o == null) {
-	        			o = node.getMetaData("blockcount.t:" + partitionInput.get());
-	        		}
-	        		count[i] = o == null ? 0 : (int)(double) o;
-	        	}
-	            IntegerParameter blockCount = new IntegerParameter(count);
-
-	            // calculate colouring
-	        	int [] colourAtBase = new int[n*2-1];
-	        	ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-	        	
-	        	// determine who infected who
-	        	int [] infectedBy = new int[tree.getLeafNodeCount()];
-	        	Arrays.fill(infectedBy, -1);
-	        	for (int i = 0; i < 2 * n - 2; i++) {
-	        		beast.base.evolution.tree.Node node = tree.getNode(i);
-	        		beast.base.evolution.tree.Node parent = node.getParent();
-	        		if (colourAtBase[node.getNr()] < n && colourAtBase[parent.getNr()] < n && 
-	        				colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
-	        			if (blockCount.getValue(node.getNr()) == 0) {
-	        				infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
-	        			}
-	        		}
-	        	}
-	        	
-	        	
-	        	// log the result
-	        	for (int i = 0; i < n; i++) {
-		        	transitions[i][(infectedBy[i] + n + 1) % (n+1)]++;
-	        	}
-	        	sampleCount++;
-	        }			
-			for (int i = 0; i < n; i++) {
-				for (int j = 0; j < n+1; j++) {
-					transitions[i][j] /= sampleCount;
-				}
-			}
+			WIWSummary summary = new WIWSummary(colourByAgeInput.get(), search, replace, epsilon);
+			TransmissionTreeLogProcessor.process(treeFile.get(), burnInPercentageInput.get(), partitionInput.get(), summary);
+			nodeLabels = summary.nodeLabels;
+			age = summary.age;
+			upper = summary.upper;
+			matrix = summary.matrix;
 		} else {
-			LogAnalyser trace = new LogAnalyser(inFile.get().getPath(), burnInPercentageInput.get(), true, false);
+			File log = inFile.get();
 			
 			// count number of taxa from trace file
-			List<String> labels = trace.getLabels();
+			List<String> labels = ColumnTraceReader.readLabels(log);
 			n = 0;
 			String prefix = prefixInput.get() + ".1";
 			int offset = 0;
@@ -162,36 +98,76 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 				if (label.equals(prefix)) {
 					offset = i;
 					prefix = prefixInput.get();
-					while (labels.get(i+n).equals(prefix + "." + (n+1))) {
+					while (i + n < labels.size() && labels.get(i+n).equals(prefix + "." + (n+1))) {
 						n++;
 					}
 					break;
 				}
 			}
 			
-			// count transitions
-			transitions = new double[n][n+1];
-			int sampleCount = 0;
-			for (int i = 0; i < n; i++) {
-				Double [] infectorOf = trace.getTrace(offset + i + 1);
-				sampleCount = infectorOf.length;
-				for (Double d : infectorOf) {
-					transitions[i][ (int)(d + n + 1) % (n+1)]++;
-				}
-			}
-			for (int i = 0; i < n; i++) {
-				for (int j = 0; j < n+1; j++) {
-					transitions[i][j] /= sampleCount;
+			// count transitions, streaming through the infector columns only
+			final int taxonCount = n;
+			matrix = new SparseWIWMatrix(n, epsilon);
+			int [] infectedBy = new int[n];
+			ColumnTraceReader.stream(log, burnInPercentageInput.get(), offset, n, (row, infectorOf) -> {
+				for (int i = 0; i < taxonCount; i++) {
+					double d = infectorOf[i];
+					infectedBy[i] = d >= 0 && d < taxonCount ? (int) d : -1;
 				}
-			}
+				matrix.add(infectedBy);
+			});
 			nodeLabels = new String[n];
 			for (int i = 0; i < n; i++) {
 				nodeLabels[i] = (i+1) + "";
 			}
 		}		
+		Log.warning("Who infected who matrix has " + matrix.getEntryCount() + " non-zero entries");
 		
 
 		
+		visualise(nodeLabels, age, upper, matrix);
+	}
+
+	/** draw who-infected-who graph, legend and transition matrix **/
+	void visualise(String [] nodeLabels, double [] age, double upper, SparseWIWMatrix matrix) throws IOException {
+		int n = nodeLabels.length;
+		double threshold = thresholdInput.get();
+		// edges above threshold, per infectee sorted by infector
+		int [][] edges = new int[n][];
+		double [][] edgeProbs = new double[n][];
+		boolean [] nodesInUse = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			final int infectee = i;
+			List<double[]> list = new ArrayList<>();
+			matrix.forEach(i, (j, p) -> {
+				if (j < n && j != infectee && p >= threshold) {
+					list.add(new double[] {j, p});
+				}
+			});
+			list.sort((a, b) -> Double.compare(a[0], b[0]));
+			edges[i] = new int[list.size()];
+			edgeProbs[i] = new double[list.size()];
+			for (int k = 0; k < list.size(); k++) {
+				edges[i][k] = (int) list.get(k)[0];
+				edgeProbs[i][k] = list.get(k)[1];
+				nodesInUse[i] = true;
+				nodesInUse[edges[i][k]] = true;
+			}
+		}
+		// posterior probability of being infected by a sampled host
+		double [] sampledInfector = new double[n];
+		for (int i = 0; i < n; i++) {
+			sampledInfector[i] = 1.0 - matrix.get(i, n) - matrix.get(i, i);
+		}
+
+		if (dotOutputInput.get() != null) {
+			outputDot(nodeLabels, sampledInfector, nodesInUse, edges, edgeProbs);
+		}
+		if (outputInput.get() == null || outputInput.get().getName().equals("[[none]]")) {
+			outputMatrix(nodeLabels, matrix);
+			return;
+		}
+
 		// build transition graph
 		GraphvizBuilder dotty = Graphviz.digraph();
 		//dotty = dotty.tempNode(Node.builder().shape(NodeShapeEnum.RECT).build());
@@ -200,16 +176,6 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 		DecimalFormat f = new DecimalFormat("#.##");
 		Node [] nodes = new Node[n];
 
-		boolean [] nodesInUse = new boolean[n];
-		double threshold = thresholdInput.get();
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				if (i!=j && transitions[i][j] >= threshold) {
-					nodesInUse[i] = true;
-					nodesInUse[j] = true;
-				}
-			}
-		}
 
 		
 		
@@ -227,13 +193,13 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 					colourString = "#" + Integer.toHexString(c).substring(2);
 					Color fillcolour = Color.ofRGB(colourString);
 					node = Node.builder()
-							.label(nodeLabels[i] + " (" + f.format(1.0-transitions[i][n]-transitions[i][i]) + ")")
+							.label(nodeLabels[i] + " (" + f.format(sampledInfector[i]) + ")")
 							.color(colour)
 							.fillColor(fillcolour)
 							.build();
 				} else {
 					node = Node.builder()
-						.label(nodeLabels[i] + " (" + f.format(1.0-transitions[i][n]-transitions[i][i]) + ")")
+						.label(nodeLabels[i] + " (" + f.format(sampledInfector[i]) + ")")
 						.build();
 				}
 	//			System.err.println(transitions[i][i]);
@@ -264,28 +230,28 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 		// add edges
 		double pen;
 		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				if (i!=j && transitions[i][j] >= threshold) {
-					if (widthByPosteriorInput.get()) {
-						pen = transitions[i][j]*15;
-						dotty = dotty.addLine(Line.builder(nodes[j], nodes[i]).penWidth(pen)
-								.label(f.format(transitions[i][j]))
-								.build());
-					} else if (colourByAgeInput.get()) {
-						int c = java.awt.Color.HSBtoRGB((float)(transitions[i][j] * 0.5 + 0.5), saturationInput.get(), brightnessInput.get());
-						String colourString = "#" + Integer.toHexString(c).substring(2);
-						Color fillcolour = Color.ofRGB(colourString);
-						dotty = dotty.addLine(Line.builder(nodes[j], nodes[i])
-								.penWidth(2.0)
-								.color(fillcolour)
-								.fontColor(fillcolour)
-								.label(f.format(transitions[i][j]))
-								.build());
-					} else {
-						dotty = dotty.addLine(Line.builder(nodes[j], nodes[i])
-								.label(f.format(transitions[i][j]))
-								.build());
-					}
+			for (int k = 0; k < edges[i].length; k++) {
+				int j = edges[i][k];
+				double p = edgeProbs[i][k];
+				if (widthByPosteriorInput.get()) {
+					pen = p*15;
+					dotty = dotty.addLine(Line.builder(nodes[j], nodes[i]).penWidth(pen)
+							.label(f.format(p))
+							.build());
+				} else if (colourByAgeInput.get()) {
+					int c = java.awt.Color.HSBtoRGB((float)(p * 0.5 + 0.5), saturationInput.get(), brightnessInput.get());
+					String colourString = "#" + Integer.toHexString(c).substring(2);
+					Color fillcolour = Color.ofRGB(colourString);
+					dotty = dotty.addLine(Line.builder(nodes[j], nodes[i])
+							.penWidth(2.0)
+							.color(fillcolour)
+							.fontColor(fillcolour)
+							.label(f.format(p))
+							.build());
+				} else {
+					dotty = dotty.addLine(Line.builder(nodes[j], nodes[i])
+							.label(f.format(p))
+							.build());
 				}
 			}
 		}
@@ -326,13 +292,100 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 	        }
 			ImageIO.write(image, "png", new File(legendPath));
 		}
-		outputMatrix(nodeLabels, transitions);
+		outputMatrix(nodeLabels, matrix);
+	}
+
+	/** posterior probabilities of who infected who, with unsampled infectors in column n **/
+	public static class WIWSummary implements TransmissionTreeSummary {
+		private boolean colourByAge;
+		private String search, replace;
+		private double epsilon;
+		String [] nodeLabels;
+		double [] age;
+		double upper = 0;
+		SparseWIWMatrix matrix;
+		private int [] infectedBy;
+
+		public WIWSummary(boolean colourByAge, String search, String replace) {
+			this(colourByAge, search, replace, 0);
+		}
+
+		/**
+		 * @param search regular expression for filtering labels, or null if labels are not filtered
+		 * @param replace replacement string for labels
+		 * @param epsilon maximum error in probabilities due to pruning rare infectors, 0 for exact probabilities
+		 */
+		public WIWSummary(boolean colourByAge, String search, String replace, double epsilon) {
+			this.colourByAge = colourByAge;
+			this.search = search;
+			this.replace = replace;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public void init(TransmissionTreeRecord first) {
+			Tree tree = first.tree;
+	    	int n = first.leafCount;
+			if (colourByAge) {
+				age = new double[n];
+				for (int i = 0; i < n; i++) {
+					age[i] = tree.getNode(i).getHeight();
+					upper = Math.max(upper, age[i]);
+				}
+			}
+
+			nodeLabels = new String[n];
+			for (int i = 0; i < n; i++) {
+				nodeLabels[i] = tree.getNode(i).getID();
+				if (search != null) {
+					nodeLabels[i] = nodeLabels[i].replaceAll(search, replace);
+				}
+			}
+			matrix = new SparseWIWMatrix(n, epsilon);
+			infectedBy = new int[n];
+		}
+
+		@Override
+		public void process(TransmissionTreeRecord record) {
+        	record.calcInfectedBy(true, infectedBy);
+        	matrix.add(infectedBy);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/*
+	 * output network in DOT format, one line per node and edge, without building the graph in memory
+	 */
+	private void outputDot(String[] nodeLabels, double [] sampledInfector, boolean [] nodesInUse, int [][] edges, double [][] edgeProbs) throws FileNotFoundException {
+		Log.warning("Writing network in DOT format to file: " + dotOutputInput.get().getPath());
+		DecimalFormat f = new DecimalFormat("#.##");
+		PrintStream out = new PrintStream(dotOutputInput.get());
+		out.println("digraph {");
+		for (int i = 0; i < nodeLabels.length; i++) {
+			if (nodesInUse[i] || !suppressSingletonInput.get()) {
+				out.println("\tn" + i + " [label=\"" + nodeLabels[i].replace("\"", "\\\"") + " (" + f.format(sampledInfector[i]) + ")\"];");
+			}
+		}
+		for (int i = 0; i < nodeLabels.length; i++) {
+			for (int k = 0; k < edges[i].length; k++) {
+				out.print("\tn" + edges[i][k] + " -> n" + i + " [label=\"" + f.format(edgeProbs[i][k]) + "\"");
+				if (widthByPosteriorInput.get()) {
+					out.print(",penwidth=" + edgeProbs[i][k] * 15);
+				}
+				out.println("];");
+			}
+		}
+		out.println("}");
+		out.close();
 	}
 
 	/*
-	 * output transition matrix to tab separated file
+	 * output transition matrix to tab separated file, one row at a time
 	 */
-	private void outputMatrix(String[] nodeLabels, double[][] transitions) throws FileNotFoundException {
+	private void outputMatrix(String[] nodeLabels, SparseWIWMatrix matrix) throws FileNotFoundException {
 		if (matrixOutputInput.get() != null) {
 			System.err.println("Writing transition matrix " + matrixOutputInput.get().getPath());
 			int [] order = new int[nodeLabels.length];
@@ -368,10 +421,12 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 				out.print(nodeLabels[order[i]] + "\t");
 			}
 			out.println();
+			double [] row = new double[nodeLabels.length + 1];
 			for (int i = 0; i < nodeLabels.length; i++) {
 				out.print(nodeLabels[order[i]] + "\t");
+				matrix.getRow(order[i], row);
 				for (int j = 0; j < nodeLabels.length; j++) {
-					out.print(transitions[order[i]][order[j]] + "\t");
+					out.print(row[order[j]] + "\t");
 				}
 				out.println();
 			}